@@ -11,60 +11,175 @@ import android.net.ConnectivityManager;
 import android.net.NetworkInfo;
 import android.os.Build;
 import android.os.Environment;
-import android.os.Handler;
+import android.os.Looper;
 import android.widget.Toast;
 
 import com.vgaw.bugcat.http.HttpCat;
+import com.vgaw.bugcat.http.RetryPolicy;
+import com.vgaw.bugcat.http.UploadScheduler;
+import com.vgaw.bugcat.http.UploadBatch;
+import com.vgaw.bugcat.store.BugJournal;
+import com.vgaw.bugcat.store.BugWriter;
+import com.vgaw.bugcat.store.CrashRecord;
+import com.vgaw.bugcat.store.CrashSlot;
+import com.vgaw.bugcat.store.DeviceProfile;
+import com.vgaw.bugcat.store.DigestIndex;
+import com.vgaw.bugcat.store.EvictionPolicy;
+import com.vgaw.bugcat.store.Fingerprint;
+import com.vgaw.bugcat.store.Handoff;
+import com.vgaw.bugcat.store.ProcessLock;
+import com.vgaw.bugcat.store.Recovery;
+import com.vgaw.bugcat.store.ReportQueue;
+import com.vgaw.bugcat.store.ReportThrottle;
+import com.vgaw.bugcat.store.SegmentStore;
+import com.vgaw.bugcat.store.StringTable;
+import com.vgaw.bugcat.store.TraceEncoder;
 
-import java.io.BufferedReader;
-import java.io.BufferedWriter;
 import java.io.File;
-import java.io.FileNotFoundException;
-import java.io.FileReader;
-import java.io.FileWriter;
+import java.io.FileInputStream;
 import java.io.IOException;
-import java.io.Writer;
+import java.io.RandomAccessFile;
 import java.lang.reflect.Field;
-import java.security.MessageDigest;
-import java.security.NoSuchAlgorithmException;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 /**
- * context of bug file(filepath is "../bugbox/bug") is like below:
- * MAGIC                            --head--
- * VERSION                              |
- * APP_VERSION                          |
- * |
- * --head--
- * KEY
- * KEY
- * KEY
- * ...
+ * bug索引文件(filepath is "../bugbox/bug")的格式见{@link BugJournal}，
+ * bug的内容追加在同一目录下的段文件中，见{@link SegmentStore}
  */
 
 /**
  * todo 可能存在的问题，写入太快的问题
- * 暂时不设置最大size，因为占用本来就不多
+ * bugbox的总字节数、条数、存活时间有上限，见{@link EvictionPolicy}
  */
 public class BugCat implements Thread.UncaughtExceptionHandler {
-    private final String MAGIC = "com.vgaw.bugcat";
-    private final String VERSION = "1.0";
     private final String DIR_NAME = "bugbox";
     private final String FILE_NAME = "bug";
-    private final String TEMP_FILE_NAME = "bug_temp";
+    private final String CRASH_SLOT_NAME = "crash_slot";
+    // 待写入的bug最多排队的条数，存储就绪之前提交的也在其中
+    private static final int QUEUE_CAPACITY = 64;
+    // 崩溃槽不可用时，退出前最多等待写入线程(以及存储就绪)的时间
+    private static final long CRASH_FLUSH_WAIT = 3000;
+    // 启动核对每片最多运行的时间
+    private static final long RECOVERY_SLICE = 20;
 
-    private final int MAGIC_INDEX = 1;
-    private final int VERSION_INDEX = 3;
-    private final int APP_VERSION_INDEX = 5;
-    private final int HEAD_END_INDEX = 4;
+    private static BugCat instance = new BugCat();
+    // 以下在setUpStorage中赋值(可能在后台线程)，在写入线程、调度线程和崩溃线程中读取
+    // bugbox目录；本进程的lane，主进程即bugbox本身，见Handoff
+    private volatile File root;
+    private volatile File dir;
+    private volatile String lane;
+    // 持有到进程结束
+    private volatile ProcessLock laneLock;
+    // 持有者为唯一的上传者，其余进程只把bug交给它
+    private volatile ProcessLock uploadLock;
+    private volatile Handoff handoff;
+    private volatile Context context;
+    private volatile BugJournal journal;
+    private volatile SegmentStore segments;
+    // 崩溃记录中的类名、方法名、文件名按序号引用这里，见CrashRecord
+    private volatile StringTable strings;
+    // 编码(追加名字)到写入记录之间不能插入字符串表的compact
+    private final Object recordLock = new Object();
+    private volatile BugWriter writer;
+    private volatile CrashSlot crashSlot;
+    private volatile Recovery recovery;
+    // 提交的bug(String或Throwable)先入队，由写入线程串行写入；写入线程在存储就绪后才启动。
+    // 其他进程交来的spool(File)、崩溃槽中取出的崩溃(Handoff.Entry，key已算好)也经由这里写入本lane。
+    // 任意多个线程同时提交只各做一次CAS，排队中相同的合并；查重和追加只在写入线程中进行，不会写出重复的key
+    private final ReportQueue<Object> reportQueue = new ReportQueue<Object>(QUEUE_CAPACITY,
+            ReportQueue.DROP_NEWEST, new ReportQueue.Consumer<Object>() {
+        @Override
+        public void accept(Object report, int occurrences) {
+            if (report instanceof File) {
+                importSpool((File) report);
+                return;
+            }
+            persist(report, occurrences);
+        }
+    });
+    // 写入线程和崩溃路径各用一个，选项相同，同一个崩溃走哪条路径key都相同
+    private final Fingerprint fingerprint = new Fingerprint();
+    private final Fingerprint crashFingerprint = new Fingerprint();
+    private final TraceEncoder traceEncoder = new TraceEncoder();
+    private final TraceEncoder crashEncoder = new TraceEncoder();
+    // 写入线程中的崩溃编码为二进制记录；崩溃槽中不能追加字符串表，仍用文本
+    private final CrashRecord crashRecord = new CrashRecord();
+    // 写入线程编码崩溃内容用，复用
+    private ByteBuffer traceBuffer;
+    private final CountDownLatch readyLatch = new CountDownLatch(1);
+    // 第一个崩溃的线程负责写崩溃槽并结束进程，之后同时崩溃的线程不再碰崩溃槽
+    private final AtomicBoolean crashing = new AtomicBoolean();
+    private final RetryPolicy retryPolicy = new RetryPolicy();
+    // 已交给上传队列、还没有结果的key，重叠的drain不再重复装批
+    private final Set<String> inFlight = Collections.synchronizedSet(new HashSet<String>());
+    private final UploadScheduler scheduler = new UploadScheduler(new Runnable() {
+        @Override
+        public void run() {
+            uploadStepByStep();
+        }
+    });
+    private volatile boolean wifiOnly;
+    private final EvictionPolicy evictionPolicy = new EvictionPolicy();
+    // 崩溃风暴时限制写入，计数持久化在lane中，随上传报告
+    private final ReportThrottle throttle = new ReportThrottle();
+    // 限流计数同一时刻只随一个批次上传
+    private final AtomicBoolean statsInFlight = new AtomicBoolean();
+    // 设备信息，每个app版本采集一次，批次只带hash；内容同一时刻只随一个批次上传，确认后不再上传
+    private volatile DeviceProfile profile;
+    private final AtomicBoolean profileInFlight = new AtomicBoolean();
+    private final EvictionPolicy.Store bugStore = new EvictionPolicy.Store() {
+        @Override
+        public long sizeOf(int record) {
+            return journal.getSegment(record) == 0 ? bugFile(record).length() : journal.getBodyLength(record);
+        }
 
-    private final String UPLOADED = "U";
-    private final String NEW = "N";
+        @Override
+        public long segmentSize(int segment) {
+            SegmentStore segments = BugCat.this.segments;
+            if (segments == null || segment == segments.getActiveSegment()) {
+                return 0;
+            }
+            return segments.segmentFile(segment).length();
+        }
 
-    private static BugCat instance = new BugCat();
-    private File file;
-    private File tempFile;
-    private File dir;
-    private Context context;
+        @Override
+        public long overhead() {
+            long bytes = new File(dir, StringTable.FILE_NAME).length() + new File(dir, ReportThrottle.FILE_NAME).length()
+                    + new File(dir, CRASH_SLOT_NAME).length() + new File(root, DeviceProfile.FILE_NAME).length();
+            SegmentStore segments = BugCat.this.segments;
+            if (segments != null) {
+                bytes += segments.segmentFile(segments.getActiveSegment()).length();
+            }
+            return bytes;
+        }
+
+        @Override
+        public boolean canEvict(int record) {
+            return !inFlight.contains(BugJournal.toKey(journal.getHi(record), journal.getLo(record)));
+        }
+
+        @Override
+        public void delete(int record) {
+            // 段中的内容随整段回收，见reclaimSegments
+            if (journal.getSegment(record) == 0) {
+                bugFile(record).delete();
+            }
+        }
+    };
 
     private BugCat() {
     }
@@ -80,21 +195,7 @@ public class BugCat implements Thread.UncaughtExceptionHandler {
      */
     public void initial(Context context) {
         this.context = context;
-        // 若文件不存在，则创建，并写入head
-        dir = getDiskCacheDir(context, DIR_NAME);
-        if (!dir.exists()) {
-            dir.mkdirs();
-        }
-        file = new File(dir, FILE_NAME);
-        tempFile = new File(dir, TEMP_FILE_NAME);
-        if (!file.exists()) {
-            writeHead(false);
-        }
-
-        // 如果版本变更，清空，再重新写入head
-        /*if (isAppVersionChanged(getAppVersion())) {
-            writeHead(false);
-        }*/
+        setUpStorage();
 
         // 设置为程序的默认未捕获异常处理器
         Thread.setDefaultUncaughtExceptionHandler(this);
@@ -104,330 +205,824 @@ public class BugCat implements Thread.UncaughtExceptionHandler {
     }
 
     /**
-     * 解除监听器，使用注意点同receiver
+     * 异步初始化：立即接管未捕获异常(开销很小)，建目录、打开索引、查询版本号、注册监听器等都在后台线程进行，
+     * 不占用冷启动的时间。存储就绪之前提交的bug留在写入队列中，就绪后按提交顺序写入；
+     * 这期间发生的崩溃会等待存储就绪(最多CRASH_FLUSH_WAIT)再退出。
      */
-    public void release(){
-        unregisterReceiver();
+    public void initialAsync(Context context) {
+        this.context = context;
+        Thread.setDefaultUncaughtExceptionHandler(this);
+        scheduler.execute(new Runnable() {
+            @Override
+            public void run() {
+                setUpStorage();
+                registerReceiver();
+            }
+        });
     }
 
-    private boolean writeNewKey(String key, boolean isTemp) {
-        BufferedWriter writer = null;
+    private void setUpStorage() {
+        // 若文件不存在，则创建，并写入head；1.0的文本索引在此迁移
+        root = getDiskCacheDir(context, DIR_NAME);
+        if (!root.exists()) {
+            root.mkdirs();
+        }
+        openLane();
+        handoff = new Handoff(new File(root, Handoff.INBOX_NAME));
+        uploadLock = new ProcessLock(new File(root, Handoff.UPLOAD_LOCK_NAME));
+        // 版本号和设备信息只在这里查一次
+        PackageInfo packageInfo = getPackageInfo();
+        String appVersion = packageInfo == null ? "get app version failed" : packageInfo.versionName;
+        journal = new BugJournal(new File(dir, FILE_NAME));
+        try {
+            journal.open(appVersion);
+        } catch (IOException e) {
+            journal = null;
+        }
+        setUpProfile(packageInfo);
+
+        segments = new SegmentStore(dir);
+        try {
+            segments.open();
+        } catch (IOException e) {
+            // 退回每个key一个文件
+            segments = null;
+        }
+        strings = new StringTable(new File(dir, StringTable.FILE_NAME));
+        try {
+            strings.open();
+        } catch (IOException e) {
+            // 崩溃内容退回文本
+            strings = null;
+        }
+        if (journal != null) {
+            writer = new BugWriter(dir, journal, segments);
+        }
+        try {
+            throttle.open(new File(dir, ReportThrottle.FILE_NAME));
+        } catch (IOException e) {
+            // 计数只在内存中
+        }
+
+        // 预先映射崩溃槽，并把上次崩溃时写入的信息转入bugbox(同样经过写入队列)
+        CrashSlot slot = new CrashSlot(new File(dir, CRASH_SLOT_NAME));
         try {
-            if (isTemp){
-                writer = new BufferedWriter(new FileWriter(tempFile, true));
-            }else {
-                writer = new BufferedWriter(new FileWriter(file, true));
+            slot.open();
+            Handoff.Entry lastCrash = slot.take();
+            if (lastCrash != null) {
+                reportQueue.offer(lastCrash);
             }
-            writer.write(key);
-            writer.newLine();
-            return true;
+            crashSlot = slot;
         } catch (IOException e) {
-            return false;
-        } finally {
-            if (writer != null) {
-                try {
-                    writer.close();
-                } catch (IOException e) {
-                }
+        }
+
+        // 如果版本变更，清空，再重新写入head(暂不启用，判断见isAppVersionChanged)
+
+        scheduler.setCondition(new UploadScheduler.Condition() {
+            @Override
+            public boolean allow() {
+                return !wifiOnly || isWifi();
             }
+        });
+
+        // 在调度线程中分片核对索引与bug内容，完成前不上传
+        startRecovery();
+
+        // 存储就绪，开始按提交顺序写入排队的bug
+        reportQueue.start();
+        readyLatch.countDown();
+    }
+
+    /**
+     * 读出持久化的设备信息；app版本或系统版本变了(或还没有)才重新采集
+     */
+    private void setUpProfile(PackageInfo packageInfo) {
+        DeviceProfile profile = new DeviceProfile(new File(root, DeviceProfile.FILE_NAME));
+        profile.load();
+        String stamp = (packageInfo == null ? "" : packageInfo.versionName + "/" + packageInfo.versionCode) + "/"
+                + Build.FINGERPRINT;
+        if (!stamp.equals(profile.getStamp())) {
+            try {
+                profile.update(stamp, collectProfile(packageInfo));
+            } catch (IOException e) {
+                // 只在内存中，下次启动再采集
+            }
+        }
+        this.profile = profile;
+    }
+
+    /**
+     * 选定本进程的lane并持有它：主进程用bugbox目录本身(与单进程时相同)，其余进程用lane_进程名后缀；
+     * 同名的lane仍被别的进程持有(如上一个实例尚未退出)时，另开一个带pid的，之后由上传者接收
+     */
+    private void openLane() {
+        String process = getProcessName();
+        String name = process == null || process.equals(context.getPackageName()) ? null : laneName(process);
+        File laneDir = name == null ? root : new File(root, Handoff.LANE_PREFIX + name);
+        laneDir.mkdirs();
+        ProcessLock lock = new ProcessLock(new File(laneDir, Handoff.LANE_LOCK_NAME));
+        if (!lock.tryAcquire()) {
+            name = (name == null ? "main" : name) + "_" + android.os.Process.myPid();
+            laneDir = new File(root, Handoff.LANE_PREFIX + name);
+            laneDir.mkdirs();
+            lock = new ProcessLock(new File(laneDir, Handoff.LANE_LOCK_NAME));
+            lock.tryAcquire();
+        }
+        lane = name == null ? "main" : name;
+        laneLock = lock;
+        dir = laneDir;
+    }
+
+    // "com.foo:remote"取"remote"，只保留可作文件名的字符
+    private static String laneName(String process) {
+        String name = process.substring(process.indexOf(':') + 1);
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < name.length(); i++) {
+            char c = name.charAt(i);
+            sb.append(Character.isLetterOrDigit(c) || c == '.' || c == '-' ? c : '_');
         }
+        return sb.toString();
     }
 
-    private int isKeyExist(String key) {
-        BufferedReader reader = null;
+    // API 28之前没有Application.getProcessName()
+    private String getProcessName() {
+        FileInputStream in = null;
         try {
-            reader = new BufferedReader(new FileReader(file));
-            if ((runToLine(reader, HEAD_END_INDEX)) != null) {
-                String line = null;
-                while ((line = reader.readLine()) != null) {
-                    String[] splits = line.split(" ");
-                    if (splits[0].equals(key)){
-                        if (splits[1].equals(NEW)){
-                            return 1;
-                        }else if (splits[1].equals(UPLOADED)){
-                            return 2;
-                        }
-                    }
-                }
+            in = new FileInputStream("/proc/self/cmdline");
+            byte[] buffer = new byte[256];
+            int read = in.read(buffer);
+            int length = 0;
+            while (length < read && buffer[length] != 0) {
+                length++;
             }
-        } catch (FileNotFoundException e) {
-            // 文件不存在
+            return length > 0 ? new String(buffer, 0, length, "UTF-8").trim() : null;
         } catch (IOException e) {
+            return null;
         } finally {
-            if (reader != null) {
+            if (in != null) {
                 try {
-                    reader.close();
+                    in.close();
                 } catch (IOException e) {
                 }
             }
         }
-        return 0;
     }
 
     /**
-     * 基于bug文件存在的情况下，但要考虑head没有写入完整的情况
-     * 默认head没写入完整，在写入一遍
+     * @param policy 排队已满时的处理：{@link ReportQueue#DROP_NEWEST}(默认)丢弃新提交的，
+     *               {@link ReportQueue#DROP_OLDEST}丢弃最早的
+     */
+    public void setOverflowPolicy(int policy) {
+        reportQueue.setPolicy(policy);
+    }
+
+    /**
+     * @return 因排队已满而丢弃的bug条数
+     */
+    public long getDroppedCount() {
+        return reportQueue.getDroppedCount();
+    }
+
+    /**
+     * @return 提交的bug条数，包括被丢弃的
+     */
+    public long getSubmittedCount() {
+        return reportQueue.getOfferedCount();
+    }
+
+    /**
+     * @return 字符串表放不下、内联在崩溃记录中的名字数，持续增长说明表中仍被引用的名字太多
+     */
+    public int getInlinedNameCount() {
+        StringTable strings = this.strings;
+        return strings == null ? 0 : strings.getInlineCount();
+    }
+
+    /**
+     * 解除监听器，使用注意点同receiver
+     */
+    public void release(){
+        unregisterReceiver();
+        // 不再监听网络变化，让出上传者，由别的进程接替
+        if (uploadLock != null) {
+            uploadLock.release();
+        }
+    }
+
+    /**
+     * @param wifiOnly true则只在Wi-Fi下上传，默认false
+     */
+    public void setWifiOnly(boolean wifiOnly) {
+        this.wifiOnly = wifiOnly;
+    }
+
+    /**
+     * 两次上传扫描的最小间隔，默认{@link UploadScheduler#DEFAULT_MIN_INTERVAL}
+     */
+    public void setUploadInterval(long millis) {
+        scheduler.setMinInterval(millis);
+    }
+
+    /**
+     * bugbox的上限，超出时先淘汰已上传的记录，再淘汰最早的未上传记录
      *
-     * @param nowVersion
-     * @return
+     * @param maxBytes lane在磁盘上的总字节数：索引、仍有未上传记录的段(整段)、当前段、字符串表等
+     * @param maxCount 记录条数
+     * @param maxAge   记录最后一次出现后保留的时间
      */
-    private boolean isAppVersionChanged(String nowVersion) {
-        return readAppVersion() != nowVersion;
+    public void setLimits(long maxBytes, int maxCount, long maxAge) {
+        evictionPolicy.setLimits(maxBytes, maxCount, maxAge);
+    }
+
+    /**
+     * @return 因超出上限被淘汰的记录条数(本次进程内)
+     */
+    public int getEvictedCount() {
+        return evictionPolicy.getEvictedCount();
+    }
+
+    /**
+     * 崩溃风暴时的限流：同一个bug每分钟最多记6次(可突发5次)；新的bug共用一个令牌桶，
+     * 超出后按sampleRate抽样记录(每小时至多5条)，其余只计数
+     *
+     * @param burst      新bug的突发上限，默认{@link ReportThrottle#DEFAULT_BURST}
+     * @param perMinute  新bug每分钟的上限，默认{@link ReportThrottle#DEFAULT_PER_MINUTE}
+     * @param sampleRate 超出后抽样记录的比例，默认{@link ReportThrottle#DEFAULT_SAMPLE_RATE}
+     */
+    public void setRateLimit(int burst, double perMinute, double sampleRate) {
+        throttle.setLimits(burst, perMinute, sampleRate);
+    }
+
+    /**
+     * @return 因限流没有记录的次数(累计，跨进程重启)
+     */
+    public long getRateLimitedCount() {
+        return throttle.getDroppedCount();
     }
 
-    private void writeHead(boolean isTempFile) {
-        BufferedWriter writer = null;
+    /**
+     * @return 超出限流后抽样记录的次数(累计)
+     */
+    public long getSampledCount() {
+        return throttle.getSampledCount();
+    }
+
+    private void startRecovery() {
+        if (journal == null) {
+            return;
+        }
+        recovery = new Recovery(dir, journal, segments);
+        scheduler.execute(new Runnable() {
+            @Override
+            public void run() {
+                if (!recovery.resume(RECOVERY_SLICE)) {
+                    // 让出调度线程，排在后面再继续
+                    scheduler.execute(this);
+                    return;
+                }
+                trim();
+                scheduler.request();
+            }
+        });
+    }
+
+    private void trim() {
+        if (journal == null) {
+            return;
+        }
         try {
-            if (isTempFile){
-                writer = new BufferedWriter(new FileWriter(tempFile));
-            }else {
-                writer = new BufferedWriter(new FileWriter(file));
-            }
-            writer.write(MAGIC);
-            writer.write("\n");
-            writer.write(VERSION);
-            writer.write("\n");
-            writer.write(getAppVersion());
-            writer.write("\n");
-            writer.write("\n");
+            evictionPolicy.trim(journal, bugStore, System.currentTimeMillis());
         } catch (IOException e) {
-        } finally {
+        }
+        reclaimSegments();
+    }
+
+    /**
+     * 删除不再有NEW记录引用的段
+     */
+    private void reclaimSegments() {
+        if (journal == null || segments == null) {
+            return;
+        }
+        segments.reclaim(journal);
+    }
+
+    /**
+     * 字符串表快满时只留下仍被引用的名字；与journal的compact、上传都在调度线程中串行，期间写入线程等待
+     */
+    private void compactStrings() {
+        StringTable strings = this.strings;
+        if (strings == null || segments == null || !strings.needsCompaction()) {
+            return;
+        }
+        synchronized (recordLock) {
             try {
-                writer.close();
+                strings.compact(journal, segments);
             } catch (IOException e) {
             }
         }
+        reclaimSegments();
+    }
+
+    private File bugFile(int record) {
+        return new File(dir, BugJournal.toKey(journal.getHi(record), journal.getLo(record)));
+    }
+
+    private boolean isAppVersionChanged(String nowVersion) {
+        return journal != null && !nowVersion.equals(journal.getAppVersion());
     }
 
     /**
      * 将bug保存到本地，带下次进入程序时上传，
      * 之所以不立即上传，是因为程序崩溃后，上传都不会成功的
+     * <p/>
+     * 只入队，不阻塞，可在UI线程中调用；摘要、查重和写文件在写入线程中进行
      *
      * @param bugInfo
      */
     public void deliverBug(String bugInfo) {
-        String key = hashKeyForDisk(bugInfo);
-        if (isKeyExist(key) == 0) {
-            writeNewKey(key + " " + NEW, false);
-            persistBug(key, bugInfo);
-        }
-
+        reportQueue.offer(bugInfo);
     }
 
-    // 以key为文件名，将bug信息存入该文件中。该文件位于根目录下
-    private void persistBug(String key, String bugInfo) {
-        File file = new File(dir, key);
-        BufferedWriter writer = null;
+    // 只在写入线程中调用，见BugWriter；occurrences含排队时合并进来的相同提交
+    private void persist(Object report, int occurrences) {
+        BugWriter writer = this.writer;
+        if (writer == null) {
+            return;
+        }
+        // Throwable直接按异常和调用栈算key，不先编码成文本
+        String key;
+        if (report instanceof Throwable) {
+            key = fingerprint.hash((Throwable) report).toKey();
+        } else if (report instanceof Handoff.Entry) {
+            key = ((Handoff.Entry) report).key;
+        } else {
+            key = hashKeyForDisk((String) report);
+        }
+        long now = System.currentTimeMillis();
+        boolean known = writer.contains(key);
+        if (throttle.admit(key, known, now) == ReportThrottle.DROP) {
+            throttle.add(occurrences - 1, 0);
+            return;
+        }
         try {
-            writer = new BufferedWriter(new FileWriter(file));
-            writer.write(bugInfo);
-        } catch (IOException e) {
-        } finally {
-            if (writer != null) {
-                try {
-                    writer.close();
-                } catch (IOException e) {
-                    e.printStackTrace();
-                }
+            // 已有的只累加次数，内容不必编码；期间被淘汰了则照常写入
+            if (known && writer.count(key, now, occurrences) != DigestIndex.ABSENT) {
+                return;
             }
+            synchronized (recordLock) {
+                writer.write(key, bodyOf(report), now, occurrences);
+            }
+        } catch (IOException e) {
         }
+    }
 
+    private byte[] bodyOf(Object report) {
+        if (report instanceof Throwable) {
+            return getCrashInfo((Throwable) report);
+        }
+        if (report instanceof Handoff.Entry) {
+            return ((Handoff.Entry) report).body;
+        }
+        return ((String) report).getBytes(Charset.forName("UTF-8"));
     }
 
     /**
-     * 一条一条bug上传
+     * key的计算选项，见{@link Fingerprint#NORMALIZE_MESSAGES}、{@link Fingerprint#IGNORE_MESSAGES}、
+     * {@link Fingerprint#IGNORE_LINE_NUMBERS}，默认{@link Fingerprint#DEFAULT}
+     * <p/>
+     * 只影响之后的bug，已写入的key不变
+     */
+    public void setFingerprintOptions(int options) {
+        fingerprint.setOptions(options);
+        crashFingerprint.setOptions(options);
+    }
+
+    /**
+     * 崩溃内容的预算，超出的部分省略，见{@link TraceEncoder}
+     *
+     * @param maxDepth  cause/suppressed的最大层数，默认{@link TraceEncoder#DEFAULT_MAX_DEPTH}
+     * @param maxFrames 每个异常最多记录的帧数，默认{@link TraceEncoder#DEFAULT_MAX_FRAMES}
+     * @param maxBytes  每条的字节数，默认{@link TraceEncoder#DEFAULT_MAX_BYTES}，不超过崩溃槽的大小
+     */
+    public void setTraceLimits(int maxDepth, int maxFrames, int maxBytes) {
+        traceEncoder.setLimits(maxDepth, maxFrames, maxBytes);
+        crashEncoder.setLimits(maxDepth, maxFrames, maxBytes);
+        crashRecord.setLimits(maxDepth, maxFrames, maxBytes);
+    }
+
+    /**
+     * 按批上传bug，每批的条数和字节数受UploadBatch限制
      */
     private void uploadStepByStep() {
-        // 搜寻状态为NEW的文件
-        // 读取文件
-        // 上传
-        // 修改NEW为UPLOADED，并删除bug文件
+        // 搜寻状态为NEW、且已过退避时间的记录
+        // 记下内容在段中的位置，装入当前批次，装满则上传
+        // 服务器逐条确认，确认的记录修改NEW为UPLOADED(一次定位写)，段中的记录都已上传后整段删除
+        // 未确认或请求失败的记录累加失败次数，按指数退避推迟下次上传
+        // 只在UploadScheduler的线程中执行，同一时刻至多一次
         // continue
-        BufferedReader reader = null;
-        try {
-            reader = new BufferedReader(new FileReader(file));
-            String s;
-            for (int i = 0; i < HEAD_END_INDEX; i++) {
-                s = reader.readLine();
-            }
-            String line = null;
-            while ((line = reader.readLine()) != null) {
-                String[] splits = line.split(" ");
-                if (!isInTempFile(splits[0])) {
-                    if (!UPLOADED.equals(splits[1])){
-                        // 读取文件内容
-                        final File bugFile = new File(dir, splits[0]);
-                        BufferedReader r = new BufferedReader(new FileReader(bugFile));
-                        StringBuilder sb = new StringBuilder();
-                        String temp = null;
-                        while ((temp = r.readLine()) != null) {
-                            sb.append(temp + "\n");
-                        }
-                        if (r != null){
-                            r.close();
-                        }
-                        // 上传信息
-                        final String finalLine = splits[0] + " " + UPLOADED;
-                        if (!tempFile.exists()){
-                            writeHead(true);
-                        }
-                        HttpCat.fly(sb.toString(), new HttpCat.AbstractResponseListener() {
-                            @Override
-                            public void onSuccess(String flyCat) {
-                                super.onSuccess(flyCat);
-                                // 在tempFile增加该记录，表示已经上传
-                                writeNewKey(finalLine, true);
-                                bugFile.delete();
-                            }
-                        });
-                    }else {
-                        if (!tempFile.exists()){
-                            writeHead(true);
-                        }
-                        writeNewKey(line, true);
+        if (journal == null) {
+            return;
+        }
+        if (recovery != null && !recovery.isDone()) {
+            // 核对完成后会再触发一次
+            return;
+        }
+        trim();
+        if (journal.needsCompaction()) {
+            // 被淘汰的记录占比够高时生成新一代索引，增量进行，不阻塞capture
+            try {
+                journal.compact();
+            } catch (IOException e) {
+            }
+        }
+        compactStrings();
+        if (!uploadLock.tryAcquire()) {
+            // 别的进程在上传，把本lane的bug交给它
+            handOff();
+            return;
+        }
+        collectInbox();
+        long now = System.currentTimeMillis();
+        UploadBatch batch = newBatch();
+        // 限流计数附在第一批中
+        throttle.flush();
+        long[] stats = throttle.getUnreported();
+        if ((stats[0] != 0 || stats[1] != 0) && statsInFlight.compareAndSet(false, true)) {
+            batch.setStats(stats[0], stats[1]);
+        }
+        int size = journal.size();
+        for (int i = 0; i < size; i++) {
+            // NEW记录上传内容；已上传的记录之后又出现过的，只上传次数增量
+            int unreported = journal.getUnreported(i);
+            if (unreported == 0 || journal.getNextAttempt(i) > now) {
+                continue;
+            }
+            String key = BugJournal.toKey(journal.getHi(i), journal.getLo(i));
+            if (inFlight.contains(key)) {
+                continue;
+            }
+            int count = journal.getCount(i);
+            long lastSeen = journal.getLastSeen(i);
+            if (journal.getStatus(i) != BugJournal.STATUS_NEW) {
+                if (!batch.addCount(key, unreported, count, lastSeen)) {
+                    if (!flyBatch(batch)) {
+                        return;
                     }
+                    batch = newBatch();
+                    batch.addCount(key, unreported, count, lastSeen);
                 }
+                continue;
             }
-        } catch (FileNotFoundException e) {
-        } catch (IOException e) {
-        } finally {
-            if (reader != null) {
-                try {
-                    reader.close();
-                } catch (IOException e) {
+            // 只记下位置，上传时才从段文件定位读出，流式写到socket
+            int segment = journal.getSegment(i);
+            if (segment != 0 && segments == null) {
+                continue;
+            }
+            File bugFile = segment == 0 ? new File(dir, key) : segments.segmentFile(segment);
+            if (segment == 0 && !bugFile.exists()) {
+                continue;
+            }
+            long offset = journal.getBodyOffset(i);
+            int length = segment == 0 ? (int) bugFile.length() : journal.getBodyLength(i);
+            // 二进制记录要连同引用到的字符串一起发，读出内容；文本的照旧流式发送
+            byte[] record;
+            try {
+                record = readRecord(bugFile, segment, (int) offset, length);
+            } catch (IOException e) {
+                continue;
+            }
+            if (!(record == null ? batch.add(key, bugFile, offset, length) : addRecord(batch, key, record))) {
+                if (!flyBatch(batch)) {
+                    // 熔断中或上传队列已满，剩下的等下次再传
+                    return;
+                }
+                batch = newBatch();
+                if (record == null) {
+                    batch.add(key, bugFile, offset, length);
+                } else {
+                    addRecord(batch, key, record);
                 }
             }
+            // 上传之前已重复出现的，内容计1次，其余的附在同一批中；放不下就等下次
+            if (unreported > 1) {
+                batch.addCount(key, unreported - 1, count, lastSeen);
+            }
+        }
+        if (!batch.isEmpty() || batch.getStats() != null) {
+            flyBatch(batch);
+        } else {
+            settle(batch, null);
         }
     }
 
-    private boolean isInTempFile(String key) {
-        BufferedReader reader = null;
-        if (!tempFile.exists()) {
-            return false;
+    /**
+     * 新的批次带上设备信息的hash；收集端还没有确认时，其中一批带内容
+     */
+    private UploadBatch newBatch() {
+        UploadBatch batch = new UploadBatch();
+        DeviceProfile profile = this.profile;
+        String hash = profile == null ? null : profile.getHash();
+        if (hash != null) {
+            boolean withBody = !profile.isUploaded() && profileInFlight.compareAndSet(false, true);
+            batch.setProfile(hash, withBody ? profile.getBody() : null);
         }
+        return batch;
+    }
+
+    /**
+     * @return 二进制记录的内容；文本返回null
+     */
+    private byte[] readRecord(File bugFile, int segment, int offset, int length) throws IOException {
+        if (length == 0) {
+            return null;
+        }
+        if (segment != 0) {
+            // 先只读首字节
+            if (!CrashRecord.isRecord(segments.read(segment, offset, Math.min(length, 2)))) {
+                return null;
+            }
+            return segments.read(segment, offset, length);
+        }
+        RandomAccessFile in = new RandomAccessFile(bugFile, "r");
         try {
-            reader = new BufferedReader(new FileReader(tempFile));
-            String line = null;
-            while ((line = reader.readLine()) != null) {
-                String split[] = line.split(" ");
-                if (split[0].equals(key)) {
-                    return true;
+            if ((in.read() & 0xff) != CrashRecord.MAGIC) {
+                return null;
+            }
+            byte[] body = new byte[length];
+            in.seek(0);
+            in.readFully(body);
+            return body;
+        } finally {
+            in.close();
+        }
+    }
+
+    /**
+     * 二进制记录连同它引用的字符串装入批次，批次中已有的字符串不重复发送；表中查不到的全部转为内联
+     */
+    private boolean addRecord(UploadBatch batch, String key, byte[] record) {
+        StringTable strings = this.strings;
+        try {
+            Set<Integer> refs = new TreeSet<Integer>();
+            CrashRecord.collectRefs(record, refs);
+            int[] ids = new int[refs.size()];
+            String[] values = new String[refs.size()];
+            int n = 0;
+            for (Integer ref : refs) {
+                String value = strings == null ? null : strings.get(ref);
+                if (value == null) {
+                    return batch.add(key, CrashRecord.transcode(record, strings, null));
                 }
+                ids[n] = ref;
+                values[n++] = value;
             }
-        } catch (FileNotFoundException e) {
+            return batch.add(key, record, ids, values);
         } catch (IOException e) {
-        } finally {
-            if (reader != null) {
-                try {
-                    reader.close();
-                } catch (IOException e) {
+            // 解析不了的原样发出
+            return batch.add(key, record);
+        }
+    }
+
+    private void handOff() {
+        try {
+            throttle.flush();
+            long[] stats = throttle.getUnreported();
+            handoff.handOff(lane, dir, journal, segments, null, stats, strings);
+            throttle.markReported(stats[0], stats[1]);
+        } catch (IOException e) {
+        }
+        reclaimSegments();
+    }
+
+    /**
+     * 作为上传者：接收已无进程持有的lane，并把inbox中的spool交给写入线程写入本lane
+     */
+    private void collectInbox() {
+        for (File laneDir : Handoff.listLanes(root)) {
+            if (laneDir.equals(dir)) {
+                continue;
+            }
+            try {
+                handoff.adopt(laneDir, FILE_NAME, CRASH_SLOT_NAME);
+            } catch (IOException e) {
+            }
+        }
+        for (File spool : handoff.list()) {
+            // 排队中的同一个spool不会重复入队；排不进去的留到下次
+            reportQueue.offer(spool);
+        }
+    }
+
+    // 只在写入线程中调用，与persist串行；同一个key只留一条
+    private void importSpool(File spool) {
+        if (writer == null || !spool.exists()) {
+            return;
+        }
+        try {
+            long now = System.currentTimeMillis();
+            long[] stats = new long[2];
+            List<Handoff.Entry> entries = Handoff.read(spool, stats);
+            throttle.add(stats[0], stats[1]);
+            for (Handoff.Entry entry : entries) {
+                if (entry.body != null) {
+                    byte[] body = entry.body;
+                    synchronized (recordLock) {
+                        // spool中的记录全部内联，已有的key不必转换
+                        if (CrashRecord.isRecord(body) && strings != null && !writer.contains(entry.key)) {
+                            body = CrashRecord.transcode(body, null, strings);
+                        }
+                        writer.write(entry.key, body, now, entry.occurrences);
+                    }
+                } else {
+                    writer.count(entry.key, now, entry.occurrences);
                 }
             }
+        } catch (IOException e) {
+            // 不完整的spool不会出现(rename之前不可见)，读不了的也不再重试
         }
-        return false;
+        spool.delete();
     }
 
+    /**
+     * @return 熔断中(收集端不可用)或上传队列已满返回false
+     */
+    private boolean flyBatch(final UploadBatch batch) {
+        if (!retryPolicy.allowRequest(System.currentTimeMillis())) {
+            settle(batch, null);
+            return false;
+        }
+        final List<String> keys = new ArrayList<String>(batch.getKeys());
+        keys.addAll(batch.getCountKeys());
+        inFlight.addAll(keys);
+        boolean submitted = HttpCat.flyBatch(batch, new HttpCat.AbstractBatchResponseListener() {
+            @Override
+            public void onSuccess(List<String> acknowledged) {
+                retryPolicy.onSuccess();
+                // 本批报告的累计次数：只有内容的计1次，带COUNT的以total为准
+                Map<String, Integer> totals = new HashMap<String, Integer>();
+                for (String key : batch.getKeys()) {
+                    totals.put(key, 1);
+                }
+                for (int i = 0; i < batch.getCountKeys().size(); i++) {
+                    totals.put(batch.getCountKeys().get(i), batch.getTotal(i));
+                }
+                // 在上传线程中标记为已上传；持锁，find到修改之间记录序号不会因compact改变
+                synchronized (journal) {
+                    for (String key : acknowledged) {
+                        int record = journal.find(DigestIndex.high(key), DigestIndex.low(key));
+                        if (record == DigestIndex.ABSENT || !totals.containsKey(key)) {
+                            continue;
+                        }
+                        try {
+                            // 发出之后又出现的次数留到下次
+                            journal.setReported(record, totals.get(key));
+                            if (journal.getAttempts(record) != 0) {
+                                journal.setRetry(record, 0, 0);
+                            }
+                            if (journal.getStatus(record) == BugJournal.STATUS_NEW) {
+                                journal.setStatus(record, BugJournal.STATUS_UPLOADED);
+                                if (journal.getSegment(record) == 0) {
+                                    new File(dir, key).delete();
+                                }
+                            }
+                        } catch (IOException e) {
+                        }
+                    }
+                }
+                settle(batch, acknowledged);
+                // 段中的记录都已上传后整段删除
+                reclaimSegments();
+                // 服务器没有确认的，稍后重传
+                List<String> rejected = new ArrayList<String>(keys);
+                rejected.removeAll(acknowledged);
+                scheduleRetry(rejected);
+                inFlight.removeAll(keys);
+            }
 
-    public void deliverBug(Throwable ex) {
-        deliverBug(getCrashInfo(ex));
+            @Override
+            public void onException(UploadBatch batch) {
+                retryPolicy.onFailure(System.currentTimeMillis());
+                scheduleRetry(keys);
+                inFlight.removeAll(keys);
+                settle(batch, null);
+            }
+
+            @Override
+            public void onCancelled(UploadBatch batch) {
+                // 网络断开时丢弃的批次没有发出，不影响退避，下次联网照常上传
+                inFlight.removeAll(keys);
+                settle(batch, null);
+            }
+        });
+        if (!submitted) {
+            inFlight.removeAll(keys);
+            settle(batch, null);
+        }
+        return submitted;
     }
 
     /**
-     * 唯一一处完整性检查，为保证效率，不做其他完整性检查
+     * 批次结束(发出或放弃)时处理附带的限流计数和设备信息
      *
-     * @return 若写入head不完整，则返回null
+     * @param acknowledged 收集端确认的key；没有发出或失败为null
      */
-    private String readAppVersion() {
-        BufferedReader reader = null;
-        String version = null;
-        try {
-            reader = new BufferedReader(new FileReader(file));
-            if ((version = runToLine(reader, APP_VERSION_INDEX)) == null) {
-                // 上次写入head没写完整，重新写一遍
-                writeHead(false);
-                version = getAppVersion();
-            }
-        } catch (FileNotFoundException e) {
-            // 文件不存在
-        } finally {
-            if (reader != null) {
+    private void settle(UploadBatch batch, List<String> acknowledged) {
+        long[] stats = batch.getStats();
+        if (stats != null) {
+            if (acknowledged != null) {
+                throttle.markReported(stats[0], stats[1]);
+            }
+            statsInFlight.set(false);
+        }
+        String hash = batch.getProfileHash();
+        if (hash != null && acknowledged != null) {
+            // 收集端有这份设备信息时确认其hash；只带hash却没有确认的，下一批重新带上内容
+            boolean known = acknowledged.contains(hash);
+            if (known || batch.getProfile() == null) {
                 try {
-                    reader.close();
+                    profile.setUploaded(hash, known);
                 } catch (IOException e) {
+                    // 只在内存中
                 }
             }
         }
-        return version;
+        if (batch.getProfile() != null) {
+            profileInFlight.set(false);
+        }
+    }
 
+    private void scheduleRetry(List<String> keys) {
+        long now = System.currentTimeMillis();
+        synchronized (journal) {
+            for (String key : keys) {
+                int record = journal.find(DigestIndex.high(key), DigestIndex.low(key));
+                if (record == DigestIndex.ABSENT) {
+                    continue;
+                }
+                int attempts = journal.getAttempts(record) + 1;
+                try {
+                    journal.setRetry(record, attempts, retryPolicy.nextAttempt(attempts, now));
+                } catch (IOException e) {
+                }
+            }
+        }
     }
 
     /**
-     * 如果index大于文件目前的行数返回null
-     *
-     * @param reader
-     * @param index
-     * @return
+     * 同{@link #deliverBug(String)}，编码也推迟到写入线程
      */
-    private String runToLine(BufferedReader reader, int index) {
-        String line = null;
-        for (int i = 0; i < index; i++) {
-            try {
-                line = reader.readLine();
-            } catch (IOException e) {
-                // 读到文件末尾
-                return null;
-            }
-        }
-        return line;
+    public void deliverBug(Throwable ex) {
+        reportQueue.offer(ex);
     }
 
     /**
      * 若app版本变更，bug文件清空重写
-     * 向服务器发送所需信息，可由http请求user-agent获取，可不用在此处获取，以节省流量
+     * 只在setUpStorage中查询一次
      *
-     * @return
+     * @return 查不到返回null
      */
-    private String getAppVersion() {
-        // 获取packagemanager的实例
-        PackageManager packageManager = context.getPackageManager();
-        // getPackageName()是你当前类的包名，0代表是获取版本信息
-        PackageInfo packInfo = null;
+    private PackageInfo getPackageInfo() {
         try {
-            packInfo = packageManager.getPackageInfo(context.getPackageName(), 0);
-            return packInfo.versionName;
+            return context.getPackageManager().getPackageInfo(context.getPackageName(), 0);
         } catch (PackageManager.NameNotFoundException e) {
-            return "get app version failed";
+            return null;
         }
     }
 
     /**
-     * 向服务器发送所需信息，可由http请求user-agent获取，可不用在此处获取，以节省流量
+     * 设备信息：版本号和Build的全部字段，按字段名排序，同一台设备、同一个版本每次采集的内容相同
+     * 反射开销较大，只在app版本或系统版本变更后采集一次，见setUpProfile
      *
      * @return
      */
-    private String getPhoneInfo() {
+    private String collectProfile(PackageInfo packageInfo) {
         StringBuilder sb = new StringBuilder();
-        try {
-            PackageManager pm = context.getPackageManager();
-            PackageInfo pi = pm.getPackageInfo(context.getPackageName(), PackageManager.GET_ACTIVITIES);
-            if (pi != null) {
-                String versionName = pi.versionName == null ? "null" : pi.versionName;
-                String versionCode = pi.versionCode + "";
-                sb.append("versionName:" + versionName + "\n");
-                sb.append("versionCode:" + versionCode + "\n");
-            }
-        } catch (PackageManager.NameNotFoundException e) {
+        if (packageInfo != null) {
+            sb.append("versionName:").append(packageInfo.versionName).append("\n");
+            sb.append("versionCode:").append(packageInfo.versionCode).append("\n");
         }
+        sb.append("SDK_INT:").append(Build.VERSION.SDK_INT).append("\n");
+        sb.append("RELEASE:").append(Build.VERSION.RELEASE).append("\n");
         Field[] fields = Build.class.getDeclaredFields();
+        Arrays.sort(fields, new Comparator<Field>() {
+            @Override
+            public int compare(Field lhs, Field rhs) {
+                return lhs.getName().compareTo(rhs.getName());
+            }
+        });
         for (Field field : fields) {
             try {
                 field.setAccessible(true);
-                sb.append(field.getName() + ":" + field.get(null).toString() + "\n");
+                Object value = field.get(null);
+                // 数组按内容输出，不输出各进程不同的identity hash
+                sb.append(field.getName()).append(":")
+                        .append(value instanceof Object[] ? Arrays.toString((Object[]) value) : String.valueOf(value))
+                        .append("\n");
             } catch (Exception e) {
             }
         }
-        String result = sb.toString();
-        return result.equals("") ? "get phone info failed" : result;
+        return sb.toString();
     }
 
     /**
@@ -435,28 +1030,8 @@ public class BugCat implements Thread.UncaughtExceptionHandler {
      * disk filename.
      */
     private String hashKeyForDisk(String key) {
-        String cacheKey;
-        try {
-            final MessageDigest mDigest = MessageDigest.getInstance("MD5");
-            mDigest.update(key.getBytes());
-            cacheKey = bytesToHexString(mDigest.digest());
-        } catch (NoSuchAlgorithmException e) {
-            cacheKey = String.valueOf(key.hashCode());
-        }
-        return cacheKey;
-    }
-
-    private String bytesToHexString(byte[] bytes) {
-        // http://stackoverflow.com/questions/332079
-        StringBuilder sb = new StringBuilder();
-        for (int i = 0; i < bytes.length; i++) {
-            String hex = Integer.toHexString(0xFF & bytes[i]);
-            if (hex.length() == 1) {
-                sb.append('0');
-            }
-            sb.append(hex);
-        }
-        return sb.toString();
+        // 只在写入线程中调用，复用实例；与BugWriter.keyOf结果相同
+        return fingerprint.hash(key).toKey();
     }
 
     /**
@@ -475,8 +1050,8 @@ public class BugCat implements Thread.UncaughtExceptionHandler {
                 Environment.MEDIA_MOUNTED.equals(Environment.getExternalStorageState()) ||
                         !isExternalStorageRemovable() ? getExternalCacheDir(context).getPath() :
                         context.getCacheDir().getPath();
-        /*return new File(cachePath + File.separator + uniqueName);*/
-        return new File("/sdcard/" + uniqueName);
+        // 每个app各自的目录，不与其他使用本库的app共用
+        return new File(cachePath + File.separator + uniqueName);
     }
 
     public boolean isWifi() {
@@ -524,6 +1099,17 @@ public class BugCat implements Thread.UncaughtExceptionHandler {
 
     @Override
     public void uncaughtException(Thread thread, Throwable ex) {
+        if (!crashing.compareAndSet(false, true)) {
+            // 已有线程在处理崩溃并即将结束进程：只入队(来得及就写入)，然后等进程退出，
+            // 不与之争用崩溃槽，也不让本线程先于它结束
+            deliverBug(ex);
+            while (true) {
+                try {
+                    Thread.sleep(Long.MAX_VALUE);
+                } catch (InterruptedException e) {
+                }
+            }
+        }
         handleException(ex);
         /*// 退出程序，移到成功将信息上传后执行
         android.os.Process.killProcess(android.os.Process.myPid());
@@ -538,50 +1124,68 @@ public class BugCat implements Thread.UncaughtExceptionHandler {
      * bug  :/ by zero
      * cause:null
      * path :12->fun->Test->Test.java
+     * <p/>
+     * 之后是完整的调用栈和cause/suppressed链，见{@link TraceEncoder}
      *
      * @param ex
      */
     protected void handleException(Throwable ex) {
-        Toast.makeText(context, "很抱歉,程序出现异常,即将退出.", Toast.LENGTH_SHORT).show();
-        deliverBug(ex);
-        // 退出程序
-        android.os.Process.killProcess(android.os.Process.myPid());
-        System.exit(1);
+        try {
+            // 先写崩溃槽，此时不做分配和文件打开；槽不可用时退回普通流程
+            if (crashSlot == null || !crashSlot.write(ex, crashFingerprint, crashEncoder)) {
+                deliverBug(ex);
+                // 等写入线程把它(以及排在前面的)写完再退出；异步初始化尚未完成时先等存储就绪
+                long start = System.currentTimeMillis();
+                try {
+                    readyLatch.await(CRASH_FLUSH_WAIT, TimeUnit.MILLISECONDS);
+                } catch (InterruptedException e) {
+                }
+                reportQueue.awaitIdle(Math.max(0, CRASH_FLUSH_WAIT - (System.currentTimeMillis() - start)));
+            }
+            // 崩溃的多是没有Looper的后台线程，在那里makeText会抛异常；进程马上结束，也不必再投递到主线程
+            if (Looper.myLooper() != null) {
+                Toast.makeText(context, "很抱歉,程序出现异常,即将退出.", Toast.LENGTH_SHORT).show();
+            }
+        } finally {
+            // 退出程序：上面无论出什么错都要结束进程，否则崩溃的线程死掉而进程半死不活地留着
+            android.os.Process.killProcess(android.os.Process.myPid());
+            System.exit(1);
+        }
     }
 
-    // TODO: 2015-12-11 信息是否详细待测
-    private String getCrashInfo(Throwable ex) {
-        StackTraceElement[] elements = ex.getStackTrace();
-        if (elements.length == 0) {
-            return "get crash info failed";
+    // 只在写入线程中调用，编码进复用的缓冲区，只为结果分配一次
+    // 编码为二进制记录，名字追加到字符串表；收集端还原出的文本与崩溃槽的相同，同一个崩溃无论走哪条路径内容都相同
+    private byte[] getCrashInfo(Throwable ex) {
+        if (traceBuffer == null) {
+            traceBuffer = ByteBuffer.allocate(CrashSlot.SLOT_SIZE);
+        }
+        traceBuffer.clear();
+        StringTable strings = this.strings;
+        if (strings != null) {
+            try {
+                crashRecord.encode(ex, strings, traceBuffer);
+                return Arrays.copyOf(traceBuffer.array(), traceBuffer.position());
+            } catch (IOException e) {
+                // 字符串表写不了，退回文本
+                traceBuffer.clear();
+            }
         }
-        StackTraceElement element0 = ex.getStackTrace()[0];
-        String bug = "bug  :" + ex.getMessage();
-        String cause = "cause:" + ex.getCause();
-        String path = "path :" + element0.getLineNumber() + "->" + element0.getMethodName() + "->" + element0.getClassName() + "->" + element0.getFileName();
-        System.out.println(bug + "\n" + cause + "\n" + path);
-        return bug + "\n" + cause + "\n" + path;
+        traceEncoder.encode(ex, traceBuffer);
+        return Arrays.copyOf(traceBuffer.array(), traceBuffer.position());
     }
 
     public class ConnectionChangeReceiver extends BroadcastReceiver {
         @Override
         public void onReceive(Context context, Intent intent) {
             ConnectivityManager connectivityManager = (ConnectivityManager) context.getSystemService(Context.CONNECTIVITY_SERVICE);
-            NetworkInfo wifiNetInfo = connectivityManager.getNetworkInfo(ConnectivityManager.TYPE_WIFI);
-            uploadStepByStep();
-            /*if (wifiNetInfo.isConnected()) {
-                // 在打开wifi的情况下，上传bug信息
-                uploadStepByStep();
-            }*/
-            new Handler().postDelayed(new Runnable() {
-                @Override
-                public void run() {
-                    if (tempFile.exists()) {
-                        file.delete();
-                        tempFile.renameTo(new File(dir, "bug"));
-                    }
-                }
-            }, 10000);
+            NetworkInfo activeNetInfo = connectivityManager.getActiveNetworkInfo();
+            if (activeNetInfo == null || !activeNetInfo.isConnected()) {
+                // 网络断开，排队中的上传注定失败，直接丢弃
+                HttpCat.cancelAll();
+                return;
+            }
+            // 只标记有活要干，扫描在调度线程中进行，连发的广播合并为一次；仅Wi-Fi等条件见setWifiOnly
+            scheduler.request();
         }
     }
 
@@ -17,7 +17,8 @@ public class MainActivity extends AppCompatActivity {
     protected void onCreate(Bundle savedInstanceState) {
         super.onCreate(savedInstanceState);
         setContentView(R.layout.activity_main);
-        BugCat.getInstance().initial(MainActivity.this);
+        // 存储在后台线程准备，不占用冷启动时间
+        BugCat.getInstance().initialAsync(MainActivity.this);
 
         TextView tv_show = (TextView) findViewById(R.id.tv_show);
         File path = getExternalFilesDir(Environment.DIRECTORY_MUSIC);
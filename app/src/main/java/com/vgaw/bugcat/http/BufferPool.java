@@ -0,0 +1,38 @@
+package com.vgaw.bugcat.http;
+
+import java.util.ArrayDeque;
+
+/**
+ * 上传时复用的定长byte[]，文件 -> socket、socket -> 响应解析都用它做中转，
+ * 避免每次请求都分配新的缓冲区。池中最多保留MAX_POOLED个，多出来的交给GC。
+ */
+public class BufferPool {
+    public static final int BUFFER_SIZE = 8 * 1024;
+    private static final int MAX_POOLED = 4;
+
+    private static final ArrayDeque<byte[]> pool = new ArrayDeque<byte[]>(MAX_POOLED);
+
+    private BufferPool() {
+    }
+
+    public static byte[] acquire() {
+        synchronized (pool) {
+            byte[] buffer = pool.pollFirst();
+            if (buffer != null) {
+                return buffer;
+            }
+        }
+        return new byte[BUFFER_SIZE];
+    }
+
+    public static void release(byte[] buffer) {
+        if (buffer == null || buffer.length != BUFFER_SIZE) {
+            return;
+        }
+        synchronized (pool) {
+            if (pool.size() < MAX_POOLED) {
+                pool.addFirst(buffer);
+            }
+        }
+    }
+}
@@ -0,0 +1,432 @@
+package com.vgaw.bugcat.http;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.charset.Charset;
+import java.util.ArrayDeque;
+import java.util.Iterator;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * 到收集端的持久连接池，keep-alive模式下代替每次请求新建HttpURLConnection + Connection: close。
+ * <p/>
+ * 只实现上传所需的最小HTTP/1.1子集：POST，请求体定长或chunked，响应体按Content-Length/chunked/直到关闭读取。
+ * 连接用完放回池中，空闲超过idleTimeout即关闭；池中最多保留maxIdle条。
+ * connect/reuse次数用于观察省下的握手。
+ */
+public class ConnectionPool {
+    private static final Charset US_ASCII = Charset.forName("US-ASCII");
+    private static final byte[] LAST_CHUNK = {'0', '\r', '\n', '\r', '\n'};
+    // 收集端的响应只有确认的key，超过的视为异常，不按它分配内存
+    static final int MAX_RESPONSE_BODY = 4 * 1024 * 1024;
+
+    private final String host;
+    private final int port;
+    private final int maxIdle;
+    private final long idleTimeout;
+    private int connectTimeout = 3000;
+    private int readTimeout = 3000;
+
+    private final ArrayDeque<Connection> idle = new ArrayDeque<Connection>();
+    private final AtomicInteger connectCount = new AtomicInteger();
+    private final AtomicInteger reuseCount = new AtomicInteger();
+    private ScheduledExecutorService cleaner;
+    private boolean cleanerScheduled;
+
+    public ConnectionPool(String host, int port, int maxIdle, long idleTimeout) {
+        this.host = host;
+        this.port = port;
+        this.maxIdle = maxIdle;
+        this.idleTimeout = idleTimeout;
+    }
+
+    public void setTimeouts(int connectTimeout, int readTimeout) {
+        this.connectTimeout = connectTimeout;
+        this.readTimeout = readTimeout;
+    }
+
+    public String getHost() {
+        return host;
+    }
+
+    public int getPort() {
+        return port;
+    }
+
+    /**
+     * @return 新建连接(即完整握手)的次数
+     */
+    public int getConnectCount() {
+        return connectCount.get();
+    }
+
+    /**
+     * @return 复用池中连接的次数
+     */
+    public int getReuseCount() {
+        return reuseCount.get();
+    }
+
+    public synchronized int getIdleCount() {
+        return idle.size();
+    }
+
+    /**
+     * 发送一次POST请求，headers依次为name, value。复用的连接可能已被服务器关闭，此时换新连接重发一次。
+     */
+    public HttpCat.Response post(String path, String[] headers, HttpCat.Body body) throws IOException {
+        Connection connection = takeIdle();
+        if (connection != null) {
+            try {
+                return execute(connection, path, headers, body);
+            } catch (IOException e) {
+                // 复用的连接已失效，换新连接重试
+                if (!connection.responseStarted) {
+                    connection.close();
+                    reuseCount.decrementAndGet();
+                } else {
+                    throw e;
+                }
+            }
+        }
+        return execute(connect(), path, headers, body);
+    }
+
+    /**
+     * @param headers 依次为name, value
+     */
+    private HttpCat.Response execute(Connection connection, String path, String[] headers, HttpCat.Body body)
+            throws IOException {
+        boolean reusable = false;
+        try {
+            int length = body.length();
+            StringBuilder head = new StringBuilder(160);
+            head.append("POST /").append(path).append(" HTTP/1.1\r\n");
+            head.append("Host: ").append(host).append(':').append(port).append("\r\n");
+            for (int i = 0; i < headers.length; i += 2) {
+                head.append(headers[i]).append(": ").append(headers[i + 1]).append("\r\n");
+            }
+            if (length >= 0) {
+                head.append("Content-Length: ").append(length).append("\r\n");
+            } else {
+                head.append("Transfer-Encoding: chunked\r\n");
+            }
+            head.append("Connection: keep-alive\r\n\r\n");
+            connection.out.write(head.toString().getBytes(US_ASCII));
+            if (length >= 0) {
+                body.writeTo(connection.out);
+            } else {
+                ChunkedOutputStream chunked = new ChunkedOutputStream(connection.out);
+                body.writeTo(chunked);
+                chunked.finish();
+            }
+            connection.out.flush();
+
+            HttpCat.Response response = readResponse(connection);
+            reusable = connection.reusable;
+            return response;
+        } finally {
+            if (reusable) {
+                release(connection);
+            } else {
+                connection.close();
+            }
+        }
+    }
+
+    private HttpCat.Response readResponse(Connection connection) throws IOException {
+        InputStream in = connection.in;
+        String statusLine = readLine(in);
+        if (statusLine == null) {
+            throw new EOFException("connection closed before response");
+        }
+        connection.responseStarted = true;
+        String[] parts = statusLine.split(" ");
+        if (parts.length < 2) {
+            throw new IOException("bad status line: " + statusLine);
+        }
+        int code;
+        try {
+            code = Integer.parseInt(parts[1]);
+        } catch (NumberFormatException e) {
+            throw new IOException("bad status line: " + statusLine);
+        }
+        if (code < 100 || code > 999) {
+            throw new IOException("bad status line: " + statusLine);
+        }
+        int contentLength = -1;
+        boolean chunked = false;
+        boolean close = statusLine.startsWith("HTTP/1.0");
+        String line;
+        while ((line = readLine(in)) != null && line.length() > 0) {
+            int colon = line.indexOf(':');
+            if (colon <= 0) {
+                continue;
+            }
+            String name = line.substring(0, colon).trim();
+            String value = line.substring(colon + 1).trim();
+            if ("Content-Length".equalsIgnoreCase(name)) {
+                contentLength = parseLength(value, 10, "bad Content-Length");
+            } else if ("Transfer-Encoding".equalsIgnoreCase(name)) {
+                chunked = "chunked".equalsIgnoreCase(value);
+            } else if ("Connection".equalsIgnoreCase(name)) {
+                close = "close".equalsIgnoreCase(value);
+            }
+        }
+        byte[] responseBody;
+        if (chunked) {
+            responseBody = readChunked(in);
+        } else if (contentLength >= 0) {
+            responseBody = new byte[contentLength];
+            readFully(in, responseBody);
+        } else {
+            // 既无长度也非chunked，读到连接关闭为止
+            responseBody = HttpCat.readInputStream(in);
+            close = true;
+        }
+        connection.reusable = !close;
+        return new HttpCat.Response(code, responseBody);
+    }
+
+    private synchronized Connection takeIdle() {
+        long now = System.currentTimeMillis();
+        Connection connection;
+        while ((connection = idle.pollLast()) != null) {
+            if (now - connection.idleSince < idleTimeout && !connection.socket.isClosed()) {
+                reuseCount.incrementAndGet();
+                connection.responseStarted = false;
+                return connection;
+            }
+            connection.close();
+        }
+        return null;
+    }
+
+    private Connection connect() throws IOException {
+        Socket socket = new Socket();
+        try {
+            socket.connect(new InetSocketAddress(host, port), connectTimeout);
+            socket.setSoTimeout(readTimeout);
+            socket.setTcpNoDelay(true);
+        } catch (IOException e) {
+            socket.close();
+            throw e;
+        }
+        connectCount.incrementAndGet();
+        return new Connection(socket);
+    }
+
+    private synchronized void release(Connection connection) {
+        if (idle.size() >= maxIdle) {
+            connection.close();
+            return;
+        }
+        connection.idleSince = System.currentTimeMillis();
+        idle.addLast(connection);
+        scheduleCleaner();
+    }
+
+    /**
+     * 关闭空闲超时的连接
+     */
+    public synchronized void evictIdle() {
+        long now = System.currentTimeMillis();
+        Iterator<Connection> iterator = idle.iterator();
+        while (iterator.hasNext()) {
+            Connection connection = iterator.next();
+            if (now - connection.idleSince >= idleTimeout) {
+                iterator.remove();
+                connection.close();
+            }
+        }
+    }
+
+    /**
+     * 关闭所有空闲连接
+     */
+    public synchronized void close() {
+        Connection connection;
+        while ((connection = idle.pollFirst()) != null) {
+            connection.close();
+        }
+        if (cleaner != null) {
+            cleaner.shutdownNow();
+            cleaner = null;
+            cleanerScheduled = false;
+        }
+    }
+
+    private void scheduleCleaner() {
+        if (cleanerScheduled) {
+            return;
+        }
+        if (cleaner == null) {
+            cleaner = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+                @Override
+                public Thread newThread(Runnable r) {
+                    Thread thread = new Thread(r, "BugCat-pool-cleaner");
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+        }
+        cleanerScheduled = true;
+        cleaner.schedule(new Runnable() {
+            @Override
+            public void run() {
+                synchronized (ConnectionPool.this) {
+                    cleanerScheduled = false;
+                    evictIdle();
+                    if (!idle.isEmpty()) {
+                        scheduleCleaner();
+                    }
+                }
+            }
+        }, idleTimeout, TimeUnit.MILLISECONDS);
+    }
+
+    private static byte[] readChunked(InputStream in) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        while (true) {
+            String sizeLine = readLine(in);
+            if (sizeLine == null) {
+                throw new EOFException();
+            }
+            int semicolon = sizeLine.indexOf(';');
+            int size = parseLength((semicolon < 0 ? sizeLine : sizeLine.substring(0, semicolon)).trim(), 16,
+                    "bad chunk size");
+            if (size > MAX_RESPONSE_BODY - out.size()) {
+                throw new IOException("bad chunk size: " + sizeLine);
+            }
+            if (size == 0) {
+                String trailer;
+                while ((trailer = readLine(in)) != null && trailer.length() > 0) {
+                }
+                return out.toByteArray();
+            }
+            byte[] chunk = new byte[size];
+            readFully(in, chunk);
+            out.write(chunk);
+            readLine(in);
+        }
+    }
+
+    /**
+     * 解析服务器给出的长度，非数字、负数或超过{@link #MAX_RESPONSE_BODY}都按响应异常处理，连接随之关闭
+     */
+    static int parseLength(String value, int radix, String message) throws IOException {
+        int length;
+        try {
+            length = Integer.parseInt(value, radix);
+        } catch (NumberFormatException e) {
+            throw new IOException(message + ": " + value);
+        }
+        if (length < 0 || length > MAX_RESPONSE_BODY) {
+            throw new IOException(message + ": " + value);
+        }
+        return length;
+    }
+
+    private static void readFully(InputStream in, byte[] buffer) throws IOException {
+        int offset = 0;
+        while (offset < buffer.length) {
+            int read = in.read(buffer, offset, buffer.length - offset);
+            if (read < 0) {
+                throw new EOFException();
+            }
+            offset += read;
+        }
+    }
+
+    private static String readLine(InputStream in) throws IOException {
+        StringBuilder sb = new StringBuilder();
+        int c;
+        while ((c = in.read()) != -1) {
+            if (c == '\n') {
+                int length = sb.length();
+                if (length > 0 && sb.charAt(length - 1) == '\r') {
+                    sb.setLength(length - 1);
+                }
+                return sb.toString();
+            }
+            sb.append((char) c);
+        }
+        return sb.length() == 0 ? null : sb.toString();
+    }
+
+    private static class Connection {
+        final Socket socket;
+        final InputStream in;
+        final OutputStream out;
+        long idleSince;
+        boolean reusable;
+        boolean responseStarted;
+
+        Connection(Socket socket) throws IOException {
+            this.socket = socket;
+            this.in = new BufferedInputStream(socket.getInputStream());
+            this.out = new BufferedOutputStream(socket.getOutputStream(), BufferPool.BUFFER_SIZE);
+        }
+
+        void close() {
+            try {
+                socket.close();
+            } catch (IOException e) {
+            }
+        }
+    }
+
+    /**
+     * 长度未知的请求体(如边读边压缩)按chunked编码写出
+     */
+    private static class ChunkedOutputStream extends OutputStream {
+        private final OutputStream out;
+
+        ChunkedOutputStream(OutputStream out) {
+            this.out = out;
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            write(new byte[]{(byte) b}, 0, 1);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            if (len == 0) {
+                return;
+            }
+            out.write(Integer.toHexString(len).getBytes(US_ASCII));
+            out.write('\r');
+            out.write('\n');
+            out.write(b, off, len);
+            out.write('\r');
+            out.write('\n');
+        }
+
+        void finish() throws IOException {
+            out.write(LAST_CHUNK);
+        }
+
+        @Override
+        public void flush() throws IOException {
+            out.flush();
+        }
+
+        @Override
+        public void close() {
+            // 不关闭底层连接
+        }
+    }
+}
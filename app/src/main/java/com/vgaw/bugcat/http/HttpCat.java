@@ -1,26 +1,133 @@
 package com.vgaw.bugcat.http;
 
-import android.os.AsyncTask;
-
 import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
 import java.net.HttpURLConnection;
 import java.net.URL;
+import java.util.List;
 
 /**
  * Created by Administrator on 2015/10/25.
  */
 public class HttpCat {
+    private static String host = "192.168.1.114";
+    private static int port = 7778;
     private static String uri = "http://192.168.1.114:7778/";
+    private static final String BATCH_PATH = "batch";
+    private static final String OFFER_PATH = "batch/offer";
+
+    // keep-alive模式下的连接池，null表示每次请求新建连接
+    private static volatile ConnectionPool pool;
+    private static final int POOL_MAX_IDLE = 2;
+    private static final long POOL_IDLE_TIMEOUT = 30 * 1000;
+
+    // 请求体压缩方式，见PayloadCodec；太短的请求体不压缩
+    private static volatile int compression = PayloadCodec.NONE;
+    private static final int MIN_COMPRESS_LENGTH = 128;
+
+    // 上传内容之前先问收集端需要哪些，见requestBatch
+    private static volatile boolean negotiation = true;
+    // 收集端不支持协商(offer返回404/405/501)，换地址之前不再问
+    private static volatile boolean offerUnsupported;
+
+    // 专用的上传线程池，默认2个并发、排队16个
+    private static volatile Uploader uploader = new Uploader(2, 16);
 
     public static void setUri(String uri1){
-        uri = "http://" + uri1 + ":7778/";
+        setUri(uri1, 7778);
+    }
+
+    public static synchronized void setUri(String host, int port){
+        HttpCat.host = host;
+        HttpCat.port = port;
+        uri = "http://" + host + ":" + port + "/";
+        offerUnsupported = false;
+        if (pool != null) {
+            // 地址变了，旧连接作废
+            setKeepAlive(true);
+        }
+    }
+
+    /**
+     * 开启后，上传复用到收集端的持久连接，空闲一段时间后自动关闭
+     */
+    public static synchronized void setKeepAlive(boolean keepAlive){
+        if (pool != null) {
+            pool.close();
+            pool = null;
+        }
+        if (keepAlive) {
+            pool = new ConnectionPool(host, port, POOL_MAX_IDLE, POOL_IDLE_TIMEOUT);
+        }
+    }
+
+    /**
+     * @param compression PayloadCodec.NONE/GZIP/DEFLATE，DEFLATE需要服务器持有同一份预置字典
+     */
+    public static void setCompression(int compression){
+        HttpCat.compression = compression;
+    }
+
+    /**
+     * 开启(默认)后，批量上传先只发key，收集端已有内容的只上报次数，见{@link #requestBatch}
+     */
+    public static void setNegotiation(boolean negotiation){
+        HttpCat.negotiation = negotiation;
+    }
+
+    /**
+     * @return keep-alive模式下新建连接的次数，未开启时为0
+     */
+    public static int getConnectCount(){
+        ConnectionPool pool = HttpCat.pool;
+        return pool == null ? 0 : pool.getConnectCount();
     }
 
-    public static void fly(String request, AbstractResponseListener listener){
-        new MyAsnyTask(listener).execute(request);
+    /**
+     * @return keep-alive模式下复用连接的次数，未开启时为0
+     */
+    public static int getReuseCount(){
+        ConnectionPool pool = HttpCat.pool;
+        return pool == null ? 0 : pool.getReuseCount();
+    }
+
+    /**
+     * 设置上传线程池的并发数和排队数，已排队的任务会被丢弃
+     */
+    public static synchronized void setUploaderLimits(int concurrency, int queueCapacity){
+        uploader.shutdown();
+        uploader = new Uploader(concurrency, queueCapacity);
+    }
+
+    /**
+     * 丢弃排队中的上传(如网络断开)，被丢弃的单条上传回调onException，批量上传回调onCancelled
+     */
+    public static void cancelAll(){
+        uploader.cancelAll();
+    }
+
+    public static Uploader getUploader(){
+        return uploader;
+    }
+
+    /**
+     * 回调在上传线程中执行
+     *
+     * @return 上传队列已满返回false，此时不会回调
+     */
+    public static boolean fly(String request, AbstractResponseListener listener){
+        return uploader.submit(new FlyTask(request, listener));
+    }
+
+    /**
+     * 一次请求上传一批bug，回调在上传线程中执行
+     *
+     * @return 上传队列已满返回false，此时不会回调
+     */
+    public static boolean flyBatch(UploadBatch batch, AbstractBatchResponseListener listener){
+        return uploader.submit(new BatchTask(batch, listener));
     }
 
     public interface OnResponseListener{
@@ -38,34 +145,147 @@ public class HttpCat {
         public void onException(String flyCat) {}
     }
 
-    private static class MyAsnyTask extends AsyncTask<String, Void, String>{
-        private AbstractResponseListener listener;
+    public interface OnBatchResponseListener{
+        /**
+         * @param acknowledged 服务器确认收下的key，未出现的key需要重传
+         */
+        void onSuccess(List<String> acknowledged);
+        void onException(UploadBatch batch);
+        /**
+         * 还没发出就被{@link #cancelAll()}丢弃，不算作失败
+         */
+        void onCancelled(UploadBatch batch);
+    }
+
+    public static class AbstractBatchResponseListener implements OnBatchResponseListener{
+        @Override
+        public void onSuccess(List<String> acknowledged) {}
+        @Override
+        public void onException(UploadBatch batch) {}
+        @Override
+        public void onCancelled(UploadBatch batch) {}
+    }
+
+    /**
+     * 请求体
+     */
+    interface Body{
+        /**
+         * @return 字节数，未知时返回-1，此时以chunked发送
+         */
+        int length();
+        void writeTo(OutputStream out) throws IOException;
+    }
+
+    static class BytesBody implements Body{
+        private final byte[] bytes;
+
+        BytesBody(byte[] bytes){
+            this.bytes = bytes;
+        }
+
+        @Override
+        public int length() {
+            return bytes.length;
+        }
+
+        @Override
+        public void writeTo(OutputStream out) throws IOException {
+            out.write(bytes);
+        }
+    }
+
+    /**
+     * 压缩后的请求体，长度未知
+     */
+    static class EncodedBody implements Body{
+        private final Body raw;
+        private final int compression;
+
+        EncodedBody(Body raw, int compression){
+            this.raw = raw;
+            this.compression = compression;
+        }
 
-        public MyAsnyTask(AbstractResponseListener listener){
+        @Override
+        public int length() {
+            return -1;
+        }
+
+        @Override
+        public void writeTo(OutputStream out) throws IOException {
+            OutputStream encoder = PayloadCodec.encoder(compression, out);
+            raw.writeTo(encoder);
+            // 只结束压缩流，不关闭out
+            encoder.close();
+        }
+    }
+
+    static class Response{
+        final int code;
+        final byte[] body;
+
+        Response(int code, byte[] body){
+            this.code = code;
+            this.body = body;
+        }
+    }
+
+    private static class BatchTask implements Uploader.Task{
+        private final UploadBatch batch;
+        private final AbstractBatchResponseListener listener;
+
+        BatchTask(UploadBatch batch, AbstractBatchResponseListener listener){
+            this.batch = batch;
             this.listener = listener;
         }
 
         @Override
-        protected void onPreExecute() {
+        public void run() {
+            List<String> acknowledged;
+            try {
+                acknowledged = requestBatch(batch);
+            } catch (Exception e) {
+                // 异常的响应也只算这一批失败，不能抛到上传线程里带崩宿主app
+                acknowledged = null;
+            }
             if (listener != null){
-                listener.onPreExecute();
+                if (acknowledged != null){
+                    listener.onSuccess(acknowledged);
+                }else {
+                    listener.onException(batch);
+                }
             }
         }
 
         @Override
-        protected String doInBackground(String... params) {
-            try {
-                return requestForResult(params[0]);
-            } catch (Exception e) {
-                return null;
+        public void cancel() {
+            if (listener != null){
+                listener.onCancelled(batch);
             }
-            /*if (isCancelled()){
-                break;
-            }*/
+        }
+    }
+
+    private static class FlyTask implements Uploader.Task{
+        private final String request;
+        private final AbstractResponseListener listener;
+
+        FlyTask(String request, AbstractResponseListener listener){
+            this.request = request;
+            this.listener = listener;
         }
 
         @Override
-        protected void onPostExecute(String flyCat) {
+        public void run() {
+            if (listener != null){
+                listener.onPreExecute();
+            }
+            String flyCat;
+            try {
+                flyCat = requestForResult(request);
+            } catch (Exception e) {
+                flyCat = null;
+            }
             if (listener != null){
                 if (flyCat != null){
                     listener.onSuccess(flyCat);
@@ -76,63 +296,116 @@ public class HttpCat {
         }
 
         @Override
-        protected void onCancelled(String flyCat) {
-            super.onCancelled(flyCat);
+        public void cancel() {
+            if (listener != null){
+                listener.onException(null);
+            }
         }
     }
 
     public void request(String flyCat) {
-        URL url = null;
-        InputStream in = null;
-        OutputStream out = null;
         try {
-            url = new URL(uri);
-            HttpURLConnection conn = (HttpURLConnection) url.openConnection();
-            conn.setUseCaches(false);
-            conn.setDoInput(true);
-            conn.setDoOutput(true);
-            conn.setRequestMethod("POST");
-            //conn.setInstanceFollowRedirects(true);
-            conn.setConnectTimeout(1000);
-            conn.setReadTimeout(1000);
-            conn.setRequestProperty("Content-Type", "text/plain");
-            conn.setRequestProperty("Connection", "close");
+            post("", "text/plain", new BytesBody(flyCat.getBytes()));
+        } catch (Exception e) {
+        }
+    }
 
-            out = conn.getOutputStream();
-            out.write(flyCat.getBytes());
-            out.flush();
+    public static String requestForResult(String flyCat) throws IOException {
+        Response response = post("", "text/plain", new BytesBody(flyCat.getBytes()));
+        return new String(response.body, "UTF-8");
+    }
 
-            if (conn.getResponseCode() == 200) {
-                in = conn.getInputStream();
-            } else {
-                in = conn.getErrorStream();
+    /**
+     * 同步上传一批bug。开启协商时分两步：
+     * <ol>
+     * <li>"/batch/offer"：请求体为带内容的key，每行一个；响应体为收集端还需要内容的key，格式同确认</li>
+     * <li>"/batch"：只带还需要的内容，其余的改为COUNT记录(见{@link UploadBatch#retain})，
+     * 同一个崩溃在N台设备上只上传一次内容，其余设备只上报次数</li>
+     * </ol>
+     * offer返回404/405/501说明收集端不支持协商，直接上传全部内容，换地址之前不再协商；
+     * 其他错误(如503)只让这一批上传全部内容，下一批照常协商。
+     *
+     * @return 服务器确认收下的key；收集端已有内容的key经COUNT确认
+     */
+    public static List<String> requestBatch(UploadBatch batch) throws IOException {
+        if (negotiation && !offerUnsupported && batch.size() > 0) {
+            List<String> needed = requestOffer(batch.getKeys());
+            if (needed != null && needed.size() < batch.size()) {
+                batch = batch.retain(needed);
             }
-        } catch (Exception e) {
-        }finally {
-            if (out != null){
-                try {
-                    out.close();
-                } catch (IOException e) {
-                    e.printStackTrace();
-                }
+        }
+        return postBatch(batch);
+    }
+
+    /**
+     * @return 收集端还需要内容的key；协商失败返回null
+     * @throws IOException 网络错误或响应异常
+     */
+    private static List<String> requestOffer(List<String> keys) throws IOException {
+        Response response;
+        try {
+            response = post(OFFER_PATH, "text/plain", new BytesBody(UploadBatch.writeAcknowledged(keys)));
+        } catch (RuntimeException e) {
+            throw new IOException(e);
+        }
+        if (response.code != 200) {
+            if (response.code == 404 || response.code == 405 || response.code == 501) {
+                offerUnsupported = true;
             }
-            if (in != null){
-                try {
-                    in.close();
-                } catch (IOException e) {
-                    e.printStackTrace();
-                }
+            return null;
+        }
+        // 只认本批中的key
+        List<String> needed = UploadBatch.readAcknowledged(response.body);
+        needed.retainAll(keys);
+        return needed;
+    }
+
+    private static List<String> postBatch(final UploadBatch batch) throws IOException {
+        Response response = post(BATCH_PATH, "application/octet-stream", new Body() {
+            @Override
+            public int length() {
+                return batch.length();
+            }
+
+            @Override
+            public void writeTo(OutputStream out) throws IOException {
+                batch.writeTo(out);
             }
+        });
+        if (response.code != 200) {
+            throw new IOException("batch rejected: " + response.code);
         }
+        return UploadBatch.readAcknowledged(response.body);
     }
 
-    public static String requestForResult(String flyCat) throws IOException {
-        URL url = null;
+    /**
+     * 所有请求的出口：按设置压缩请求体；keep-alive模式走连接池，否则每次新建连接并在响应后关闭
+     */
+    static Response post(String path, String contentType, Body body) throws IOException {
+        String[] headers = {"Content-Type", contentType};
+        int compression = HttpCat.compression;
+        if (compression != PayloadCodec.NONE && body.length() >= MIN_COMPRESS_LENGTH) {
+            // 边读边压，压缩后长度未知，以chunked发送
+            body = new EncodedBody(body, compression);
+            if (compression == PayloadCodec.DEFLATE) {
+                headers = new String[]{"Content-Type", contentType,
+                        "Content-Encoding", PayloadCodec.contentEncoding(compression),
+                        PayloadCodec.DICTIONARY_HEADER, PayloadCodec.DICTIONARY_ID};
+            } else {
+                headers = new String[]{"Content-Type", contentType,
+                        "Content-Encoding", PayloadCodec.contentEncoding(compression)};
+            }
+        }
+        ConnectionPool pool = HttpCat.pool;
+        if (pool != null) {
+            return pool.post(path, headers, body);
+        }
         OutputStream out = null;
         InputStream in = null;
+        HttpURLConnection conn = null;
         try {
-            url = new URL(uri);
-            HttpURLConnection conn = (HttpURLConnection) url.openConnection();
+            URL url = new URL(uri + path);
+            conn = (HttpURLConnection) url.openConnection();
             conn.setUseCaches(false);
             conn.setDoInput(true);
             conn.setDoOutput(true);
@@ -140,58 +413,86 @@ public class HttpCat {
             //conn.setInstanceFollowRedirects(true);
             conn.setConnectTimeout(3000);
             conn.setReadTimeout(3000);
-            conn.setRequestProperty("Content-Type", "text/plain");
+            if (body.length() >= 0) {
+                conn.setFixedLengthStreamingMode(body.length());
+            } else {
+                conn.setChunkedStreamingMode(BufferPool.BUFFER_SIZE);
+            }
+            for (int i = 0; i < headers.length; i += 2) {
+                conn.setRequestProperty(headers[i], headers[i + 1]);
+            }
             conn.setRequestProperty("Connection", "close");
 
             out = conn.getOutputStream();
-            out.write(flyCat.getBytes());
+            body.writeTo(out);
             out.flush();
 
-            if (conn.getResponseCode() == 200) {
+            int code = conn.getResponseCode();
+            if (code == 200) {
                 in = conn.getInputStream();
             } else {
                 in = conn.getErrorStream();
             }
-            return new String(readInputStream(in), "UTF-8");
-        }catch (Exception e){
-            throw e;
-        }finally {
+            byte[] data = in == null ? new byte[0] : readInputStream(in, conn.getContentLength());
+            if (data == null) {
+                throw new IOException("read response failed");
+            }
+            return new Response(code, data);
+        } finally {
             if (out != null){
                 try {
                     out.close();
                 } catch (IOException e) {
-                    throw e;
                 }
             }
             if (in != null){
                 try {
                     in.close();
                 } catch (IOException e) {
-                    throw e;
                 }
             }
+            if (conn != null){
+                conn.disconnect();
+            }
         }
     }
 
     public static byte[] readInputStream(InputStream inStream)  {
-        ByteArrayOutputStream outStream = new ByteArrayOutputStream();
-        byte[] buffer = new byte[1024];
-        int len = 0;
+        return readInputStream(inStream, -1);
+    }
+
+    /**
+     * 长度已知时直接读进定长数组，否则经由BufferPool的缓冲区中转
+     *
+     * @param contentLength 未知时传-1
+     * @return 读取失败返回null
+     */
+    public static byte[] readInputStream(InputStream inStream, int contentLength)  {
         try {
-            while ((len = inStream.read(buffer)) != -1) {
-                outStream.write(buffer, 0, len);
+            if (contentLength >= 0) {
+                byte[] data = new byte[contentLength];
+                int offset = 0;
+                while (offset < contentLength) {
+                    int len = inStream.read(data, offset, contentLength - offset);
+                    if (len < 0) {
+                        return null;
+                    }
+                    offset += len;
+                }
+                return data;
             }
-            byte[] data = outStream.toByteArray();
-            return data;
-        } catch (IOException e) {
-        }finally {
-            if (outStream != null){
-                try {
-                    outStream.close();
-                } catch (IOException e) {
-                    e.printStackTrace();
+            ByteArrayOutputStream outStream = new ByteArrayOutputStream();
+            byte[] buffer = BufferPool.acquire();
+            try {
+                int len;
+                while ((len = inStream.read(buffer)) != -1) {
+                    outStream.write(buffer, 0, len);
                 }
+            } finally {
+                BufferPool.release(buffer);
             }
+            return outStream.toByteArray();
+        } catch (IOException e) {
         }
         return null;
     }
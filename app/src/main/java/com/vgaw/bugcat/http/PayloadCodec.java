@@ -0,0 +1,252 @@
+package com.vgaw.bugcat.http;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.Charset;
+import java.util.zip.Adler32;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+import java.util.zip.Inflater;
+
+/**
+ * 请求体压缩：
+ * <ul>
+ * <li>{@link #GZIP}：Content-Encoding: gzip，通用，服务器无需额外配置</li>
+ * <li>{@link #DEFLATE}：Content-Encoding: deflate(zlib格式)，带预置字典{@link #DICTIONARY_ID}，
+ * 字典由批次中实际出现的内容组成：设备信息的字段、字符串表中常见的类名/方法名/文件名、常见的异常message，
+ * 以及文本记录(崩溃槽中的、手动提交的)的格式。单条bug很短时gzip几乎压不动，有了字典才压得下来</li>
+ * </ul>
+ * 服务器按X-BugCat-Dictionary取同一份字典解压，见{@link #decode}。上传的格式变了就换一份字典和id，
+ * 旧的字典留着解压旧客户端的请求。
+ */
+public class PayloadCodec {
+    public static final int NONE = 0;
+    public static final int GZIP = 1;
+    public static final int DEFLATE = 2;
+
+    public static final String DICTIONARY_HEADER = "X-BugCat-Dictionary";
+    public static final String DICTIONARY_ID = "bugcat-2";
+    // 设备信息按hash只发一次、崩溃改为二进制记录之前的字典，只用于解压
+    private static final String LEGACY_DICTIONARY_ID = "bugcat-1";
+
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    /**
+     * deflate的回溯距离越近编码越短，所以越常见的片段越靠后
+     */
+    private static final String[] DICTIONARY_PARTS = {
+            // 设备信息，见BugCat.collectProfile：字段按名字排序，数组按内容输出；每台设备只发一次，放在最前
+            "BOARD:", "BOOTLOADER:", "BRAND:", "CPU_ABI:arm64-v8a\n", "CPU_ABI2:\n", "DEVICE:", "DISPLAY:",
+            "FINGERPRINT:", ":user/release-keys\n", "HARDWARE:qcom\n", "HOST:", "ID:", "IS_DEBUGGABLE:false\n",
+            "MANUFACTURER:", "MODEL:", "PRODUCT:", "RADIO:unknown\n", "SERIAL:unknown\n",
+            "SUPPORTED_32_BIT_ABIS:[armeabi-v7a, armeabi]\n", "SUPPORTED_64_BIT_ABIS:[arm64-v8a]\n",
+            "SUPPORTED_ABIS:[arm64-v8a, armeabi-v7a, armeabi]\n", "TAGS:release-keys\n", "TIME:", "TYPE:user\n",
+            "UNKNOWN:unknown\n", "USER:", "versionName:", "versionCode:", "SDK_INT:", "RELEASE:",
+            // 文本记录的格式，见store.TraceEncoder
+            "bug  :", "\ncause:null", "\ncause:", "\npath :", "->onCreate->", "->onClick->", "->run->", ".java\n",
+            "Caused by: ", "\tSuppressed: ", "\t... ", " more\n", " more (recursion)\n",
+            "\tat android.app.ActivityThread.main(ActivityThread.java:",
+            "\tat android.os.Handler.dispatchMessage(Handler.java:",
+            "\tat android.os.Looper.loop(Looper.java:",
+            // 常见的异常message，二进制记录中也是内联的
+            "Unable to start activity ComponentInfo{", "Invalid index ", ", size is ", "length=", "; index=",
+            "divide by zero", "Invalid int: ", "cannot be cast to ", "Attempt to read from field '",
+            "Attempt to invoke interface method '", "Attempt to invoke virtual method '",
+            "' on a null object reference",
+            // 字符串表中的名字(见store.CrashRecord)：文件名、方法名、类名，按包由少到多
+            "ZygoteInit.java", "RuntimeInit.java", "Instrumentation.java", "Activity.java", "View.java",
+            "Thread.java", "Method.java", "Handler.java", "Looper.java", "ActivityThread.java",
+            "callActivityOnCreate", "performCreate", "performLaunchActivity", "handleLaunchActivity",
+            "performClick", "handleCallback", "handleMessage", "dispatchMessage", "loop", "invoke", "run", "main",
+            "onCreate", "onClick",
+            "com.android.internal.os.RuntimeInit$MethodAndArgsCaller", "com.android.internal.os.ZygoteInit",
+            "android.app.Instrumentation", "android.app.Activity", "android.view.View$PerformClick",
+            "android.view.View", "android.app.ActivityThread$H", "android.app.ActivityThread",
+            "android.os.Handler", "android.os.Looper", "java.lang.reflect.Method", "java.lang.Thread",
+            "java.lang.ArrayIndexOutOfBoundsException", "java.lang.IndexOutOfBoundsException",
+            "java.lang.ClassCastException", "java.lang.NumberFormatException", "java.lang.ArithmeticException",
+            "java.lang.IllegalArgumentException", "java.lang.IllegalStateException", "java.lang.OutOfMemoryError",
+            "java.lang.RuntimeException", "java.lang.NullPointerException",
+    };
+
+    // bugcat-1，内容不能再改
+    private static final String[] LEGACY_DICTIONARY_PARTS = {
+            // Build字段，见BugCat.collectProfile
+            "SUPPORTED_32_BIT_ABIS:[Ljava.lang.String;@", "SUPPORTED_64_BIT_ABIS:[Ljava.lang.String;@",
+            "SUPPORTED_ABIS:[Ljava.lang.String;@", "IS_DEBUGGABLE:false\n",
+            "BOOTLOADER:", "RADIO:", "SERIAL:", "HOST:", "USER:", "TIME:", "ID:", "DISPLAY:",
+            "CPU_ABI:armeabi-v7a\n", "CPU_ABI2:armeabi\n", "arm64-v8a", "TAGS:release-keys\n", "TYPE:user\n",
+            "UNKNOWN:unknown\n", "BOARD:", "BRAND:", "DEVICE:", "HARDWARE:", "MANUFACTURER:", "MODEL:",
+            "PRODUCT:", "FINGERPRINT:", ":user/release-keys\n", "versionName:", "versionCode:",
+            // 常见异常
+            "java.lang.ArrayIndexOutOfBoundsException", "java.lang.IndexOutOfBoundsException: Invalid index ",
+            "java.lang.ClassCastException", "java.lang.NumberFormatException: Invalid int: ",
+            "java.lang.IllegalArgumentException", "java.lang.IllegalStateException",
+            "java.lang.OutOfMemoryError", "java.lang.ArithmeticException: divide by zero",
+            "java.lang.RuntimeException: Unable to start activity ComponentInfo{",
+            "java.lang.NullPointerException: Attempt to invoke virtual method '",
+            "' on a null object reference", "Caused by: ", "... ", " more\n",
+            // 常见堆栈帧
+            "\tat java.lang.reflect.Method.invoke(Native Method)\n",
+            "\tat com.android.internal.os.ZygoteInit$MethodAndArgsCaller.run(ZygoteInit.java:",
+            "\tat com.android.internal.os.ZygoteInit.main(ZygoteInit.java:",
+            "\tat android.app.ActivityThread.main(ActivityThread.java:",
+            "\tat android.app.ActivityThread.performLaunchActivity(ActivityThread.java:",
+            "\tat android.app.ActivityThread.handleLaunchActivity(ActivityThread.java:",
+            "\tat android.app.ActivityThread.access$800(ActivityThread.java:",
+            "\tat android.app.ActivityThread.access$900(ActivityThread.java:",
+            "\tat android.app.ActivityThread$H.handleMessage(ActivityThread.java:",
+            "\tat android.app.Activity.performCreate(Activity.java:",
+            "\tat android.app.Instrumentation.callActivityOnCreate(Instrumentation.java:",
+            "\tat android.view.View.performClick(View.java:",
+            "\tat android.view.View$PerformClick.run(View.java:",
+            "\tat android.os.Looper.loop(Looper.java:",
+            "\tat android.os.Handler.handleCallback(Handler.java:",
+            "\tat android.os.Handler.dispatchMessage(Handler.java:",
+            "java.lang.NullPointerException", "java.lang.RuntimeException",
+            // getCrashInfo的格式
+            "->onCreate->", "->onClick->", "->run->", ".java\n", "Activity", "\ncause:null", "\ncause:",
+            "\npath :", "bug  :",
+    };
+
+    public static final byte[] DICTIONARY = buildDictionary(DICTIONARY_PARTS);
+    static final byte[] LEGACY_DICTIONARY = buildDictionary(LEGACY_DICTIONARY_PARTS);
+
+    private static byte[] buildDictionary(String[] parts) {
+        StringBuilder sb = new StringBuilder();
+        for (String part : parts) {
+            sb.append(part);
+        }
+        return sb.toString().getBytes(UTF_8);
+    }
+
+    private static int adler(byte[] dictionary) {
+        Adler32 adler = new Adler32();
+        adler.update(dictionary, 0, dictionary.length);
+        return (int) adler.getValue();
+    }
+
+    /**
+     * @return 对应的Content-Encoding，NONE返回null
+     */
+    public static String contentEncoding(int mode) {
+        switch (mode) {
+            case GZIP:
+                return "gzip";
+            case DEFLATE:
+                return "deflate";
+            default:
+                return null;
+        }
+    }
+
+    public static byte[] encode(int mode, byte[] data) throws IOException {
+        if (mode == NONE) {
+            return data;
+        }
+        ByteArrayOutputStream out = new ByteArrayOutputStream(data.length / 2 + 32);
+        OutputStream encoder = encoder(mode, out);
+        encoder.write(data);
+        encoder.close();
+        return out.toByteArray();
+    }
+
+    /**
+     * 流式压缩：写入返回的流即压缩后写入out；close()结束压缩并释放Deflater，但不关闭out
+     */
+    public static OutputStream encoder(int mode, OutputStream out) throws IOException {
+        OutputStream target = new FilterOutputStream(out) {
+            @Override
+            public void write(byte[] b, int off, int len) throws IOException {
+                out.write(b, off, len);
+            }
+
+            @Override
+            public void close() throws IOException {
+                flush();
+            }
+        };
+        switch (mode) {
+            case GZIP:
+                return new GZIPOutputStream(target, BufferPool.BUFFER_SIZE);
+            case DEFLATE:
+                final Deflater deflater = new Deflater(Deflater.BEST_COMPRESSION);
+                deflater.setDictionary(DICTIONARY);
+                return new DeflaterOutputStream(target, deflater, BufferPool.BUFFER_SIZE) {
+                    @Override
+                    public void close() throws IOException {
+                        try {
+                            super.close();
+                        } finally {
+                            deflater.end();
+                        }
+                    }
+                };
+            default:
+                return target;
+        }
+    }
+
+    /**
+     * 服务端解压
+     *
+     * @param contentEncoding 请求的Content-Encoding，null表示未压缩
+     * @param dictionary      请求的X-BugCat-Dictionary，null按当前的字典
+     */
+    public static byte[] decode(String contentEncoding, String dictionary, byte[] data) throws IOException {
+        if (contentEncoding == null || "identity".equalsIgnoreCase(contentEncoding)) {
+            return data;
+        }
+        if ("gzip".equalsIgnoreCase(contentEncoding)) {
+            GZIPInputStream in = new GZIPInputStream(new ByteArrayInputStream(data));
+            try {
+                return HttpCat.readInputStream(in);
+            } finally {
+                in.close();
+            }
+        }
+        if ("deflate".equalsIgnoreCase(contentEncoding)) {
+            Inflater inflater = new Inflater();
+            try {
+                inflater.setInput(data);
+                ByteArrayOutputStream out = new ByteArrayOutputStream(data.length * 4);
+                byte[] buffer = new byte[1024];
+                while (!inflater.finished()) {
+                    int n = inflater.inflate(buffer);
+                    if (n == 0) {
+                        if (inflater.needsDictionary()) {
+                            byte[] preset;
+                            if (LEGACY_DICTIONARY_ID.equals(dictionary)) {
+                                preset = LEGACY_DICTIONARY;
+                            } else if (dictionary == null || DICTIONARY_ID.equals(dictionary)) {
+                                preset = DICTIONARY;
+                            } else {
+                                throw new IOException("unknown dictionary: " + dictionary);
+                            }
+                            // 压缩时用的不是这份字典(如请求头与内容不符)
+                            if (inflater.getAdler() != adler(preset)) {
+                                throw new IOException("dictionary mismatch: " + dictionary);
+                            }
+                            inflater.setDictionary(preset);
+                        } else if (inflater.needsInput()) {
+                            throw new IOException("truncated deflate stream");
+                        }
+                    }
+                    out.write(buffer, 0, n);
+                }
+                return out.toByteArray();
+            } catch (DataFormatException e) {
+                throw new IOException(e.toString());
+            } finally {
+                inflater.end();
+            }
+        }
+        throw new IOException("unsupported content encoding: " + contentEncoding);
+    }
+}
@@ -0,0 +1,98 @@
+package com.vgaw.bugcat.http;
+
+import java.util.Random;
+
+/**
+ * 上传失败后的重传策略：
+ * <ul>
+ * <li>单条记录：第n次失败后等待 base * 2^(n-1)(不超过maxDelay)，再在[delay/2, delay]内随机，
+ * 避免收集端恢复后所有设备同时重传</li>
+ * <li>全局熔断：连续failureThreshold次请求失败即认为收集端不可用，熔断期间不发任何请求；
+ * 熔断时长同样指数增长，每个熔断周期到期后放行一次试探请求，成功即恢复</li>
+ * </ul>
+ * 单条记录的失败次数和下次可重传时间由调用方持久化(见BugJournal)，熔断状态只在内存中。
+ */
+public class RetryPolicy {
+    private final long baseDelay;
+    private final long maxDelay;
+    private final int failureThreshold;
+    private final long baseOpenTime;
+    private final long maxOpenTime;
+    private final Random random = new Random();
+
+    private int consecutiveFailures;
+    private int trips;
+    private long openUntil;
+
+    public RetryPolicy() {
+        this(30 * 1000L, 6 * 60 * 60 * 1000L, 3, 60 * 1000L, 60 * 60 * 1000L);
+    }
+
+    public RetryPolicy(long baseDelay, long maxDelay, int failureThreshold, long baseOpenTime, long maxOpenTime) {
+        this.baseDelay = baseDelay;
+        this.maxDelay = maxDelay;
+        this.failureThreshold = failureThreshold;
+        this.baseOpenTime = baseOpenTime;
+        this.maxOpenTime = maxOpenTime;
+    }
+
+    /**
+     * @param attempts 包括本次在内的连续失败次数
+     * @return 下次可重传的时间
+     */
+    public long nextAttempt(int attempts, long now) {
+        long delay = backoff(baseDelay, maxDelay, attempts);
+        long half = delay / 2;
+        synchronized (random) {
+            return now + half + (long) (random.nextDouble() * (delay - half));
+        }
+    }
+
+    /**
+     * 每次发出请求前调用
+     *
+     * @return 熔断期间返回false；熔断到期后放行一次试探请求，并重新计时，
+     * 试探请求没有结果(如被取消)时下个周期再放行一次
+     */
+    public synchronized boolean allowRequest(long now) {
+        if (trips == 0) {
+            return true;
+        }
+        if (now < openUntil) {
+            return false;
+        }
+        openUntil = now + backoff(baseOpenTime, maxOpenTime, trips);
+        return true;
+    }
+
+    public synchronized void onSuccess() {
+        consecutiveFailures = 0;
+        trips = 0;
+        openUntil = 0;
+    }
+
+    public synchronized void onFailure(long now) {
+        consecutiveFailures++;
+        if (trips > 0 || consecutiveFailures >= failureThreshold) {
+            // 试探失败，熔断时间加倍
+            trips++;
+            openUntil = now + backoff(baseOpenTime, maxOpenTime, trips);
+        }
+    }
+
+    public synchronized boolean isOpen() {
+        return trips > 0;
+    }
+
+    private static long backoff(long base, long max, int attempts) {
+        if (attempts <= 0) {
+            return 0;
+        }
+        // 2^(attempts - 1)超过max/base后不必再算，避免溢出
+        long delay = base;
+        for (int i = 1; i < attempts && delay < max; i++) {
+            delay <<= 1;
+        }
+        return Math.min(delay, max);
+    }
+}
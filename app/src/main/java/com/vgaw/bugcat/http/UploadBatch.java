@@ -0,0 +1,580 @@
+package com.vgaw.bugcat.http;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * 一次请求上传多条bug，请求体格式如下(整数均为大端)：
+ * <pre>
+ * count     int
+ * RECORD    count条
+ *
+ * counts    int     可选，没有计数时整段省略(与只有内容的旧格式相同)
+ * COUNT     counts条
+ * dropped   long    可选，限流丢弃的次数(自上次确认以来)，此时counts不省略
+ * sampled   long    可选，抽样放行的次数
+ * strings   int     可选，此时counts、dropped、sampled都不省略(没有计数时为0)
+ * STRING    strings条
+ * profile   32字节ASCII  可选，设备信息(见store.DeviceProfile)的hash，此时之前的可选部分都不省略
+ * length    int     -1表示只有hash(收集端已有这份设备信息)
+ * body      length字节UTF-8
+ *
+ * RECORD:
+ * key       32字节ASCII，即bug文件名
+ * length    int
+ * body      length字节
+ *
+ * COUNT:
+ * key       32字节ASCII，内容之前已上传过(或在同一批中)
+ * delta     int     自上次确认以来新增的出现次数
+ * total     int     累计出现次数，重传时服务器可据此去重
+ * lastSeen  long
+ *
+ * STRING:
+ * index     int     在客户端字符串表中的序号
+ * length    int
+ * chars     length字节UTF-8
+ * </pre>
+ * 重复出现的bug不再上传内容，只以COUNT上报增量。
+ * 二进制的崩溃记录(首字节0xBC，见store.CrashRecord)按序号引用类名、方法名等，引用到的字符串随同一批发出，
+ * 每批中同一个字符串只发一次。
+ * 同一台设备的bug共用一份设备信息，批次只带它的hash，内容在收集端确认收下之前才随批次发出：
+ * 收集端有这份设备信息时应在响应中确认其hash，否则客户端下一批重新带上内容。
+ * 服务器逐条确认：响应体为已收下的key，每行一个，未出现的key视为失败，下次重传。
+ * <p/>
+ * 上传前可先协商(见HttpCat)：只发key，收集端回答还需要哪些内容，其余的由{@link #retain}改为COUNT，不再发内容。
+ * <p/>
+ * 条数和字节数都有上限，{@link #add}返回false表示该批已满。
+ */
+public class UploadBatch {
+    public static final int DEFAULT_MAX_COUNT = 64;
+    public static final int DEFAULT_MAX_BYTES = 256 * 1024;
+
+    public static final int KEY_LENGTH = 32;
+    private static final int COUNT_SIZE = 4;
+    private static final int RECORD_HEAD_SIZE = KEY_LENGTH + 4;
+    private static final int COUNT_RECORD_SIZE = KEY_LENGTH + 4 + 4 + 8;
+    private static final int STATS_SIZE = 16;
+    private static final int STRING_HEAD_SIZE = 4 + 4;
+
+    private static final Charset US_ASCII = Charset.forName("US-ASCII");
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    private final int maxCount;
+    private final int maxBytes;
+    private final List<String> keys = new ArrayList<String>();
+    // 每条记录的内容来自bodies或files之一，另一个为null；files的内容从offsets开始
+    private final List<byte[]> bodies = new ArrayList<byte[]>();
+    private final List<File> files = new ArrayList<File>();
+    private final List<Long> offsets = new ArrayList<Long>();
+    private final List<Integer> lengths = new ArrayList<Integer>();
+    // 每条记录引用的字符串序号，没有为null
+    private final List<int[]> stringIds = new ArrayList<int[]>();
+    private final List<String> countKeys = new ArrayList<String>();
+    // 每条COUNT: delta, total, lastSeen
+    private final List<long[]> counts = new ArrayList<long[]>();
+    // 限流计数，null表示不带
+    private long[] stats;
+    // 记录引用到的字符串，序号 -> 字符串
+    private final Map<Integer, String> strings = new LinkedHashMap<Integer, String>();
+    private int recordBytes;
+    private int countBytes;
+    private int stringBytes;
+    // 设备信息的hash和内容，内容为null表示只带hash
+    private String profileHash;
+    private byte[] profile;
+
+    public UploadBatch() {
+        this(DEFAULT_MAX_COUNT, DEFAULT_MAX_BYTES);
+    }
+
+    public UploadBatch(int maxCount, int maxBytes) {
+        this.maxCount = maxCount;
+        this.maxBytes = maxBytes;
+    }
+
+    /**
+     * @return 已满返回false；空批总能放下第一条，即使它本身超过maxBytes
+     */
+    public boolean add(String key, byte[] body) {
+        return add(key, body, null, 0, body.length);
+    }
+
+    /**
+     * 以文件为内容，写请求体时才从文件流式读出，内容不在堆上停留
+     *
+     * @return 已满返回false
+     */
+    public boolean add(String key, File file) {
+        long fileLength = file.length();
+        if (fileLength > Integer.MAX_VALUE - RECORD_HEAD_SIZE) {
+            throw new IllegalArgumentException("file too large: " + file);
+        }
+        return add(key, null, file, 0, (int) fileLength);
+    }
+
+    /**
+     * 以文件中的一段为内容(如SegmentStore的段)，写请求体时才定位读出
+     *
+     * @return 已满返回false
+     */
+    public boolean add(String key, File file, long offset, int length) {
+        return add(key, null, file, offset, length);
+    }
+
+    /**
+     * 带字符串引用的内容(二进制的崩溃记录)，本批中还没有的字符串一并放入
+     *
+     * @param stringIds 引用到的序号
+     * @param values    与stringIds一一对应
+     * @return 已满返回false，什么也不放
+     */
+    public boolean add(String key, byte[] body, int[] stringIds, String[] values) {
+        Map<Integer, String> added = new LinkedHashMap<Integer, String>();
+        int moreStringBytes = 0;
+        for (int i = 0; i < stringIds.length; i++) {
+            if (strings.containsKey(stringIds[i]) || added.containsKey(stringIds[i])) {
+                continue;
+            }
+            added.put(stringIds[i], values[i]);
+            moreStringBytes += STRING_HEAD_SIZE + values[i].getBytes(UTF_8).length;
+        }
+        if (!isEmpty() && !fits(RECORD_HEAD_SIZE + body.length, 0, moreStringBytes)) {
+            return false;
+        }
+        add(key, body, null, 0, body.length);
+        this.stringIds.set(this.stringIds.size() - 1, stringIds);
+        strings.putAll(added);
+        stringBytes += moreStringBytes;
+        return true;
+    }
+
+    private boolean add(String key, byte[] body, File file, long offset, int bodyLength) {
+        if (key.length() != KEY_LENGTH) {
+            throw new IllegalArgumentException("key must be " + KEY_LENGTH + " chars: " + key);
+        }
+        int recordLength = RECORD_HEAD_SIZE + bodyLength;
+        if (!isEmpty() && !fits(recordLength, 0, 0)) {
+            return false;
+        }
+        keys.add(key);
+        bodies.add(body);
+        files.add(file);
+        offsets.add(offset);
+        lengths.add(bodyLength);
+        stringIds.add(null);
+        recordBytes += recordLength;
+        return true;
+    }
+
+    private boolean fits(int moreRecordBytes, int moreCountBytes, int moreStringBytes) {
+        return keys.size() + countKeys.size() < maxCount
+                && length(moreRecordBytes, moreCountBytes, moreStringBytes) <= maxBytes;
+    }
+
+    /**
+     * 上报一个已上传key新增的出现次数
+     *
+     * @return 已满返回false
+     */
+    public boolean addCount(String key, int delta, int total, long lastSeen) {
+        if (key.length() != KEY_LENGTH) {
+            throw new IllegalArgumentException("key must be " + KEY_LENGTH + " chars: " + key);
+        }
+        if (!isEmpty() && !fits(0, COUNT_RECORD_SIZE, 0)) {
+            return false;
+        }
+        countKeys.add(key);
+        counts.add(new long[]{delta, total, lastSeen});
+        countBytes += COUNT_RECORD_SIZE;
+        return true;
+    }
+
+    /**
+     * 附带限流计数，服务器据此估计真实的发生次数
+     */
+    public void setStats(long dropped, long sampled) {
+        stats = new long[]{dropped, sampled};
+    }
+
+    /**
+     * @return {dropped, sampled}，不带时为null
+     */
+    public long[] getStats() {
+        return stats;
+    }
+
+    /**
+     * @return 内容记录的条数
+     */
+    public int size() {
+        return keys.size();
+    }
+
+    public boolean isEmpty() {
+        return keys.isEmpty() && countKeys.isEmpty();
+    }
+
+    /**
+     * @return 内容记录的key
+     */
+    public List<String> getKeys() {
+        return keys;
+    }
+
+    /**
+     * @return COUNT记录的key
+     */
+    public List<String> getCountKeys() {
+        return countKeys;
+    }
+
+    public int getDelta(int i) {
+        return (int) counts.get(i)[0];
+    }
+
+    public int getTotal(int i) {
+        return (int) counts.get(i)[1];
+    }
+
+    public long getLastSeen(int i) {
+        return counts.get(i)[2];
+    }
+
+    /**
+     * 协商的第二步：只留下收集端还需要内容的记录，其余的(收集端已有内容)改为COUNT记录，
+     * 内容计的那1次并入同一批中该key的COUNT(没有则新增delta、total为1，lastSeen为0即未知)。
+     * 字符串只留仍被引用的，限流计数和设备信息不变。不受条数和字节数上限的限制
+     *
+     * @param needed 收集端还需要内容的key
+     */
+    public UploadBatch retain(Collection<String> needed) {
+        UploadBatch batch = new UploadBatch(Integer.MAX_VALUE, Integer.MAX_VALUE);
+        batch.stats = stats;
+        batch.profileHash = profileHash;
+        batch.profile = profile;
+        Map<String, long[]> merged = new LinkedHashMap<String, long[]>();
+        for (int i = 0; i < countKeys.size(); i++) {
+            merged.put(countKeys.get(i), counts.get(i).clone());
+        }
+        for (int i = 0; i < keys.size(); i++) {
+            String key = keys.get(i);
+            if (needed.contains(key)) {
+                batch.add(key, bodies.get(i), files.get(i), offsets.get(i), lengths.get(i));
+                int[] ids = stringIds.get(i);
+                if (ids != null) {
+                    batch.stringIds.set(batch.stringIds.size() - 1, ids);
+                    for (int id : ids) {
+                        if (!batch.strings.containsKey(id)) {
+                            batch.putString(id, strings.get(id));
+                        }
+                    }
+                }
+                continue;
+            }
+            long[] count = merged.get(key);
+            if (count == null) {
+                merged.put(key, new long[]{1, 1, 0});
+            } else {
+                count[0]++;
+            }
+        }
+        for (Map.Entry<String, long[]> entry : merged.entrySet()) {
+            long[] count = entry.getValue();
+            batch.addCount(entry.getKey(), (int) count[0], (int) count[1], count[2]);
+        }
+        return batch;
+    }
+
+    private void putString(int id, String value) {
+        strings.put(id, value);
+        stringBytes += STRING_HEAD_SIZE + value.getBytes(UTF_8).length;
+    }
+
+    /**
+     * 附上设备信息，应在放入内容之前调用，计入字节数
+     *
+     * @param body 为null表示只带hash
+     */
+    public void setProfile(String hash, byte[] body) {
+        if (hash.length() != KEY_LENGTH) {
+            throw new IllegalArgumentException("hash must be " + KEY_LENGTH + " chars: " + hash);
+        }
+        profileHash = hash;
+        profile = body;
+    }
+
+    /**
+     * @return 设备信息的hash，没有为null
+     */
+    public String getProfileHash() {
+        return profileHash;
+    }
+
+    /**
+     * @return 设备信息的内容，只带hash或没有为null
+     */
+    public byte[] getProfile() {
+        return profile;
+    }
+
+    /**
+     * @return 本批记录引用到的字符串，序号 -> 字符串
+     */
+    public Map<Integer, String> getStrings() {
+        return strings;
+    }
+
+    /**
+     * 文件形式的记录会被整个读入内存，仅供服务端和测试使用
+     */
+    public byte[] getBody(int i) throws IOException {
+        if (bodies.get(i) != null) {
+            return bodies.get(i);
+        }
+        byte[] body = new byte[lengths.get(i)];
+        RandomAccessFile in = new RandomAccessFile(files.get(i), "r");
+        try {
+            in.seek(offsets.get(i));
+            in.readFully(body);
+        } finally {
+            in.close();
+        }
+        return body;
+    }
+
+    /**
+     * @return 请求体总字节数
+     */
+    public int length() {
+        return length(0, 0, 0);
+    }
+
+    private int length(int moreRecordBytes, int moreCountBytes, int moreStringBytes) {
+        boolean hasProfile = profileHash != null;
+        boolean hasStrings = stringBytes + moreStringBytes > 0 || hasProfile;
+        int length = COUNT_SIZE + recordBytes + moreRecordBytes;
+        if (countBytes + moreCountBytes > 0 || stats != null || hasStrings) {
+            length += COUNT_SIZE + countBytes + moreCountBytes;
+        }
+        if (stats != null || hasStrings) {
+            length += STATS_SIZE;
+        }
+        if (hasStrings) {
+            length += COUNT_SIZE + stringBytes + moreStringBytes;
+        }
+        if (hasProfile) {
+            length += KEY_LENGTH + 4 + (profile == null ? 0 : profile.length);
+        }
+        return length;
+    }
+
+    /**
+     * 写出请求体，文件经由BufferPool的缓冲区直接拷到out
+     *
+     * @throws IOException 包括文件在add之后被截短的情况，否则实际长度会与length()不符
+     */
+    public void writeTo(OutputStream out) throws IOException {
+        DataOutputStream data = new DataOutputStream(out);
+        data.writeInt(keys.size());
+        byte[] buffer = null;
+        try {
+            for (int i = 0; i < keys.size(); i++) {
+                data.write(keys.get(i).getBytes(US_ASCII));
+                data.writeInt(lengths.get(i));
+                if (bodies.get(i) != null) {
+                    data.write(bodies.get(i));
+                    continue;
+                }
+                if (buffer == null) {
+                    buffer = BufferPool.acquire();
+                }
+                copy(files.get(i), offsets.get(i), lengths.get(i), data, buffer);
+            }
+        } finally {
+            BufferPool.release(buffer);
+        }
+        boolean hasStrings = !strings.isEmpty() || profileHash != null;
+        if (!countKeys.isEmpty() || stats != null || hasStrings) {
+            data.writeInt(countKeys.size());
+            for (int i = 0; i < countKeys.size(); i++) {
+                data.write(countKeys.get(i).getBytes(US_ASCII));
+                data.writeInt(getDelta(i));
+                data.writeInt(getTotal(i));
+                data.writeLong(getLastSeen(i));
+            }
+        }
+        if (stats != null || hasStrings) {
+            data.writeLong(stats == null ? 0 : stats[0]);
+            data.writeLong(stats == null ? 0 : stats[1]);
+        }
+        if (hasStrings) {
+            data.writeInt(strings.size());
+            for (Map.Entry<Integer, String> entry : strings.entrySet()) {
+                byte[] bytes = entry.getValue().getBytes(UTF_8);
+                data.writeInt(entry.getKey());
+                data.writeInt(bytes.length);
+                data.write(bytes);
+            }
+        }
+        if (profileHash != null) {
+            data.write(profileHash.getBytes(US_ASCII));
+            data.writeInt(profile == null ? -1 : profile.length);
+            if (profile != null) {
+                data.write(profile);
+            }
+        }
+        data.flush();
+    }
+
+    private static void copy(File file, long offset, int length, OutputStream out, byte[] buffer)
+            throws IOException {
+        FileInputStream in = new FileInputStream(file);
+        try {
+            in.getChannel().position(offset);
+            int remaining = length;
+            while (remaining > 0) {
+                int read = in.read(buffer, 0, Math.min(buffer.length, remaining));
+                if (read < 0) {
+                    throw new EOFException(file + " shrank while uploading");
+                }
+                out.write(buffer, 0, read);
+                remaining -= read;
+            }
+        } finally {
+            in.close();
+        }
+    }
+
+    /**
+     * 解码请求体，供服务端(及测试用的StubCollector)使用
+     */
+    public static UploadBatch read(InputStream in) throws IOException {
+        DataInputStream data = new DataInputStream(in);
+        int count = data.readInt();
+        if (count < 0) {
+            throw new IOException("bad batch count: " + count);
+        }
+        UploadBatch batch = new UploadBatch(Integer.MAX_VALUE, Integer.MAX_VALUE);
+        byte[] key = new byte[KEY_LENGTH];
+        for (int i = 0; i < count; i++) {
+            data.readFully(key);
+            int length = data.readInt();
+            if (length < 0) {
+                throw new IOException("bad record length: " + length);
+            }
+            byte[] body = new byte[length];
+            data.readFully(body);
+            batch.add(new String(key, US_ASCII), body);
+        }
+        // 旧格式到此结束
+        int first = data.read();
+        if (first < 0) {
+            return batch;
+        }
+        int counts = (first << 24) | (data.readUnsignedByte() << 16) | (data.readUnsignedByte() << 8)
+                | data.readUnsignedByte();
+        if (counts < 0) {
+            throw new IOException("bad count records: " + counts);
+        }
+        for (int i = 0; i < counts; i++) {
+            data.readFully(key);
+            int delta = data.readInt();
+            int total = data.readInt();
+            batch.addCount(new String(key, US_ASCII), delta, total, data.readLong());
+        }
+        first = data.read();
+        if (first >= 0) {
+            long dropped = ((long) first << 56) | ((long) data.readUnsignedByte() << 48)
+                    | ((long) data.readUnsignedByte() << 40) | ((long) data.readUnsignedByte() << 32)
+                    | ((long) data.readInt() & 0xffffffffL);
+            long sampled = data.readLong();
+            // 全为0是为了带STRINGS而补的
+            if (dropped != 0 || sampled != 0) {
+                batch.setStats(dropped, sampled);
+            }
+            first = data.read();
+        }
+        if (first >= 0) {
+            int strings = (first << 24) | (data.readUnsignedByte() << 16) | (data.readUnsignedByte() << 8)
+                    | data.readUnsignedByte();
+            if (strings < 0) {
+                throw new IOException("bad string count: " + strings);
+            }
+            for (int i = 0; i < strings; i++) {
+                int index = data.readInt();
+                int length = data.readInt();
+                if (length < 0) {
+                    throw new IOException("bad string length: " + length);
+                }
+                byte[] bytes = new byte[length];
+                data.readFully(bytes);
+                batch.putString(index, new String(bytes, UTF_8));
+            }
+            first = data.read();
+        }
+        if (first >= 0) {
+            key[0] = (byte) first;
+            data.readFully(key, 1, KEY_LENGTH - 1);
+            int length = data.readInt();
+            if (length < -1) {
+                throw new IOException("bad profile length: " + length);
+            }
+            byte[] body = null;
+            if (length >= 0) {
+                body = new byte[length];
+                data.readFully(body);
+            }
+            batch.setProfile(new String(key, US_ASCII), body);
+        }
+        return batch;
+    }
+
+    /**
+     * 解析响应体中确认的key
+     */
+    public static List<String> readAcknowledged(byte[] response) {
+        List<String> acknowledged = new ArrayList<String>();
+        if (response == null) {
+            return acknowledged;
+        }
+        int start = 0;
+        for (int i = 0; i <= response.length; i++) {
+            if (i == response.length || response[i] == '\n') {
+                int end = i;
+                if (end > start && response[end - 1] == '\r') {
+                    end--;
+                }
+                if (end - start == KEY_LENGTH) {
+                    acknowledged.add(new String(response, start, KEY_LENGTH, US_ASCII));
+                }
+                start = i + 1;
+            }
+        }
+        return acknowledged;
+    }
+
+    /**
+     * 确认结果的编码，供服务端使用
+     */
+    public static byte[] writeAcknowledged(List<String> keys) {
+        StringBuilder sb = new StringBuilder(keys.size() * (KEY_LENGTH + 1));
+        for (String key : keys) {
+            sb.append(key).append('\n');
+        }
+        return sb.toString().getBytes(US_ASCII);
+    }
+}
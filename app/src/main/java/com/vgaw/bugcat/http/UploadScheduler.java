@@ -0,0 +1,145 @@
+package com.vgaw.bugcat.http;
+
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 触发上传的调度器，网络变化广播只调用{@link #request()}标记"有活要干"：
+ * <ul>
+ * <li>同一时刻至多一次drain在跑(单线程)，drain期间再来的触发合并为结束后的一次</li>
+ * <li>debounce窗口内的多次触发合并为一次，广播连发时只扫描一遍</li>
+ * <li>两次drain之间至少间隔minInterval</li>
+ * <li>drain前检查{@link Condition}(如仅Wi-Fi)，不满足则丢弃本次触发，等下次网络变化</li>
+ * </ul>
+ */
+public class UploadScheduler {
+    public static final long DEFAULT_DEBOUNCE = 2 * 1000L;
+    public static final long DEFAULT_MIN_INTERVAL = 60 * 1000L;
+
+    public interface Condition {
+        boolean allow();
+    }
+
+    private final Runnable drain;
+    private final ScheduledThreadPoolExecutor executor;
+    private final Runnable task = new Runnable() {
+        @Override
+        public void run() {
+            runDrain();
+        }
+    };
+
+    private volatile long debounce = DEFAULT_DEBOUNCE;
+    private volatile long minInterval = DEFAULT_MIN_INTERVAL;
+    private volatile Condition condition;
+
+    private boolean scheduled;
+    private boolean pending;
+    private long lastRun = Long.MIN_VALUE;
+    private int requestCount;
+    private int drainCount;
+
+    public UploadScheduler(Runnable drain) {
+        this.drain = drain;
+        executor = new ScheduledThreadPoolExecutor(1, new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread thread = new Thread(r, "BugCat-scheduler");
+                thread.setDaemon(true);
+                thread.setPriority(Thread.MIN_PRIORITY);
+                return thread;
+            }
+        });
+    }
+
+    public void setDebounce(long debounce) {
+        this.debounce = debounce;
+    }
+
+    public void setMinInterval(long minInterval) {
+        this.minInterval = minInterval;
+    }
+
+    /**
+     * @param condition null表示总是允许
+     */
+    public void setCondition(Condition condition) {
+        this.condition = condition;
+    }
+
+    /**
+     * 标记有待上传的内容，可在任意线程(包括主线程)调用，不阻塞
+     */
+    public void request() {
+        long delay;
+        synchronized (this) {
+            requestCount++;
+            pending = true;
+            if (scheduled) {
+                return;
+            }
+            scheduled = true;
+            delay = nextDelay();
+        }
+        executor.schedule(task, delay, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * 在调度线程中执行一个任务，与drain串行，不受debounce、minInterval和Condition约束
+     */
+    public void execute(Runnable runnable) {
+        executor.execute(runnable);
+    }
+
+    public void shutdown() {
+        executor.shutdownNow();
+    }
+
+    public synchronized int getRequestCount() {
+        return requestCount;
+    }
+
+    public synchronized int getDrainCount() {
+        return drainCount;
+    }
+
+    private void runDrain() {
+        synchronized (this) {
+            pending = false;
+        }
+        try {
+            Condition condition = this.condition;
+            if (condition == null || condition.allow()) {
+                synchronized (this) {
+                    lastRun = now();
+                    drainCount++;
+                }
+                drain.run();
+            }
+        } catch (RuntimeException e) {
+            // drain失败不影响之后的触发
+        }
+        long delay;
+        synchronized (this) {
+            if (!pending) {
+                scheduled = false;
+                return;
+            }
+            // drain期间又有触发，合并为一次，仍受minInterval约束
+            delay = nextDelay();
+        }
+        executor.schedule(task, delay, TimeUnit.MILLISECONDS);
+    }
+
+    private long nextDelay() {
+        if (lastRun == Long.MIN_VALUE) {
+            return debounce;
+        }
+        return Math.max(debounce, lastRun + minInterval - now());
+    }
+
+    private static long now() {
+        return System.nanoTime() / 1000000;
+    }
+}
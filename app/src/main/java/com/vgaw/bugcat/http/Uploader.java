@@ -0,0 +1,96 @@
+package com.vgaw.bugcat.http;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * BugCat专用的上传线程池，代替AsyncTask的全局串行executor，和app自己的任务互不影响：
+ * <ul>
+ * <li>并发数和排队数都有上限，队列满时{@link #submit}返回false，由调用方决定稍后再试(背压)</li>
+ * <li>线程空闲一段时间后退出，不常驻</li>
+ * <li>{@link #cancelAll()}丢弃排队中的任务(如网络断开)，正在执行的任务受超时约束自然结束</li>
+ * </ul>
+ * 任务的回调在上传线程中执行，不经过主线程。
+ */
+public class Uploader {
+    private static final long KEEP_ALIVE_SECONDS = 30;
+
+    private final ThreadPoolExecutor executor;
+    private final AtomicInteger rejectedCount = new AtomicInteger();
+    private final AtomicInteger cancelledCount = new AtomicInteger();
+
+    /**
+     * 可被取消的任务，排队中被丢弃时回调{@link #cancel()}
+     */
+    public interface Task extends Runnable {
+        void cancel();
+    }
+
+    public Uploader(int concurrency, int queueCapacity) {
+        executor = new ThreadPoolExecutor(concurrency, concurrency, KEEP_ALIVE_SECONDS, TimeUnit.SECONDS,
+                new ArrayBlockingQueue<Runnable>(queueCapacity), new ThreadFactory() {
+            private final AtomicInteger count = new AtomicInteger();
+
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread thread = new Thread(r, "BugCat-uploader-" + count.incrementAndGet());
+                thread.setDaemon(true);
+                thread.setPriority(Thread.MIN_PRIORITY);
+                return thread;
+            }
+        }, new ThreadPoolExecutor.AbortPolicy());
+        executor.allowCoreThreadTimeOut(true);
+    }
+
+    /**
+     * @return 队列已满或已关闭时返回false，任务不会执行
+     */
+    public boolean submit(Task task) {
+        try {
+            executor.execute(task);
+            return true;
+        } catch (RejectedExecutionException e) {
+            rejectedCount.incrementAndGet();
+            return false;
+        }
+    }
+
+    /**
+     * 丢弃所有排队中的任务
+     */
+    public void cancelAll() {
+        List<Runnable> dropped = new ArrayList<Runnable>();
+        executor.getQueue().drainTo(dropped);
+        for (Runnable runnable : dropped) {
+            cancelledCount.incrementAndGet();
+            ((Task) runnable).cancel();
+        }
+    }
+
+    public void shutdown() {
+        cancelAll();
+        executor.shutdown();
+    }
+
+    public int getQueued() {
+        return executor.getQueue().size();
+    }
+
+    public int getActive() {
+        return executor.getActiveCount();
+    }
+
+    public int getRejectedCount() {
+        return rejectedCount.get();
+    }
+
+    public int getCancelledCount() {
+        return cancelledCount.get();
+    }
+}
@@ -0,0 +1,675 @@
+package com.vgaw.bugcat.store;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileReader;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.util.BitSet;
+
+/**
+ * bug索引文件(filepath is "../bugbox/bug")，2.0版本起为定长记录的二进制追加日志：
+ * <pre>
+ * MAGIC\n                          --head--，文本，不足HEAD_SIZE以0补齐
+ * VERSION\n                            |
+ * APP_VERSION\n                        |
+ * \n                                   |
+ * GENERATION                           | long，head的最后8字节，每次compact加一
+ *                                  --head--
+ * RECORD                           每条RECORD_SIZE字节，见下
+ * RECORD
+ * ...
+ *
+ * RECORD:
+ * 0   hi          long  摘要高64位
+ * 8   lo          long  摘要低64位
+ * 16  status      byte  NEW/UPLOADED/EVICTED，0表示未写完整
+ * 17  reserved    1字节
+ * 18  attempts    short 连续上传失败次数(无符号)
+ * 20  count       int   出现次数，重复的bug只在此累加，不再写内容
+ * 24  firstSeen   long
+ * 32  lastSeen    long
+ * 40  nextAttempt long  失败退避后最早可重传的时间，0表示随时
+ * 48  segment     int   bug内容所在的段，见SegmentStore；0表示内容在以key为名的文件中(2.0之前)
+ * 52  bodyOffset  int   段内偏移
+ * 56  bodyLength  int   内容字节数
+ * 60  reported    int   已报告给收集端的出现次数，count超出的部分以增量上传；0表示只上传过内容(计1次)
+ * </pre>
+ * 修改某条记录只需对该位置做一次定位写，不再像1.0那样整体复制到bug_temp再替换。
+ * head保持1.0的文本格式，VERSION即格式标识；打开1.0文件时会一次性迁移。
+ * <p/>
+ * 被淘汰的记录先原地标记为EVICTED，{@link #compact()}时才从文件中去掉：
+ * 存活记录写入新一代文件(bug_compact)并fsync，再rename覆盖原文件，rename是原子的，
+ * 任何时刻进程被杀，bug要么是旧的一代、要么是完整的新一代；残留的bug_compact在open时删除。
+ * <p/>
+ * 记录区在内存中有一份镜像，读全部走镜像，写同时落镜像和文件。
+ * 上传回调在上传线程中修改状态，所以公开方法均为同步方法。
+ */
+public class BugJournal {
+    public static final String MAGIC = "com.vgaw.bugcat";
+    public static final String VERSION = "2.0";
+    private static final String VERSION_TEXT = "1.0";
+    private static final String TEMP_FILE_NAME = "bug_temp";
+    private static final String MIGRATE_FILE_NAME = "bug_migrate";
+    private static final String COMPACT_FILE_NAME = "bug_compact";
+
+    public static final int HEAD_SIZE = 128;
+    public static final int RECORD_SIZE = 64;
+
+    public static final byte STATUS_NEW = 1;
+    public static final byte STATUS_UPLOADED = 2;
+    public static final byte STATUS_EVICTED = 3;
+
+    private static final int OFFSET_HI = 0;
+    private static final int OFFSET_LO = 8;
+    private static final int OFFSET_STATUS = 16;
+    private static final int OFFSET_ATTEMPTS = 18;
+    private static final int OFFSET_COUNT = 20;
+    private static final int OFFSET_FIRST_SEEN = 24;
+    private static final int OFFSET_LAST_SEEN = 32;
+    private static final int OFFSET_NEXT_ATTEMPT = 40;
+    private static final int OFFSET_SEGMENT = 48;
+    private static final int OFFSET_BODY_OFFSET = 52;
+    private static final int OFFSET_BODY_LENGTH = 56;
+    private static final int OFFSET_REPORTED = 60;
+
+    private static final int MAX_ATTEMPTS = 0xffff;
+
+    private static final int OFFSET_GENERATION = HEAD_SIZE - 8;
+    // compact时每次持锁拷贝的记录条数，拷贝之间释放锁，不阻塞append
+    private static final int COMPACT_CHUNK = 64;
+    // EVICTED记录至少这么多、且占比达到1/GARBAGE_RATIO才值得compact
+    private static final int MIN_GARBAGE = 16;
+    private static final int GARBAGE_RATIO = 4;
+
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    private final File file;
+    private RandomAccessFile raf;
+    private FileChannel channel;
+    private String appVersion;
+
+    private final DigestIndex index = new DigestIndex();
+    private ByteBuffer records = ByteBuffer.allocate(RECORD_SIZE * 64);
+    private int recordCount;
+    private int evictedCount;
+    private long generation;
+    // compact进行中时记录被修改过的记录，拷贝完后重新拷贝它们；不在compact时为null
+    private BitSet dirty;
+    // 定位写用的临时buffer，避免每次写都分配
+    private final ByteBuffer scratch = ByteBuffer.allocateDirect(RECORD_SIZE);
+
+    public BugJournal(File file) {
+        this.file = file;
+    }
+
+    /**
+     * 打开索引文件：不存在则创建，1.0文本格式则迁移，其余情况加载全部记录
+     *
+     * @param appVersion 新建文件时写入head
+     */
+    public synchronized void open(String appVersion) throws IOException {
+        // 上次compact到一半进程被杀，新一代不完整，丢弃
+        new File(file.getParentFile(), COMPACT_FILE_NAME).delete();
+        String[] head = readTextHead(file);
+        if (head != null && MAGIC.equals(head[0]) && VERSION_TEXT.equals(head[1])) {
+            migrateFromText(appVersion);
+        } else if (head == null || !MAGIC.equals(head[0]) || !VERSION.equals(head[1])) {
+            // 不存在、head不完整或无法识别的版本，重新写
+            writeNewFile(file, appVersion, 0, null);
+        }
+        raf = new RandomAccessFile(file, "rw");
+        channel = raf.getChannel();
+        load();
+    }
+
+    public synchronized void close() {
+        if (raf != null) {
+            try {
+                raf.close();
+            } catch (IOException e) {
+            }
+            raf = null;
+            channel = null;
+        }
+    }
+
+    /**
+     * @return 索引文件的代数，每次compact加一
+     */
+    public synchronized long getGeneration() {
+        return generation;
+    }
+
+    public synchronized String getAppVersion() {
+        return appVersion;
+    }
+
+    /**
+     * @return 记录条数，包括尚未compact掉的EVICTED记录
+     */
+    public synchronized int size() {
+        return recordCount;
+    }
+
+    /**
+     * @return 尚未compact掉的EVICTED记录条数
+     */
+    public synchronized int getEvictedCount() {
+        return evictedCount;
+    }
+
+    /**
+     * @return 记录序号，不存在返回{@link DigestIndex#ABSENT}
+     */
+    public synchronized int find(long hi, long lo) {
+        return index.get(hi, lo);
+    }
+
+    /**
+     * 追加一条NEW记录，内容在以key为名的文件中
+     *
+     * @return 记录序号
+     */
+    public synchronized int append(long hi, long lo, long now) throws IOException {
+        return append(hi, lo, now, 0, 0, 0);
+    }
+
+    /**
+     * 追加一条NEW记录，内容已写入SegmentStore
+     *
+     * @return 记录序号
+     */
+    public synchronized int append(long hi, long lo, long now, int segment, int offset, int length)
+            throws IOException {
+        int record = recordCount;
+        ensureCapacity(record + 1);
+        int base = record * RECORD_SIZE;
+        for (int i = 0; i < RECORD_SIZE; i++) {
+            records.put(base + i, (byte) 0);
+        }
+        records.putLong(base + OFFSET_HI, hi);
+        records.putLong(base + OFFSET_LO, lo);
+        records.put(base + OFFSET_STATUS, STATUS_NEW);
+        records.putInt(base + OFFSET_COUNT, 1);
+        records.putLong(base + OFFSET_FIRST_SEEN, now);
+        records.putLong(base + OFFSET_LAST_SEEN, now);
+        records.putInt(base + OFFSET_SEGMENT, segment);
+        records.putInt(base + OFFSET_BODY_OFFSET, offset);
+        records.putInt(base + OFFSET_BODY_LENGTH, length);
+        flush(record, 0, RECORD_SIZE);
+        recordCount++;
+        index.put(hi, lo, record);
+        return record;
+    }
+
+    public synchronized long getHi(int record) {
+        return records.getLong(record * RECORD_SIZE + OFFSET_HI);
+    }
+
+    public synchronized long getLo(int record) {
+        return records.getLong(record * RECORD_SIZE + OFFSET_LO);
+    }
+
+    public synchronized byte getStatus(int record) {
+        return records.get(record * RECORD_SIZE + OFFSET_STATUS);
+    }
+
+    public synchronized int getCount(int record) {
+        return records.getInt(record * RECORD_SIZE + OFFSET_COUNT);
+    }
+
+    public synchronized long getFirstSeen(int record) {
+        return records.getLong(record * RECORD_SIZE + OFFSET_FIRST_SEEN);
+    }
+
+    public synchronized long getLastSeen(int record) {
+        return records.getLong(record * RECORD_SIZE + OFFSET_LAST_SEEN);
+    }
+
+    public synchronized int getAttempts(int record) {
+        return records.getShort(record * RECORD_SIZE + OFFSET_ATTEMPTS) & 0xffff;
+    }
+
+    public synchronized long getNextAttempt(int record) {
+        return records.getLong(record * RECORD_SIZE + OFFSET_NEXT_ATTEMPT);
+    }
+
+    public synchronized int getSegment(int record) {
+        return records.getInt(record * RECORD_SIZE + OFFSET_SEGMENT);
+    }
+
+    public synchronized int getBodyOffset(int record) {
+        return records.getInt(record * RECORD_SIZE + OFFSET_BODY_OFFSET);
+    }
+
+    public synchronized int getBodyLength(int record) {
+        return records.getInt(record * RECORD_SIZE + OFFSET_BODY_LENGTH);
+    }
+
+    public synchronized int getReported(int record) {
+        return records.getInt(record * RECORD_SIZE + OFFSET_REPORTED);
+    }
+
+    /**
+     * @return 还没有报告给收集端的出现次数：NEW为count，UPLOADED为count减去已报告的
+     */
+    public synchronized int getUnreported(int record) {
+        byte status = getStatus(record);
+        if (status == STATUS_NEW) {
+            return getCount(record);
+        }
+        if (status == STATUS_UPLOADED) {
+            return Math.max(0, getCount(record) - Math.max(1, getReported(record)));
+        }
+        return 0;
+    }
+
+    /**
+     * 又出现了occurrences次：count累加(到Integer.MAX_VALUE为止)，lastSeen取较新的，一次定位写
+     */
+    public synchronized void touch(int record, long now, int occurrences) throws IOException {
+        int base = record * RECORD_SIZE;
+        long count = (long) records.getInt(base + OFFSET_COUNT) + occurrences;
+        records.putInt(base + OFFSET_COUNT, (int) Math.min(count, Integer.MAX_VALUE));
+        if (now > records.getLong(base + OFFSET_LAST_SEEN)) {
+            records.putLong(base + OFFSET_LAST_SEEN, now);
+        }
+        flush(record, OFFSET_COUNT, OFFSET_LAST_SEEN + 8 - OFFSET_COUNT);
+    }
+
+    /**
+     * 收集端确认收到的出现次数
+     */
+    public synchronized void setReported(int record, int reported) throws IOException {
+        records.putInt(record * RECORD_SIZE + OFFSET_REPORTED, reported);
+        flush(record, OFFSET_REPORTED, 4);
+    }
+
+    /**
+     * 记录内容的新位置(如从单独的文件移入段中)，一次定位写
+     */
+    public synchronized void setBody(int record, int segment, int offset, int length) throws IOException {
+        int base = record * RECORD_SIZE;
+        records.putInt(base + OFFSET_SEGMENT, segment);
+        records.putInt(base + OFFSET_BODY_OFFSET, offset);
+        records.putInt(base + OFFSET_BODY_LENGTH, length);
+        flush(record, OFFSET_SEGMENT, OFFSET_BODY_LENGTH + 4 - OFFSET_SEGMENT);
+    }
+
+    /**
+     * 记录重传状态，attempts与nextAttempt一起做一次定位写
+     */
+    public synchronized void setRetry(int record, int attempts, long nextAttempt) throws IOException {
+        int base = record * RECORD_SIZE;
+        records.putShort(base + OFFSET_ATTEMPTS, (short) Math.min(attempts, MAX_ATTEMPTS));
+        records.putLong(base + OFFSET_NEXT_ATTEMPT, nextAttempt);
+        flush(record, OFFSET_ATTEMPTS, OFFSET_NEXT_ATTEMPT + 8 - OFFSET_ATTEMPTS);
+    }
+
+    /**
+     * 修改状态，一次单字节的定位写
+     */
+    public synchronized void setStatus(int record, byte status) throws IOException {
+        records.put(record * RECORD_SIZE + OFFSET_STATUS, status);
+        flush(record, OFFSET_STATUS, 1);
+    }
+
+    /**
+     * 淘汰一条记录：原地标记为EVICTED，find()不再返回它，compact()时从文件中去掉
+     */
+    public synchronized void evict(int record) throws IOException {
+        byte status = getStatus(record);
+        if (status == STATUS_EVICTED) {
+            return;
+        }
+        setStatus(record, STATUS_EVICTED);
+        evictedCount++;
+        index.remove(getHi(record), getLo(record));
+    }
+
+    /**
+     * @return EVICTED记录的占比是否已值得compact
+     */
+    public synchronized boolean needsCompaction() {
+        return evictedCount >= MIN_GARBAGE && evictedCount * GARBAGE_RATIO >= recordCount;
+    }
+
+    /**
+     * 去掉EVICTED记录，生成新一代索引文件，记录序号随之改变。
+     * <p/>
+     * 增量进行：每次持锁只拷贝COMPACT_CHUNK条记录到buffer，写文件和fsync都在锁外，
+     * 期间append、setStatus等照常进行；最后持锁补上新追加的记录和期间被修改过的记录，再rename。
+     * 应在后台线程调用；需要记录序号保持不变的调用方(find后再修改)应在synchronized(journal)中进行。
+     */
+    public void compact() throws IOException {
+        File compactFile = new File(file.getParentFile(), COMPACT_FILE_NAME);
+        RandomAccessFile out;
+        int[] map;
+        synchronized (this) {
+            if (dirty != null || evictedCount == 0) {
+                return;
+            }
+            writeNewFile(compactFile, appVersion, generation + 1, null);
+            out = new RandomAccessFile(compactFile, "rw");
+            dirty = new BitSet();
+            map = new int[recordCount];
+        }
+        boolean done = false;
+        try {
+            FileChannel target = out.getChannel();
+            // 已拷贝的旧记录数、新文件中的记录数
+            int cursor = 0;
+            int written = 0;
+            while (true) {
+                ByteBuffer chunk;
+                int chunkStart = written;
+                synchronized (this) {
+                    if (cursor + COMPACT_CHUNK >= map.length) {
+                        break;
+                    }
+                    chunk = ByteBuffer.allocate(COMPACT_CHUNK * RECORD_SIZE);
+                    written = copyLive(cursor, cursor + COMPACT_CHUNK, map, written, chunk);
+                }
+                chunk.flip();
+                writeFully(target, chunk, HEAD_SIZE + (long) chunkStart * RECORD_SIZE);
+                cursor += COMPACT_CHUNK;
+            }
+            target.force(false);
+
+            synchronized (this) {
+                int tailStart = written;
+                ByteBuffer tail = ByteBuffer.allocate(Math.max(0, map.length - cursor) * RECORD_SIZE);
+                written = copyLive(cursor, map.length, map, written, tail);
+                tail.flip();
+                writeFully(target, tail, HEAD_SIZE + (long) tailStart * RECORD_SIZE);
+                // compact开始后追加的记录原样拷贝(可能已被淘汰，留到下一代)
+                ByteBuffer appended = ByteBuffer.allocate((recordCount - map.length) * RECORD_SIZE);
+                for (int record = map.length; record < recordCount; record++) {
+                    putRecord(record, appended);
+                }
+                appended.flip();
+                writeFully(target, appended, HEAD_SIZE + (long) written * RECORD_SIZE);
+                // 已拷贝过、之后又被修改的记录，按镜像重写；之后被淘汰的写成EVICTED，留到下一代
+                for (int record = dirty.nextSetBit(0); record >= 0 && record < cursor;
+                     record = dirty.nextSetBit(record + 1)) {
+                    if (map[record] == DigestIndex.ABSENT) {
+                        continue;
+                    }
+                    ByteBuffer one = ByteBuffer.allocate(RECORD_SIZE);
+                    putRecord(record, one);
+                    one.flip();
+                    writeFully(target, one, HEAD_SIZE + (long) map[record] * RECORD_SIZE);
+                }
+                target.force(false);
+                out.close();
+                out = null;
+                if (!compactFile.renameTo(file)) {
+                    throw new IOException("rename " + compactFile + " failed");
+                }
+                // rename后旧文件只剩这个fd引用，换成新一代
+                close();
+                raf = new RandomAccessFile(file, "rw");
+                channel = raf.getChannel();
+                load();
+                done = true;
+            }
+        } finally {
+            synchronized (this) {
+                dirty = null;
+            }
+            if (out != null) {
+                out.close();
+            }
+            if (!done) {
+                compactFile.delete();
+            }
+        }
+    }
+
+    /**
+     * 把[from, to)中未被淘汰的记录拷入buffer
+     *
+     * @param map     记下每条旧记录在新文件中的序号，被淘汰的为ABSENT
+     * @param written 新文件中已有的记录数
+     * @return 拷贝后新文件中的记录数
+     */
+    private int copyLive(int from, int to, int[] map, int written, ByteBuffer buffer) {
+        for (int record = from; record < to; record++) {
+            if (getStatus(record) == STATUS_EVICTED) {
+                map[record] = DigestIndex.ABSENT;
+                continue;
+            }
+            map[record] = written++;
+            putRecord(record, buffer);
+        }
+        return written;
+    }
+
+    private void putRecord(int record, ByteBuffer buffer) {
+        int base = record * RECORD_SIZE;
+        for (int i = 0; i < RECORD_SIZE; i++) {
+            buffer.put(records.get(base + i));
+        }
+    }
+
+    private static void writeFully(FileChannel channel, ByteBuffer buffer, long position) throws IOException {
+        while (buffer.hasRemaining()) {
+            position += channel.write(buffer, position);
+        }
+    }
+
+    /**
+     * 将镜像中某条记录的[offset, offset + length)写回文件
+     */
+    private void flush(int record, int offset, int length) throws IOException {
+        if (dirty != null) {
+            dirty.set(record);
+        }
+        int base = record * RECORD_SIZE + offset;
+        scratch.clear();
+        for (int i = 0; i < length; i++) {
+            scratch.put(records.get(base + i));
+        }
+        scratch.flip();
+        long position = HEAD_SIZE + (long) base;
+        while (scratch.hasRemaining()) {
+            position += channel.write(scratch, position);
+        }
+    }
+
+    private void ensureCapacity(int count) {
+        if (records.capacity() >= count * RECORD_SIZE) {
+            return;
+        }
+        int capacity = records.capacity();
+        while (capacity < count * RECORD_SIZE) {
+            capacity <<= 1;
+        }
+        ByteBuffer bigger = ByteBuffer.allocate(capacity);
+        records.clear();
+        bigger.put(records);
+        records = bigger;
+    }
+
+    private void load() throws IOException {
+        String[] head = readTextHead(file);
+        appVersion = head == null ? null : head[2];
+        ByteBuffer generationBuffer = ByteBuffer.allocate(8);
+        channel.read(generationBuffer, OFFSET_GENERATION);
+        generation = generationBuffer.position() == 8 ? generationBuffer.getLong(0) : 0;
+        index.clear();
+        recordCount = 0;
+        evictedCount = 0;
+        // 末尾不完整的记录(写入过程中进程被杀)直接忽略，下次append会覆盖
+        int total = (int) Math.max(0, (channel.size() - HEAD_SIZE) / RECORD_SIZE);
+        ensureCapacity(total);
+        records.clear();
+        records.limit(total * RECORD_SIZE);
+        long position = HEAD_SIZE;
+        while (records.hasRemaining()) {
+            int read = channel.read(records, position);
+            if (read < 0) {
+                break;
+            }
+            position += read;
+        }
+        records.clear();
+        for (int record = 0; record < total; record++) {
+            byte status = getStatus(record);
+            if (status == STATUS_EVICTED) {
+                evictedCount++;
+            } else if (status == STATUS_NEW || status == STATUS_UPLOADED) {
+                index.put(getHi(record), getLo(record), record);
+            } else {
+                break;
+            }
+            recordCount++;
+        }
+    }
+
+    /**
+     * 1.0 -> 2.0：读出文本索引(以及尚未替换回来的bug_temp)，写成新文件后替换
+     */
+    private void migrateFromText(String appVersion) throws IOException {
+        File dir = file.getParentFile();
+        long now = file.lastModified();
+        DigestIndex migrated = new DigestIndex();
+        ByteBuffer body = ByteBuffer.allocate(RECORD_SIZE * 64);
+        int count = 0;
+        File[] sources = {file, new File(dir, TEMP_FILE_NAME)};
+        for (File source : sources) {
+            if (!source.exists()) {
+                continue;
+            }
+            BufferedReader reader = new BufferedReader(new FileReader(source));
+            try {
+                String line;
+                int lineNumber = 0;
+                while ((line = reader.readLine()) != null) {
+                    // 跳过4行head
+                    if (++lineNumber <= 4) {
+                        continue;
+                    }
+                    String[] splits = line.split(" ");
+                    if (splits.length < 2) {
+                        continue;
+                    }
+                    byte status;
+                    if ("N".equals(splits[1])) {
+                        status = STATUS_NEW;
+                    } else if ("U".equals(splits[1])) {
+                        status = STATUS_UPLOADED;
+                    } else {
+                        continue;
+                    }
+                    long hi = DigestIndex.high(splits[0]);
+                    long lo = DigestIndex.low(splits[0]);
+                    int record = migrated.get(hi, lo);
+                    if (record == DigestIndex.ABSENT) {
+                        record = count++;
+                        migrated.put(hi, lo, record);
+                        if (body.capacity() < count * RECORD_SIZE) {
+                            ByteBuffer bigger = ByteBuffer.allocate(body.capacity() * 2);
+                            body.clear();
+                            bigger.put(body);
+                            body = bigger;
+                        }
+                        int base = record * RECORD_SIZE;
+                        body.putLong(base + OFFSET_HI, hi);
+                        body.putLong(base + OFFSET_LO, lo);
+                        body.putInt(base + OFFSET_COUNT, 1);
+                        body.putLong(base + OFFSET_FIRST_SEEN, now);
+                        body.putLong(base + OFFSET_LAST_SEEN, now);
+                    }
+                    // bug_temp中的U覆盖bug中的N
+                    if (status == STATUS_UPLOADED || body.get(record * RECORD_SIZE + OFFSET_STATUS) == 0) {
+                        body.put(record * RECORD_SIZE + OFFSET_STATUS, status);
+                    }
+                }
+            } finally {
+                reader.close();
+            }
+        }
+        body.clear();
+        body.limit(count * RECORD_SIZE);
+        File migrateFile = new File(dir, MIGRATE_FILE_NAME);
+        writeNewFile(migrateFile, appVersion, 0, body);
+        if (!migrateFile.renameTo(file)) {
+            throw new IOException("migrate " + file + " failed");
+        }
+        new File(dir, TEMP_FILE_NAME).delete();
+    }
+
+    private static void writeNewFile(File target, String appVersion, long generation, ByteBuffer body)
+            throws IOException {
+        byte[] text = (MAGIC + "\n" + VERSION + "\n" + appVersion + "\n\n").getBytes(UTF_8);
+        if (text.length > OFFSET_GENERATION) {
+            throw new IOException("app version too long: " + appVersion);
+        }
+        ByteBuffer head = ByteBuffer.allocate(HEAD_SIZE);
+        head.put(text);
+        head.putLong(OFFSET_GENERATION, generation);
+        head.clear();
+        RandomAccessFile out = new RandomAccessFile(target, "rw");
+        try {
+            FileChannel channel = out.getChannel();
+            channel.truncate(0);
+            channel.write(head, 0);
+            if (body != null) {
+                channel.write(body, HEAD_SIZE);
+            }
+            channel.force(false);
+        } finally {
+            out.close();
+        }
+    }
+
+    /**
+     * 读取head中的前三行，head不完整返回null
+     */
+    private static String[] readTextHead(File file) throws IOException {
+        if (!file.exists()) {
+            return null;
+        }
+        byte[] bytes = new byte[HEAD_SIZE];
+        FileInputStream in = new FileInputStream(file);
+        int length = 0;
+        try {
+            int read;
+            while (length < HEAD_SIZE && (read = in.read(bytes, length, HEAD_SIZE - length)) != -1) {
+                length += read;
+            }
+        } finally {
+            in.close();
+        }
+        String[] lines = new String[3];
+        int start = 0;
+        int line = 0;
+        for (int i = 0; i < length && line < 3; i++) {
+            if (bytes[i] == '\n') {
+                lines[line++] = new String(bytes, start, i - start, UTF_8);
+                start = i + 1;
+            }
+        }
+        return line == 3 ? lines : null;
+    }
+
+    /**
+     * 摘要 -> 32位十六进制key，即bug文件名
+     */
+    public static String toKey(long hi, long lo) {
+        char[] chars = new char[32];
+        for (int i = 15; i >= 0; i--) {
+            chars[i] = Character.forDigit((int) (hi & 0xf), 16);
+            chars[i + 16] = Character.forDigit((int) (lo & 0xf), 16);
+            hi >>>= 4;
+            lo >>>= 4;
+        }
+        return new String(chars);
+    }
+}
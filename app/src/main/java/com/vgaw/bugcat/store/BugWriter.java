@@ -0,0 +1,125 @@
+package com.vgaw.bugcat.store;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+
+/**
+ * bugbox的唯一写入者：查重、写内容、写索引；key已存在时只累加出现次数(一次定位写)，不再写内容。
+ * <p/>
+ * "key不存在才追加"是先查后写，两个线程同时做会都查到不存在而各写一条，
+ * 所以只允许{@link ReportQueue}的写入线程调用{@link #write}，提交方之间不加锁、只入队。
+ * 方法本身仍是synchronized的，误从别的线程调用时退化为串行而不是写出重复记录。
+ * <p/>
+ * 与其他线程的交互都经过各自的锁：上传、淘汰、核对在调度线程中按记录修改索引(持journal的锁)，
+ * compact期间的追加由{@link BugJournal}带入新一代，段的追加与回收由{@link SegmentStore}串行。
+ */
+public class BugWriter {
+    private final File dir;
+    private final BugJournal journal;
+    // 可为null，此时每个key一个文件
+    private final SegmentStore segments;
+
+    private int appendedCount;
+    private int duplicateCount;
+
+    public BugWriter(File dir, BugJournal journal, SegmentStore segments) {
+        this.dir = dir;
+        this.journal = journal;
+        this.segments = segments;
+    }
+
+    /**
+     * 写入一条bug，key已存在时只累加出现次数
+     *
+     * @return 记录序号；已存在返回已有记录的序号
+     */
+    public int write(String key, byte[] body, long now) throws IOException {
+        return write(key, body, now, 1);
+    }
+
+    /**
+     * @param occurrences 出现次数，如其他进程交来的累计次数
+     */
+    public synchronized int write(String key, byte[] body, long now, int occurrences) throws IOException {
+        long hi = DigestIndex.high(key);
+        long lo = DigestIndex.low(key);
+        int record = count(hi, lo, now, occurrences);
+        if (record != DigestIndex.ABSENT) {
+            duplicateCount++;
+            return record;
+        }
+        // 先写内容再写索引，索引中出现的key其内容一定已落盘
+        if (segments != null) {
+            long position = segments.append(body);
+            record = journal.append(hi, lo, now, SegmentStore.segmentOf(position), SegmentStore.offsetOf(position),
+                    body.length);
+        } else {
+            writeFile(new File(dir, key), body);
+            record = journal.append(hi, lo, now);
+        }
+        appendedCount++;
+        if (occurrences > 1) {
+            count(hi, lo, now, occurrences - 1);
+        }
+        return record;
+    }
+
+    /**
+     * @return key是否已在索引中
+     */
+    public boolean contains(String key) {
+        return journal.find(DigestIndex.high(key), DigestIndex.low(key)) != DigestIndex.ABSENT;
+    }
+
+    /**
+     * 只累加出现次数，key不存在(如已被淘汰)时忽略
+     *
+     * @return 记录序号，不存在返回{@link DigestIndex#ABSENT}
+     */
+    public synchronized int count(String key, long now, int occurrences) throws IOException {
+        return count(DigestIndex.high(key), DigestIndex.low(key), now, occurrences);
+    }
+
+    /**
+     * 文本的key，见{@link Fingerprint#hash(String)}；写入线程中应复用实例
+     */
+    public static String keyOf(String bugInfo) {
+        return new Fingerprint().hash(bugInfo).toKey();
+    }
+
+    private int count(long hi, long lo, long now, int occurrences) throws IOException {
+        // 持锁，find到touch之间记录序号不会因compact改变
+        synchronized (journal) {
+            int record = journal.find(hi, lo);
+            if (record != DigestIndex.ABSENT && occurrences > 0) {
+                journal.touch(record, now, occurrences);
+            }
+            return record;
+        }
+    }
+
+    /**
+     * @return 新追加的记录数
+     */
+    public synchronized int getAppendedCount() {
+        return appendedCount;
+    }
+
+    /**
+     * @return 因key已存在而未写入的次数
+     */
+    public synchronized int getDuplicateCount() {
+        return duplicateCount;
+    }
+
+    private static void writeFile(File file, byte[] body) throws IOException {
+        RandomAccessFile out = new RandomAccessFile(file, "rw");
+        try {
+            out.setLength(0);
+            out.write(body);
+        } finally {
+            out.close();
+        }
+    }
+}
@@ -0,0 +1,646 @@
+package com.vgaw.bugcat.store;
+
+import java.io.IOException;
+import java.nio.BufferOverflowException;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * 崩溃内容的二进制格式(版本1)，与{@link TraceEncoder}的文本记录同样的信息，类名、方法名、文件名按序号引用
+ * lane的{@link StringTable}，其余字段为varint：
+ * <pre>
+ * record     := 0xBC 0x01 throwable
+ * throwable  := ref(类名) ref(message) frames varint(omitted) children varint(flags)
+ * frames     := { 0x01 ref(类名) ref(方法名) ref(文件名) zigzag(行号)
+ *               | 0x02 varint(period) varint(repeats) } 0x00     递归：前period帧又重复了repeats轮
+ * children   := { 0x01 throwable(suppressed) | 0x02 throwable(cause) } 0x00
+ * ref        := 0x00 null | 0x01 varint(n) n字节UTF-8(内联) | varint(序号 + 2)
+ * flags      := 1 CIRCULAR(只有类名和message) | 2 DEPTH_LIMIT(省略了children) | 4 TRUNCATED(字节数用完)
+ * </pre>
+ * 首字节0xBC不可能是UTF-8文本的开头，与文本记录(崩溃槽中的、手动提交的)共存于同一个bugbox，按首字节区分。
+ * message总是内联；字符串表满了之后新的名字也内联。
+ * <p/>
+ * 上传时记录原样发出，引用到的字符串随批次发出(见UploadBatch的STRINGS)；交给别的进程前转为全部内联
+ * ({@link #transcode})，接收方再按自己的表转回序号。{@link #decode}还原为与TraceEncoder相同的文本，供收集端使用。
+ */
+public class CrashRecord {
+    public static final int MAGIC = 0xBC;
+    public static final int VERSION = 1;
+
+    static final int TAG_END = 0;
+    static final int TAG_FRAME = 1;
+    static final int TAG_REPEAT = 2;
+    static final int TAG_SUPPRESSED = 1;
+    static final int TAG_CAUSE = 2;
+
+    static final int FLAG_CIRCULAR = 1;
+    static final int FLAG_DEPTH_LIMIT = 2;
+    static final int FLAG_TRUNCATED = 4;
+
+    private static final int REF_NULL = 0;
+    private static final int REF_INLINE = 1;
+    private static final int REF_BASE = 2;
+    // 一层throwable收尾所需：frames的0x00、omitted、children的0x00、flags
+    private static final int CLOSE_SIZE = 1 + 5 + 1 + 5;
+    // 一帧在全部按序号引用时的最大字节数
+    private static final int FRAME_SIZE = 1 + 5 + 5 + 5 + 5;
+
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    /**
+     * 按序号取字符串
+     */
+    public interface Strings {
+        /**
+         * @return 不存在返回null
+         */
+        String get(int index);
+    }
+
+    private volatile int maxDepth;
+    private volatile int maxFrames;
+    private volatile int maxBytes;
+    private Throwable[] seen = new Throwable[TraceEncoder.DEFAULT_MAX_DEPTH * 4];
+    private int seenCount;
+    private StringTable table;
+    private int reserve;
+    private int end;
+
+    public CrashRecord() {
+        this(TraceEncoder.DEFAULT_MAX_DEPTH, TraceEncoder.DEFAULT_MAX_FRAMES, TraceEncoder.DEFAULT_MAX_BYTES);
+    }
+
+    public CrashRecord(int maxDepth, int maxFrames, int maxBytes) {
+        setLimits(maxDepth, maxFrames, maxBytes);
+    }
+
+    /**
+     * 预算同{@link TraceEncoder#setLimits}，maxBytes按二进制的字节数计
+     */
+    public void setLimits(int maxDepth, int maxFrames, int maxBytes) {
+        this.maxDepth = maxDepth;
+        this.maxFrames = maxFrames;
+        this.maxBytes = maxBytes;
+    }
+
+    /**
+     * 编码ex，从out的position开始写。新出现的名字追加到table，所以只在写入线程中调用
+     *
+     * @param table 为null时全部内联
+     * @param out   剩余空间不应小于1KB，写入的字节数不超过maxBytes与剩余空间中较小的
+     */
+    public void encode(Throwable ex, StringTable table, ByteBuffer out) throws IOException {
+        int maxDepth = Math.max(1, this.maxDepth);
+        if (seen.length < maxDepth * 4) {
+            seen = new Throwable[maxDepth * 4];
+        }
+        this.table = table;
+        seenCount = 0;
+        // 每层收尾的字节先留出来，最深maxDepth层
+        reserve = CLOSE_SIZE * (maxDepth + 1);
+        end = out.position() + Math.min(out.remaining(), Math.max(maxBytes, 2 + reserve + 64));
+        try {
+            out.put((byte) MAGIC);
+            out.put((byte) VERSION);
+            encodeThrowable(ex, ex.getStackTrace(), null, 0, maxDepth, out);
+        } finally {
+            for (int i = 0; i < seenCount; i++) {
+                seen[i] = null;
+            }
+            this.table = null;
+        }
+    }
+
+    /**
+     * @return 是否截断
+     */
+    private boolean encodeThrowable(Throwable t, StackTraceElement[] elements, StackTraceElement[] enclosing,
+                                    int depth, int maxDepth, ByteBuffer out) throws IOException {
+        String className = t.getClass().getName();
+        if (!writeName(out, className)) {
+            // 类名必须有，放不下全文就截短
+            writeInline(out, className, (available(out) - reserve) / 2);
+        }
+        writeInline(out, t.getLocalizedMessage(), available(out) - reserve);
+        for (int i = 0; i < seenCount; i++) {
+            if (seen[i] == t) {
+                out.put((byte) TAG_END);
+                putVarint(out, 0);
+                out.put((byte) TAG_END);
+                putVarint(out, FLAG_CIRCULAR);
+                return false;
+            }
+        }
+        if (seenCount < seen.length) {
+            seen[seenCount++] = t;
+        }
+        boolean truncated = false;
+        int framesInCommon = TraceEncoder.framesInCommon(elements, enclosing);
+        int frameEnd = elements.length - framesInCommon;
+        int written = 0;
+        int i = 0;
+        int maxFrames = this.maxFrames;
+        while (i < frameEnd && written < maxFrames) {
+            int period = TraceEncoder.period(elements, i, frameEnd);
+            int repeats = period == 0 ? 0 : TraceEncoder.repeats(elements, i, frameEnd, period);
+            int frames = period == 0 ? 1 : period;
+            if (available(out) - reserve < frames * FRAME_SIZE + 11) {
+                truncated = true;
+                break;
+            }
+            int j = 0;
+            for (; j < frames && written < maxFrames; j++) {
+                if (!writeFrame(out, elements[i + j])) {
+                    truncated = true;
+                    break;
+                }
+                written++;
+            }
+            if (truncated) {
+                i += j;
+                break;
+            }
+            if (period != 0) {
+                out.put((byte) TAG_REPEAT);
+                putVarint(out, period);
+                putVarint(out, repeats);
+            }
+            i += frames * (repeats + 1);
+        }
+        out.put((byte) TAG_END);
+        putVarint(out, frameEnd - i + framesInCommon);
+        int flags = truncated ? FLAG_TRUNCATED : 0;
+        Throwable[] suppressed = t.getSuppressed();
+        Throwable cause = t.getCause();
+        if (!truncated && depth + 1 >= maxDepth) {
+            if (cause != null || suppressed.length != 0) {
+                flags |= FLAG_DEPTH_LIMIT;
+            }
+        } else if (!truncated) {
+            for (int k = 0; k <= suppressed.length && !truncated; k++) {
+                Throwable child = k < suppressed.length ? suppressed[k] : cause;
+                if (child == null) {
+                    continue;
+                }
+                // 至少放得下类名、message和收尾
+                if (available(out) - reserve < 1 + FRAME_SIZE + CLOSE_SIZE) {
+                    truncated = true;
+                    flags |= FLAG_TRUNCATED;
+                    break;
+                }
+                out.put((byte) (k < suppressed.length ? TAG_SUPPRESSED : TAG_CAUSE));
+                truncated = encodeThrowable(child, child.getStackTrace(), elements, depth + 1, maxDepth, out);
+            }
+        }
+        out.put((byte) TAG_END);
+        putVarint(out, flags);
+        return truncated;
+    }
+
+    /**
+     * @return 放不下时返回false，什么也不写
+     */
+    private boolean writeFrame(ByteBuffer out, StackTraceElement element) throws IOException {
+        int start = out.position();
+        out.put((byte) TAG_FRAME);
+        if (!writeName(out, element.getClassName()) || !writeName(out, element.getMethodName())
+                || !writeName(out, element.getFileName())) {
+            out.position(start);
+            return false;
+        }
+        putVarint(out, zigzag(element.getLineNumber()));
+        return true;
+    }
+
+    /**
+     * 名字优先按序号引用
+     *
+     * @return 内联时放不下返回false
+     */
+    private boolean writeName(ByteBuffer out, String name) throws IOException {
+        if (name == null) {
+            putVarint(out, REF_NULL);
+            return true;
+        }
+        int index = table == null ? -1 : table.intern(name);
+        if (index >= 0) {
+            putVarint(out, index + REF_BASE);
+            return true;
+        }
+        int length = utf8Length(name, Integer.MAX_VALUE);
+        if (available(out) - reserve < 1 + 5 + length) {
+            return false;
+        }
+        writeInline(out, name, length);
+        return true;
+    }
+
+    /**
+     * 内联写入，超过maxLength字节的部分截掉
+     */
+    private static void writeInline(ByteBuffer out, String s, int maxLength) {
+        if (s == null) {
+            putVarint(out, REF_NULL);
+            return;
+        }
+        int length = utf8Length(s, Math.max(0, maxLength - 6));
+        putVarint(out, REF_INLINE);
+        putVarint(out, length);
+        int limit = out.limit();
+        out.limit(out.position() + length);
+        TraceEncoder.putChars(out, s);
+        out.limit(limit);
+    }
+
+    private int available(ByteBuffer out) {
+        return end - out.position();
+    }
+
+    /**
+     * @return s的UTF-8字节数，超过max时返回不超过max的、落在字符边界上的字节数
+     */
+    static int utf8Length(String s, int max) {
+        int length = 0;
+        int n = s.length();
+        for (int i = 0; i < n; i++) {
+            char c = s.charAt(i);
+            int size;
+            if (c < 0x80) {
+                size = 1;
+            } else if (c < 0x800) {
+                size = 2;
+            } else if (Character.isHighSurrogate(c) && i + 1 < n && Character.isLowSurrogate(s.charAt(i + 1))) {
+                size = 4;
+            } else {
+                size = 3;
+            }
+            if (length + size > max) {
+                break;
+            }
+            length += size;
+            if (size == 4) {
+                i++;
+            }
+        }
+        return length;
+    }
+
+    /**
+     * @return 是否为二进制记录(否则为文本)
+     */
+    public static boolean isRecord(byte[] body) {
+        return body != null && body.length >= 2 && (body[0] & 0xff) == MAGIC;
+    }
+
+    /**
+     * 还原为与{@link TraceEncoder}相同的文本
+     *
+     * @param strings 序号引用的来源；引用不到的名字记为"?"
+     */
+    public static String decode(byte[] body, Strings strings) throws IOException {
+        Node root = parse(body, strings, null);
+        StringBuilder sb = new StringBuilder();
+        Frame frame0 = root.firstFrame();
+        if (frame0 == null && root.omitted == 0) {
+            sb.append("get crash info failed");
+        } else {
+            sb.append("bug  :").append(root.message);
+            sb.append("\ncause:");
+            Node cause = root.cause();
+            if (cause == null) {
+                sb.append("null");
+            } else {
+                cause.appendTitle(sb);
+            }
+            sb.append("\npath :");
+            if (frame0 != null) {
+                sb.append(frame0.line).append("->").append(frame0.method).append("->").append(frame0.className)
+                        .append("->").append(frame0.file);
+            }
+        }
+        render(root, null, 0, sb);
+        if (root.truncated()) {
+            sb.append("\n\t...truncated");
+        }
+        return sb.toString();
+    }
+
+    /**
+     * @param refs 不为null时收集引用到的序号
+     */
+    public static void collectRefs(byte[] body, Set<Integer> refs) throws IOException {
+        parse(body, null, refs);
+    }
+
+    /**
+     * 转换引用：按from解析，按to重新引用(to为null则全部内联)，用于在lane之间交接
+     */
+    public static byte[] transcode(byte[] body, Strings from, StringTable to) throws IOException {
+        Node root = parse(body, from, null);
+        ByteBuffer out = ByteBuffer.allocate(body.length * 4 + 64);
+        while (true) {
+            try {
+                out.clear();
+                out.put((byte) MAGIC);
+                out.put((byte) VERSION);
+                emit(root, to, out);
+                return Arrays.copyOf(out.array(), out.position());
+            } catch (BufferOverflowException e) {
+                out = ByteBuffer.allocate(out.capacity() * 2);
+            }
+        }
+    }
+
+    /**
+     * 无符号LEB128
+     *
+     * @return 写入的字节数
+     */
+    static int putVarint(byte[] out, int offset, int value) {
+        int n = 0;
+        while ((value & ~0x7f) != 0) {
+            out[offset + n++] = (byte) ((value & 0x7f) | 0x80);
+            value >>>= 7;
+        }
+        out[offset + n++] = (byte) value;
+        return n;
+    }
+
+    static void putVarint(ByteBuffer out, int value) {
+        while ((value & ~0x7f) != 0) {
+            out.put((byte) ((value & 0x7f) | 0x80));
+            value >>>= 7;
+        }
+        out.put((byte) value);
+    }
+
+    private static int zigzag(int value) {
+        return (value << 1) ^ (value >> 31);
+    }
+
+    private static int unzigzag(int value) {
+        return (value >>> 1) ^ -(value & 1);
+    }
+
+    private static class Frame {
+        String className;
+        String method;
+        String file;
+        int line;
+        // 大于0时为递归标记
+        int period;
+        int repeats;
+    }
+
+    private static class Node {
+        String className;
+        String message;
+        final List<Frame> frames = new ArrayList<Frame>();
+        int omitted;
+        final List<Node> children = new ArrayList<Node>();
+        final List<Integer> tags = new ArrayList<Integer>();
+        int flags;
+
+        Frame firstFrame() {
+            for (Frame frame : frames) {
+                if (frame.period == 0) {
+                    return frame;
+                }
+            }
+            return null;
+        }
+
+        Node cause() {
+            for (int i = 0; i < children.size(); i++) {
+                if (tags.get(i) == TAG_CAUSE) {
+                    return children.get(i);
+                }
+            }
+            return null;
+        }
+
+        boolean truncated() {
+            if ((flags & FLAG_TRUNCATED) != 0) {
+                return true;
+            }
+            for (Node child : children) {
+                if (child.truncated()) {
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        void appendTitle(StringBuilder sb) {
+            sb.append(className);
+            if (message != null) {
+                sb.append(": ").append(message);
+            }
+        }
+    }
+
+    private static void render(Node node, String caption, int indent, StringBuilder sb) {
+        newLine(sb, indent);
+        if (caption != null) {
+            sb.append(caption);
+        }
+        if ((node.flags & FLAG_CIRCULAR) != 0) {
+            sb.append("[CIRCULAR REFERENCE: ");
+            node.appendTitle(sb);
+            sb.append(']');
+            return;
+        }
+        node.appendTitle(sb);
+        for (Frame frame : node.frames) {
+            newLine(sb, indent);
+            if (frame.period != 0) {
+                sb.append("\t... ").append(frame.period * frame.repeats).append(" more (recursion)");
+                continue;
+            }
+            sb.append("\tat ").append(frame.className).append('.').append(frame.method);
+            if (frame.line == -2) {
+                sb.append("(Native Method)");
+            } else if (frame.file == null) {
+                sb.append("(Unknown Source)");
+            } else {
+                sb.append('(').append(frame.file);
+                if (frame.line >= 0) {
+                    sb.append(':').append(frame.line);
+                }
+                sb.append(')');
+            }
+        }
+        if (node.omitted > 0) {
+            newLine(sb, indent);
+            sb.append("\t... ").append(node.omitted).append(" more");
+        }
+        if ((node.flags & FLAG_DEPTH_LIMIT) != 0) {
+            newLine(sb, indent);
+            sb.append("\t... (depth limit)");
+        }
+        for (int i = 0; i < node.children.size(); i++) {
+            if (node.tags.get(i) == TAG_SUPPRESSED) {
+                render(node.children.get(i), "Suppressed: ", indent + 1, sb);
+            } else {
+                render(node.children.get(i), "Caused by: ", indent, sb);
+            }
+        }
+    }
+
+    private static void newLine(StringBuilder sb, int indent) {
+        sb.append('\n');
+        for (int i = 0; i < indent; i++) {
+            sb.append('\t');
+        }
+    }
+
+    private static void emit(Node node, StringTable to, ByteBuffer out) throws IOException {
+        emitName(node.className, to, out);
+        writeInline(out, node.message, Integer.MAX_VALUE);
+        for (Frame frame : node.frames) {
+            if (frame.period != 0) {
+                out.put((byte) TAG_REPEAT);
+                putVarint(out, frame.period);
+                putVarint(out, frame.repeats);
+                continue;
+            }
+            out.put((byte) TAG_FRAME);
+            emitName(frame.className, to, out);
+            emitName(frame.method, to, out);
+            emitName(frame.file, to, out);
+            putVarint(out, zigzag(frame.line));
+        }
+        out.put((byte) TAG_END);
+        putVarint(out, node.omitted);
+        for (int i = 0; i < node.children.size(); i++) {
+            out.put((byte) (int) node.tags.get(i));
+            emit(node.children.get(i), to, out);
+        }
+        out.put((byte) TAG_END);
+        putVarint(out, node.flags);
+    }
+
+    private static void emitName(String name, StringTable to, ByteBuffer out) throws IOException {
+        int index = name == null || to == null ? -1 : to.intern(name);
+        if (index >= 0) {
+            putVarint(out, index + REF_BASE);
+        } else {
+            writeInline(out, name, Integer.MAX_VALUE);
+        }
+    }
+
+    private static Node parse(byte[] body, Strings strings, Set<Integer> refs) throws IOException {
+        if (!isRecord(body)) {
+            throw new IOException("not a crash record");
+        }
+        if (body[1] != VERSION) {
+            throw new IOException("unknown crash record version: " + body[1]);
+        }
+        Parser parser = new Parser(body, strings, refs);
+        parser.position = 2;
+        try {
+            return parser.readThrowable(0);
+        } catch (ArrayIndexOutOfBoundsException e) {
+            throw new IOException("truncated crash record");
+        }
+    }
+
+    private static class Parser {
+        // 防止损坏的记录导致无限递归
+        private static final int MAX_NESTING = 64;
+
+        final byte[] body;
+        final Strings strings;
+        final Set<Integer> refs;
+        int position;
+
+        Parser(byte[] body, Strings strings, Set<Integer> refs) {
+            this.body = body;
+            this.strings = strings;
+            this.refs = refs;
+        }
+
+        Node readThrowable(int nesting) throws IOException {
+            if (nesting > MAX_NESTING) {
+                throw new IOException("crash record nested too deep");
+            }
+            Node node = new Node();
+            node.className = readRef();
+            node.message = readRef();
+            while (true) {
+                int tag = readVarint();
+                if (tag == TAG_END) {
+                    break;
+                }
+                Frame frame = new Frame();
+                if (tag == TAG_FRAME) {
+                    frame.className = readRef();
+                    frame.method = readRef();
+                    frame.file = readRef();
+                    frame.line = unzigzag(readVarint());
+                } else if (tag == TAG_REPEAT) {
+                    frame.period = readVarint();
+                    frame.repeats = readVarint();
+                } else {
+                    throw new IOException("bad frame tag: " + tag);
+                }
+                node.frames.add(frame);
+            }
+            node.omitted = readVarint();
+            while (true) {
+                int tag = readVarint();
+                if (tag == TAG_END) {
+                    break;
+                }
+                if (tag != TAG_SUPPRESSED && tag != TAG_CAUSE) {
+                    throw new IOException("bad child tag: " + tag);
+                }
+                node.tags.add(tag);
+                node.children.add(readThrowable(nesting + 1));
+            }
+            node.flags = readVarint();
+            return node;
+        }
+
+        String readRef() throws IOException {
+            int ref = readVarint();
+            if (ref == REF_NULL) {
+                return null;
+            }
+            if (ref == REF_INLINE) {
+                int length = readVarint();
+                if (length < 0 || length > body.length - position) {
+                    throw new IOException("bad string length: " + length);
+                }
+                String s = new String(body, position, length, UTF_8);
+                position += length;
+                return s;
+            }
+            int index = ref - REF_BASE;
+            if (refs != null) {
+                refs.add(index);
+            }
+            if (strings == null) {
+                return null;
+            }
+            String s = strings.get(index);
+            return s == null ? "?" : s;
+        }
+
+        int readVarint() throws IOException {
+            int value = 0;
+            for (int shift = 0; shift < 35; shift += 7) {
+                int b = body[position++] & 0xff;
+                value |= (b & 0x7f) << shift;
+                if (b < 0x80) {
+                    return value;
+                }
+            }
+            throw new IOException("bad varint");
+        }
+    }
+}
@@ -0,0 +1,123 @@
+package com.vgaw.bugcat.store;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+
+/**
+ * 崩溃槽(filepath is "../bugbox/crash_slot")，initial时预先创建并映射的定长文件：
+ * <pre>
+ * 0   state     byte  EMPTY/WRITING/COMMITTED
+ * 4   length    int   payload字节数
+ * 8   hi        long  key的高64位，见{@link Fingerprint}
+ * 16  lo        long  key的低64位
+ * 24  payload   UTF-8文本，格式见{@link TraceEncoder}
+ * </pre>
+ * uncaughtException时堆可能已经耗尽、进程随时会死，所以崩溃路径只往映射好的buffer里逐字符编码，
+ * 不打开文件、不拼接字符串(Throwable.getStackTrace()的数组拷贝除外)，写完把state置为COMMITTED。
+ * key在崩溃时按Throwable算好一并写入，与正常路径得到同一个key；旧版本写的槽(没有key，payload在8)按文本计算。
+ * 映射是共享的，进程被杀后脏页仍由内核写回，无需force。
+ * <p/>
+ * 下次启动时{@link #take()}取出COMMITTED的内容，交给正常的存储流程，再清空。
+ */
+public class CrashSlot {
+    public static final int SLOT_SIZE = 32 * 1024;
+
+    private static final byte STATE_EMPTY = 0;
+    private static final byte STATE_WRITING = 1;
+    // 旧版本的提交状态，没有key
+    private static final byte STATE_COMMITTED_TEXT = 2;
+    private static final byte STATE_COMMITTED = 3;
+
+    private static final int OFFSET_STATE = 0;
+    private static final int OFFSET_LENGTH = 4;
+    private static final int OFFSET_HI = 8;
+    private static final int OFFSET_LO = 16;
+    private static final int OFFSET_PAYLOAD = 24;
+    private static final int OFFSET_TEXT_PAYLOAD = 8;
+
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    private final File file;
+    private MappedByteBuffer buffer;
+
+    public CrashSlot(File file) {
+        this.file = file;
+    }
+
+    /**
+     * 创建(如需要)并映射槽文件
+     */
+    public void open() throws IOException {
+        RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        try {
+            if (raf.length() != SLOT_SIZE) {
+                raf.setLength(SLOT_SIZE);
+            }
+            // 映射建立后即与channel无关，关闭文件不影响映射
+            buffer = raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, SLOT_SIZE);
+        } finally {
+            raf.close();
+        }
+    }
+
+    /**
+     * 取出上次进程提交的崩溃信息并清空槽；没有或未写完整则返回null
+     *
+     * @return key和内容，次数为1
+     */
+    public Handoff.Entry take() {
+        if (buffer == null) {
+            return null;
+        }
+        Handoff.Entry report = null;
+        byte state = buffer.get(OFFSET_STATE);
+        if (state == STATE_COMMITTED || state == STATE_COMMITTED_TEXT) {
+            int offset = state == STATE_COMMITTED ? OFFSET_PAYLOAD : OFFSET_TEXT_PAYLOAD;
+            int length = buffer.getInt(OFFSET_LENGTH);
+            if (length > 0 && length <= SLOT_SIZE - offset) {
+                byte[] bytes = new byte[length];
+                ByteBuffer payload = buffer.duplicate();
+                payload.position(offset);
+                payload.get(bytes);
+                String key = state == STATE_COMMITTED
+                        ? BugJournal.toKey(buffer.getLong(OFFSET_HI), buffer.getLong(OFFSET_LO))
+                        : BugWriter.keyOf(new String(bytes, UTF_8));
+                report = new Handoff.Entry(key, bytes, 1);
+            }
+        }
+        // WRITING表示上次写到一半进程就没了，内容不可信，直接丢弃
+        if (buffer.get(OFFSET_STATE) != STATE_EMPTY) {
+            buffer.put(OFFSET_STATE, STATE_EMPTY);
+            buffer.force();
+        }
+        return report;
+    }
+
+    /**
+     * 崩溃路径：将ex的key和内容编码进映射区并提交
+     *
+     * @param fingerprint 崩溃路径专用的实例，选项与写入线程的一致
+     * @param encoder     崩溃路径专用的实例，预算与写入线程的一致
+     * @return 槽未映射时返回false，调用方应退回普通的存储流程
+     */
+    public boolean write(Throwable ex, Fingerprint fingerprint, TraceEncoder encoder) {
+        if (buffer == null) {
+            return false;
+        }
+        buffer.put(OFFSET_STATE, STATE_WRITING);
+        fingerprint.hash(ex);
+        buffer.putLong(OFFSET_HI, fingerprint.high());
+        buffer.putLong(OFFSET_LO, fingerprint.low());
+        buffer.clear();
+        buffer.position(OFFSET_PAYLOAD);
+        encoder.encode(ex, buffer);
+        buffer.putInt(OFFSET_LENGTH, buffer.position() - OFFSET_PAYLOAD);
+        buffer.put(OFFSET_STATE, STATE_COMMITTED);
+        return true;
+    }
+}
@@ -0,0 +1,146 @@
+package com.vgaw.bugcat.store;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.charset.Charset;
+
+/**
+ * 设备和app信息(Build字段、版本号等)的快照(filepath is "../bugbox/profile")：每台设备、每个app版本只采集一次，
+ * 带内容的hash持久化。上传的批次只带hash，内容只在收集端确认收下之前随批次发出，即每台设备一次，而不是每条bug一次。
+ * <pre>
+ * MAGIC     int
+ * uploaded  boolean  收集端是否已确认
+ * stamp     UTF      采集时的app版本和系统版本，变了才重新采集
+ * hash      UTF      内容的hash，32位十六进制
+ * length    int
+ * body      length字节UTF-8
+ * </pre>
+ * bugbox中各进程共用一份：先写.tmp再rename，读到的总是完整的一份。只有上传者标记已确认。
+ */
+public class DeviceProfile {
+    public static final String FILE_NAME = "profile";
+
+    private static final int MAGIC = 0x42435066;
+    private static final String TEMP_SUFFIX = ".tmp";
+    // 防止读到损坏的长度
+    private static final int MAX_BODY = 64 * 1024;
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    private final File file;
+    private String stamp;
+    private String hash;
+    private byte[] body;
+    private boolean uploaded;
+
+    public DeviceProfile(File file) {
+        this.file = file;
+    }
+
+    /**
+     * @return 是否读到了完整的快照；文件不存在或已损坏返回false，内容为空
+     */
+    public synchronized boolean load() {
+        if (!file.exists()) {
+            return false;
+        }
+        try {
+            DataInputStream in = new DataInputStream(new FileInputStream(file));
+            try {
+                if (in.readInt() != MAGIC) {
+                    return false;
+                }
+                boolean uploaded = in.readBoolean();
+                String stamp = in.readUTF();
+                String hash = in.readUTF();
+                int length = in.readInt();
+                if (length < 0 || length > MAX_BODY) {
+                    return false;
+                }
+                byte[] body = new byte[length];
+                in.readFully(body);
+                this.uploaded = uploaded;
+                this.stamp = stamp;
+                this.hash = hash;
+                this.body = body;
+                return true;
+            } finally {
+                in.close();
+            }
+        } catch (IOException e) {
+            return false;
+        }
+    }
+
+    /**
+     * 换成新采集的内容；内容与之前的相同(hash不变)时保留已确认的标记
+     *
+     * @param stamp 采集时的app版本和系统版本
+     * @throws IOException 没能持久化，内存中已更新
+     */
+    public synchronized void update(String stamp, String content) throws IOException {
+        String hash = new Fingerprint().hash(content).toKey();
+        uploaded = uploaded && hash.equals(this.hash);
+        this.stamp = stamp;
+        this.hash = hash;
+        body = content.getBytes(UTF_8);
+        save();
+    }
+
+    /**
+     * 收集端确认收下了hash对应的内容时记为true，之后的批次只带hash；
+     * 只带hash的批次没有得到确认(收集端没有这份内容)时记为false，下一批重新带上内容
+     */
+    public synchronized void setUploaded(String hash, boolean uploaded) throws IOException {
+        if (this.uploaded == uploaded || !hash.equals(this.hash)) {
+            return;
+        }
+        this.uploaded = uploaded;
+        save();
+    }
+
+    public synchronized String getStamp() {
+        return stamp;
+    }
+
+    /**
+     * @return 没有内容时为null
+     */
+    public synchronized String getHash() {
+        return hash;
+    }
+
+    public synchronized byte[] getBody() {
+        return body;
+    }
+
+    public synchronized boolean isUploaded() {
+        return uploaded;
+    }
+
+    private void save() throws IOException {
+        // 各进程各用一个临时文件，同时写时后rename的为准
+        File temp = File.createTempFile(file.getName(), TEMP_SUFFIX, file.getParentFile());
+        FileOutputStream fos = new FileOutputStream(temp);
+        try {
+            DataOutputStream out = new DataOutputStream(fos);
+            out.writeInt(MAGIC);
+            out.writeBoolean(uploaded);
+            out.writeUTF(stamp);
+            out.writeUTF(hash);
+            out.writeInt(body.length);
+            out.write(body);
+            out.flush();
+            fos.getFD().sync();
+        } finally {
+            fos.close();
+        }
+        if (!temp.renameTo(file)) {
+            temp.delete();
+            throw new IOException("rename " + temp + " failed");
+        }
+    }
+}
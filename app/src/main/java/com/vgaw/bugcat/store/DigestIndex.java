@@ -0,0 +1,206 @@
+package com.vgaw.bugcat.store;
+
+/**
+ * 以128位摘要(hi, lo)为key的开放寻址哈希表，value为非负int。
+ * <p/>
+ * 之所以不用HashSet<String>：key常驻内存，数量可达数千，
+ * 用两个long数组保存摘要，查询时既不需要构造String，也不会装箱，查询过程零分配。
+ * <p/>
+ * 线性探测，容量始终为2的幂，负载因子超过3/4时扩容。
+ */
+public class DigestIndex {
+    public static final int ABSENT = -1;
+
+    private static final int MIN_CAPACITY = 16;
+
+    private long[] his;
+    private long[] los;
+    // ABSENT表示该槽位为空
+    private int[] values;
+    private int size;
+    private int mask;
+
+    public DigestIndex() {
+        this(MIN_CAPACITY);
+    }
+
+    public DigestIndex(int expectedSize) {
+        int capacity = MIN_CAPACITY;
+        while (capacity * 3 / 4 < expectedSize) {
+            capacity <<= 1;
+        }
+        allocate(capacity);
+    }
+
+    private void allocate(int capacity) {
+        his = new long[capacity];
+        los = new long[capacity];
+        values = new int[capacity];
+        for (int i = 0; i < capacity; i++) {
+            values[i] = ABSENT;
+        }
+        mask = capacity - 1;
+        size = 0;
+    }
+
+    /**
+     * @return key对应的value，不存在则返回{@link #ABSENT}
+     */
+    public int get(long hi, long lo) {
+        int i = slot(hi, lo);
+        while (values[i] != ABSENT) {
+            if (his[i] == hi && los[i] == lo) {
+                return values[i];
+            }
+            i = (i + 1) & mask;
+        }
+        return ABSENT;
+    }
+
+    public boolean contains(long hi, long lo) {
+        return get(hi, lo) != ABSENT;
+    }
+
+    /**
+     * 插入或覆盖
+     *
+     * @param value 必须非负
+     * @return 之前的value，不存在则返回{@link #ABSENT}
+     */
+    public int put(long hi, long lo, int value) {
+        if (value < 0) {
+            throw new IllegalArgumentException("value must be non-negative: " + value);
+        }
+        int i = slot(hi, lo);
+        while (values[i] != ABSENT) {
+            if (his[i] == hi && los[i] == lo) {
+                int old = values[i];
+                values[i] = value;
+                return old;
+            }
+            i = (i + 1) & mask;
+        }
+        his[i] = hi;
+        los[i] = lo;
+        values[i] = value;
+        if (++size > (mask + 1) * 3 / 4) {
+            rehash((mask + 1) << 1);
+        }
+        return ABSENT;
+    }
+
+    /**
+     * 删除后把同一探测链上后面的项前移(backward shift)，不留墓碑，查询性能不退化
+     *
+     * @return 被删除的value，不存在则返回{@link #ABSENT}
+     */
+    public int remove(long hi, long lo) {
+        int i = slot(hi, lo);
+        while (values[i] != ABSENT) {
+            if (his[i] == hi && los[i] == lo) {
+                int old = values[i];
+                shiftBack(i);
+                size--;
+                return old;
+            }
+            i = (i + 1) & mask;
+        }
+        return ABSENT;
+    }
+
+    private void shiftBack(int hole) {
+        int i = hole;
+        while (true) {
+            i = (i + 1) & mask;
+            if (values[i] == ABSENT) {
+                break;
+            }
+            int home = slot(his[i], los[i]);
+            // home不在(hole, i]之间(环形)时，该项可以前移到hole
+            if (((i - home) & mask) >= ((i - hole) & mask)) {
+                his[hole] = his[i];
+                los[hole] = los[i];
+                values[hole] = values[i];
+                hole = i;
+            }
+        }
+        values[hole] = ABSENT;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public void clear() {
+        for (int i = 0; i < values.length; i++) {
+            values[i] = ABSENT;
+        }
+        size = 0;
+    }
+
+    private void rehash(int capacity) {
+        long[] oldHis = his;
+        long[] oldLos = los;
+        int[] oldValues = values;
+        allocate(capacity);
+        for (int i = 0; i < oldValues.length; i++) {
+            if (oldValues[i] != ABSENT) {
+                put(oldHis[i], oldLos[i], oldValues[i]);
+            }
+        }
+    }
+
+    private int slot(long hi, long lo) {
+        // 摘要本身已足够离散，这里再做一次murmur3的fmix64，防止退化的key(如hashCode兜底)聚集
+        long h = hi ^ lo;
+        h ^= h >>> 33;
+        h *= 0xff51afd7ed558ccdL;
+        h ^= h >>> 33;
+        h *= 0xc4ceb9fe1a85ec53L;
+        h ^= h >>> 33;
+        return (int) h & mask;
+    }
+
+    /**
+     * 取32位十六进制key的高64位；非十六进制key(如MD5不可用时的hashCode兜底)按hashCode处理
+     */
+    public static long high(String key) {
+        if (!isHexKey(key)) {
+            return 0L;
+        }
+        return parseHex(key, 0);
+    }
+
+    /**
+     * 取32位十六进制key的低64位
+     */
+    public static long low(String key) {
+        if (!isHexKey(key)) {
+            return key.hashCode();
+        }
+        return parseHex(key, 16);
+    }
+
+    /**
+     * @return 是否为32位十六进制key，即bug文件名
+     */
+    public static boolean isHexKey(String key) {
+        if (key.length() != 32) {
+            return false;
+        }
+        for (int i = 0; i < 32; i++) {
+            if (Character.digit(key.charAt(i), 16) < 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static long parseHex(String key, int from) {
+        long result = 0;
+        for (int i = from; i < from + 16; i++) {
+            result = (result << 4) | Character.digit(key.charAt(i), 16);
+        }
+        return result;
+    }
+}
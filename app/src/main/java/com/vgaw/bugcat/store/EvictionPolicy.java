@@ -0,0 +1,173 @@
+package com.vgaw.bugcat.store;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * bugbox的容量上限：总字节数、记录条数、记录存活时间。
+ * <p/>
+ * 超过存活时间的记录直接淘汰；之后若总字节数或条数仍超限，
+ * 先淘汰已上传的记录(只剩去重作用)，按lastSeen从旧到新，再淘汰最早出现的未上传记录。
+ * <p/>
+ * 字节数按磁盘上实际占用计：每条记录占索引中的RECORD_SIZE字节；段要等其中没有未上传的记录才整段回收，
+ * 所以段按整段计入(包括其中已上传、已淘汰的内容)，直到引用它的未上传记录都淘汰了才减去；
+ * 单独的bug文件按文件大小计；另加{@link Store#overhead}(当前段、字符串表等)。
+ */
+public class EvictionPolicy {
+    public static final long DEFAULT_MAX_BYTES = 1024 * 1024;
+    public static final int DEFAULT_MAX_COUNT = 512;
+    public static final long DEFAULT_MAX_AGE = 30L * 24 * 60 * 60 * 1000;
+
+    /**
+     * bug内容的存储，由调用方提供
+     */
+    public interface Store {
+        /**
+         * @return 该记录的bug内容占用的字节数，只用于不在段中的记录
+         */
+        long sizeOf(int record);
+
+        /**
+         * @return 段文件的字节数；不能回收的段(如当前段)计入{@link #overhead}，返回0
+         */
+        long segmentSize(int segment);
+
+        /**
+         * @return 淘汰记录也不会减少的字节数，如当前段、字符串表、限流计数、设备信息
+         */
+        long overhead();
+
+        /**
+         * @return false表示暂时不能淘汰(如正在上传)
+         */
+        boolean canEvict(int record);
+
+        /**
+         * 删除该记录的bug内容，在记录被标记为EVICTED之后调用
+         */
+        void delete(int record);
+    }
+
+    private volatile long maxBytes = DEFAULT_MAX_BYTES;
+    private volatile int maxCount = DEFAULT_MAX_COUNT;
+    private volatile long maxAge = DEFAULT_MAX_AGE;
+    private int evictedCount;
+
+    public void setLimits(long maxBytes, int maxCount, long maxAge) {
+        this.maxBytes = maxBytes;
+        this.maxCount = maxCount;
+        this.maxAge = maxAge;
+    }
+
+    /**
+     * @return 累计淘汰的记录条数
+     */
+    public synchronized int getEvictedCount() {
+        return evictedCount;
+    }
+
+    /**
+     * 按上限淘汰记录
+     *
+     * @return 本次淘汰的条数
+     */
+    public int trim(final BugJournal journal, Store store, long now) throws IOException {
+        synchronized (journal) {
+            long bytes = store.overhead();
+            int count = 0;
+            // 段号 -> 引用它的未上传记录数
+            Map<Integer, Integer> pins = new HashMap<Integer, Integer>();
+            List<Integer> uploaded = new ArrayList<Integer>();
+            List<Integer> unsent = new ArrayList<Integer>();
+            List<Integer> victims = new ArrayList<Integer>();
+            int size = journal.size();
+            for (int record = 0; record < size; record++) {
+                byte status = journal.getStatus(record);
+                if (status == BugJournal.STATUS_EVICTED || !store.canEvict(record)) {
+                    if (status != BugJournal.STATUS_EVICTED) {
+                        count++;
+                        bytes += charge(journal, store, record, pins);
+                    }
+                    continue;
+                }
+                if (now - journal.getLastSeen(record) > maxAge) {
+                    victims.add(record);
+                    continue;
+                }
+                count++;
+                bytes += charge(journal, store, record, pins);
+                (status == BugJournal.STATUS_UPLOADED ? uploaded : unsent).add(record);
+            }
+
+            Collections.sort(uploaded, new Comparator<Integer>() {
+                @Override
+                public int compare(Integer a, Integer b) {
+                    return compareLong(journal.getLastSeen(a), journal.getLastSeen(b));
+                }
+            });
+            Collections.sort(unsent, new Comparator<Integer>() {
+                @Override
+                public int compare(Integer a, Integer b) {
+                    return compareLong(journal.getFirstSeen(a), journal.getFirstSeen(b));
+                }
+            });
+            List<Integer> candidates = uploaded;
+            candidates.addAll(unsent);
+            for (int i = 0; i < candidates.size() && (count > maxCount || bytes > maxBytes); i++) {
+                int record = candidates.get(i);
+                victims.add(record);
+                count--;
+                bytes -= release(journal, store, record, pins);
+            }
+
+            for (int record : victims) {
+                journal.evict(record);
+                store.delete(record);
+            }
+            synchronized (this) {
+                evictedCount += victims.size();
+            }
+            // 被淘汰的记录留在文件中，由journal按垃圾占比compact
+            return victims.size();
+        }
+    }
+
+    // 计入一条记录；段在第一条引用它的未上传记录处整段计入
+    private static long charge(BugJournal journal, Store store, int record, Map<Integer, Integer> pins) {
+        long bytes = BugJournal.RECORD_SIZE;
+        if (journal.getStatus(record) != BugJournal.STATUS_NEW) {
+            return bytes;
+        }
+        int segment = journal.getSegment(record);
+        if (segment == 0) {
+            return bytes + store.sizeOf(record);
+        }
+        Integer pinned = pins.get(segment);
+        pins.put(segment, pinned == null ? 1 : pinned + 1);
+        return pinned == null ? bytes + store.segmentSize(segment) : bytes;
+    }
+
+    // 淘汰一条记录省下的字节数；段在最后一条引用它的未上传记录淘汰后才能回收
+    private static long release(BugJournal journal, Store store, int record, Map<Integer, Integer> pins) {
+        long bytes = BugJournal.RECORD_SIZE;
+        if (journal.getStatus(record) != BugJournal.STATUS_NEW) {
+            return bytes;
+        }
+        int segment = journal.getSegment(record);
+        if (segment == 0) {
+            return bytes + store.sizeOf(record);
+        }
+        int pinned = pins.get(segment) - 1;
+        pins.put(segment, pinned);
+        return pinned == 0 ? bytes + store.segmentSize(segment) : bytes;
+    }
+
+    private static int compareLong(long a, long b) {
+        return a < b ? -1 : (a == b ? 0 : 1);
+    }
+}
@@ -0,0 +1,271 @@
+package com.vgaw.bugcat.store;
+
+/**
+ * bug的key：直接遍历Throwable、StackTraceElement[]和cause链，逐个字段喂给128位的MurmurHash3(x64)，
+ * 不先拼出整段文本，也不经过getBytes和MessageDigest，除getStackTrace()的数组拷贝外不分配内存。
+ * <p/>
+ * 参与计算的是异常类名、message、每一帧的类名/方法名/行号，以及cause链上的同样内容；
+ * 字符串带长度前缀，字段之间不会因拼接而混淆。message中的时间戳、id、地址等易变部分默认归一化
+ * (含数字的词记为#)，同一个崩溃只因这些不同时仍得到同一个key，见{@link #NORMALIZE_MESSAGES}等选项。
+ * <p/>
+ * 有状态、可复用，不是线程安全的：每个线程(写入线程、崩溃路径)各用一个实例。
+ */
+public class Fingerprint {
+    /**
+     * message中含数字的词(时间戳、id、十六进制地址等)记为#
+     */
+    public static final int NORMALIZE_MESSAGES = 1;
+    /**
+     * 不计message，只按异常类型和调用栈区分
+     */
+    public static final int IGNORE_MESSAGES = 2;
+    /**
+     * 不计行号，改了代码行数的新版本中同一处崩溃仍得到同一个key
+     */
+    public static final int IGNORE_LINE_NUMBERS = 4;
+    public static final int DEFAULT = NORMALIZE_MESSAGES;
+
+    // 每个异常最多计这么多帧，StackOverflowError的上千帧不必都算
+    static final int MAX_FRAMES = 64;
+    // cause链最多计这么多层，兼防环
+    static final int MAX_CAUSES = 8;
+
+    private static final long C1 = 0x87c37b91114253d5L;
+    private static final long C2 = 0x4cf5ad432745937fL;
+    private static final char WORD_MARK = '#';
+    private static final char END_MARK = 0xffff;
+
+    private volatile int options;
+    private final Throwable[] seen = new Throwable[MAX_CAUSES];
+
+    private long h1;
+    private long h2;
+    // 未满16字节的当前块
+    private long k1;
+    private long k2;
+    private int filled;
+    private long length;
+
+    public Fingerprint() {
+        this(DEFAULT);
+    }
+
+    public Fingerprint(int options) {
+        this.options = options;
+    }
+
+    public void setOptions(int options) {
+        this.options = options;
+    }
+
+    public int getOptions() {
+        return options;
+    }
+
+    /**
+     * 计算ex(含cause链)的指纹，结果见{@link #high()}/{@link #low()}/{@link #toKey()}
+     */
+    public Fingerprint hash(Throwable ex) {
+        int options = this.options;
+        reset();
+        int depth = 0;
+        for (Throwable t = ex; t != null && depth < MAX_CAUSES; t = t.getCause()) {
+            if (contains(depth, t)) {
+                break;
+            }
+            seen[depth++] = t;
+            putString(t.getClass().getName());
+            if ((options & IGNORE_MESSAGES) == 0) {
+                putMessage(t.getMessage(), (options & NORMALIZE_MESSAGES) != 0);
+            }
+            StackTraceElement[] elements = t.getStackTrace();
+            int frames = Math.min(elements.length, MAX_FRAMES);
+            putInt(frames);
+            for (int i = 0; i < frames; i++) {
+                StackTraceElement element = elements[i];
+                putString(element.getClassName());
+                putString(element.getMethodName());
+                if ((options & IGNORE_LINE_NUMBERS) == 0) {
+                    putInt(element.getLineNumber());
+                }
+            }
+        }
+        for (int i = 0; i < depth; i++) {
+            seen[i] = null;
+        }
+        finish();
+        return this;
+    }
+
+    /**
+     * 计算一段文本(如手动提交的bug)的指纹，原样计算，不做归一化
+     */
+    public Fingerprint hash(String s) {
+        reset();
+        putString(s);
+        finish();
+        return this;
+    }
+
+    public long high() {
+        return h1;
+    }
+
+    public long low() {
+        return h2;
+    }
+
+    /**
+     * @return 32位十六进制key，与{@link DigestIndex#high}/{@link DigestIndex#low}互逆
+     */
+    public String toKey() {
+        return BugJournal.toKey(h1, h2);
+    }
+
+    void reset() {
+        h1 = 0;
+        h2 = 0;
+        k1 = 0;
+        k2 = 0;
+        filled = 0;
+        length = 0;
+    }
+
+    void putByte(int b) {
+        long v = b & 0xffL;
+        if (filled < 8) {
+            k1 |= v << (filled << 3);
+        } else {
+            k2 |= v << ((filled - 8) << 3);
+        }
+        length++;
+        if (++filled == 16) {
+            mixBlock();
+        }
+    }
+
+    void finish() {
+        if (filled > 0) {
+            // 不足一块的尾部，与MurmurHash3_x64_128的tail处理相同(k2为0时没有影响)
+            k2 *= C2;
+            k2 = Long.rotateLeft(k2, 33);
+            k2 *= C1;
+            h2 ^= k2;
+            k1 *= C1;
+            k1 = Long.rotateLeft(k1, 31);
+            k1 *= C2;
+            h1 ^= k1;
+        }
+        h1 ^= length;
+        h2 ^= length;
+        h1 += h2;
+        h2 += h1;
+        h1 = fmix(h1);
+        h2 = fmix(h2);
+        h1 += h2;
+        h2 += h1;
+    }
+
+    private boolean contains(int depth, Throwable t) {
+        for (int i = 0; i < depth; i++) {
+            if (seen[i] == t) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private void putChar(char c) {
+        putByte(c);
+        putByte(c >> 8);
+    }
+
+    private void putInt(int v) {
+        putByte(v);
+        putByte(v >> 8);
+        putByte(v >> 16);
+        putByte(v >> 24);
+    }
+
+    private void putString(String s) {
+        if (s == null) {
+            putInt(-1);
+            return;
+        }
+        int n = s.length();
+        putInt(n);
+        for (int i = 0; i < n; i++) {
+            putChar(s.charAt(i));
+        }
+    }
+
+    /**
+     * 归一化时按词(连续的字母数字)处理，含数字的词记为一个#，其余字符原样计入；以END_MARK结束
+     */
+    private void putMessage(String message, boolean normalize) {
+        if (message == null) {
+            putInt(-1);
+            return;
+        }
+        int n = message.length();
+        if (!normalize) {
+            putString(message);
+            return;
+        }
+        int i = 0;
+        while (i < n) {
+            char c = message.charAt(i);
+            if (!Character.isLetterOrDigit(c)) {
+                putChar(c);
+                i++;
+                continue;
+            }
+            int end = i;
+            boolean digit = false;
+            while (end < n && Character.isLetterOrDigit(message.charAt(end))) {
+                digit |= Character.isDigit(message.charAt(end));
+                end++;
+            }
+            if (digit) {
+                putChar(WORD_MARK);
+            } else {
+                for (int j = i; j < end; j++) {
+                    putChar(message.charAt(j));
+                }
+            }
+            i = end;
+        }
+        putChar(END_MARK);
+    }
+
+    private void mixBlock() {
+        k1 *= C1;
+        k1 = Long.rotateLeft(k1, 31);
+        k1 *= C2;
+        h1 ^= k1;
+        h1 = Long.rotateLeft(h1, 27);
+        h1 += h2;
+        h1 = h1 * 5 + 0x52dce729;
+
+        k2 *= C2;
+        k2 = Long.rotateLeft(k2, 33);
+        k2 *= C1;
+        h2 ^= k2;
+        h2 = Long.rotateLeft(h2, 31);
+        h2 += h1;
+        h2 = h2 * 5 + 0x38495ab5;
+
+        k1 = 0;
+        k2 = 0;
+        filled = 0;
+    }
+
+    private static long fmix(long k) {
+        k ^= k >>> 33;
+        k *= 0xff51afd7ed558ccdL;
+        k ^= k >>> 33;
+        k *= 0xc4ceb9fe1a85ec53L;
+        k ^= k >>> 33;
+        return k;
+    }
+}
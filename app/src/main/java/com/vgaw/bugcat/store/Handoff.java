@@ -0,0 +1,374 @@
+package com.vgaw.bugcat.store;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * 多进程时各进程之间交接bug：
+ * <ul>
+ * <li>每个进程只写自己的lane(主进程为bugbox目录本身，其余为bugbox/lane_NAME)，
+ * 各有一套索引、段和崩溃槽，进程之间不争用同一个索引文件；lane由其中的lane.lock归属于一个进程</li>
+ * <li>同一时刻只有一个进程(持有bugbox/upload.lock的)上传，其余进程把自己的NEW记录写成一个spool文件
+ * 放进bugbox/inbox({@link #handOff})，之后在本lane中视为已上传，只留作查重；
+ * 之后再出现的次数只交增量，不再交内容</li>
+ * <li>上传者把inbox中的spool逐条写入自己的lane，key相同的只留一条，所以N个进程中出现的同一个bug只上传一次；
+ * 已经没有进程持有的lane(进程不再启动)由上传者整个接收过来({@link #adopt})</li>
+ * </ul>
+ * spool先写到.tmp并fsync，再rename为.spool，上传者只会看到完整的spool。
+ * 各lane的字符串表互不相通，spool中的二进制记录({@link CrashRecord})全部内联，不引用交出方的表。
+ * 交出之后、标记之前进程被杀，下次会再交一遍，由上传者按key去重。
+ * <pre>
+ * SPOOL:
+ * MAGIC        int
+ * count        int
+ * ENTRY        count条
+ * dropped      long   可选，ReportThrottle尚未报告的计数
+ * sampled      long   可选
+ *
+ * ENTRY:
+ * key          32字节ASCII
+ * occurrences  int    交出时尚未报告的出现次数
+ * length       int    -1表示只有次数
+ * body         length字节
+ * </pre>
+ */
+public class Handoff {
+    public static final String INBOX_NAME = "inbox";
+    public static final String LANE_PREFIX = "lane_";
+    public static final String LANE_LOCK_NAME = "lane.lock";
+    public static final String UPLOAD_LOCK_NAME = "upload.lock";
+
+    private static final int MAGIC = 0x42435371;
+    private static final int KEY_LENGTH = 32;
+    private static final String SPOOL_SUFFIX = ".spool";
+    private static final String TEMP_SUFFIX = ".tmp";
+    // 写到一半的.tmp超过这么久仍未rename，视为写入进程已死
+    private static final long STALE_TEMP = 10 * 60 * 1000L;
+    // 单条内容的上限，防止读到损坏的长度
+    private static final int MAX_BODY = 1024 * 1024;
+
+    private static final Charset US_ASCII = Charset.forName("US-ASCII");
+
+    /**
+     * spool中的一条
+     */
+    public static class Entry {
+        public final String key;
+        // null表示只有次数
+        public final byte[] body;
+        public final int occurrences;
+
+        public Entry(String key, byte[] body, int occurrences) {
+            this.key = key;
+            this.body = body;
+            this.occurrences = occurrences;
+        }
+    }
+
+    private final File inbox;
+    private int sequence;
+
+    public Handoff(File inbox) {
+        this.inbox = inbox;
+    }
+
+    /**
+     * 写一个spool
+     *
+     * @param lane 写入方的lane名，用于文件名
+     */
+    public File write(String lane, List<Entry> entries) throws IOException {
+        return write(lane, entries, null);
+    }
+
+    /**
+     * @param stats 限流的计数{dropped, sampled}，可为null
+     */
+    public synchronized File write(String lane, List<Entry> entries, long[] stats) throws IOException {
+        if (!inbox.exists()) {
+            inbox.mkdirs();
+        }
+        String name = lane + "_" + System.currentTimeMillis() + "_" + (sequence++);
+        File temp = new File(inbox, name + TEMP_SUFFIX);
+        FileOutputStream fos = new FileOutputStream(temp);
+        try {
+            DataOutputStream out = new DataOutputStream(fos);
+            out.writeInt(MAGIC);
+            out.writeInt(entries.size());
+            for (Entry entry : entries) {
+                out.write(entry.key.getBytes(US_ASCII));
+                out.writeInt(entry.occurrences);
+                if (entry.body == null) {
+                    out.writeInt(-1);
+                } else {
+                    out.writeInt(entry.body.length);
+                    out.write(entry.body);
+                }
+            }
+            if (stats != null) {
+                out.writeLong(stats[0]);
+                out.writeLong(stats[1]);
+            }
+            out.flush();
+            fos.getFD().sync();
+        } finally {
+            fos.close();
+        }
+        File spool = new File(inbox, name + SPOOL_SUFFIX);
+        if (!temp.renameTo(spool)) {
+            temp.delete();
+            throw new IOException("rename " + temp + " failed");
+        }
+        return spool;
+    }
+
+    /**
+     * @return inbox中完整的spool，按文件名排序；顺带删除过期的.tmp
+     */
+    public File[] list() {
+        File[] files = inbox.listFiles();
+        if (files == null) {
+            return new File[0];
+        }
+        List<File> spools = new ArrayList<File>();
+        long now = System.currentTimeMillis();
+        for (File file : files) {
+            String name = file.getName();
+            if (name.endsWith(SPOOL_SUFFIX)) {
+                spools.add(file);
+            } else if (name.endsWith(TEMP_SUFFIX) && now - file.lastModified() > STALE_TEMP) {
+                file.delete();
+            }
+        }
+        File[] result = spools.toArray(new File[spools.size()]);
+        Arrays.sort(result);
+        return result;
+    }
+
+    public static List<Entry> read(File spool) throws IOException {
+        return read(spool, null);
+    }
+
+    /**
+     * @param stats 不为null时填入spool中的限流计数{dropped, sampled}，没有则为0
+     */
+    public static List<Entry> read(File spool, long[] stats) throws IOException {
+        DataInputStream in = new DataInputStream(new FileInputStream(spool));
+        try {
+            if (in.readInt() != MAGIC) {
+                throw new IOException(spool + " is not a spool");
+            }
+            int count = in.readInt();
+            List<Entry> entries = new ArrayList<Entry>();
+            byte[] key = new byte[KEY_LENGTH];
+            for (int i = 0; i < count; i++) {
+                in.readFully(key);
+                int occurrences = in.readInt();
+                int length = in.readInt();
+                if (length < -1 || length > MAX_BODY) {
+                    throw new IOException(spool + " is corrupt");
+                }
+                byte[] body = null;
+                if (length >= 0) {
+                    body = new byte[length];
+                    in.readFully(body);
+                }
+                entries.add(new Entry(new String(key, US_ASCII), body, occurrences));
+            }
+            if (stats != null) {
+                // 没有计数的spool到此结束
+                byte[] tail = new byte[16];
+                int read = 0;
+                while (read < tail.length) {
+                    int n = in.read(tail, read, tail.length - read);
+                    if (n < 0) {
+                        break;
+                    }
+                    read += n;
+                }
+                ByteBuffer buffer = ByteBuffer.wrap(tail);
+                stats[0] = read == tail.length ? buffer.getLong() : 0;
+                stats[1] = read == tail.length ? buffer.getLong() : 0;
+            }
+            return entries;
+        } finally {
+            in.close();
+        }
+    }
+
+    /**
+     * 把lane中尚未报告的出现交给上传者：写成一个spool，再将NEW记录标记为UPLOADED、已报告次数记为交出时的count。
+     * NEW记录交出内容和次数，UPLOADED记录只交增量次数。在调度线程中调用，与上传、compact串行
+     *
+     * @param laneDir 以key为名的bug文件(2.0之前)所在的目录
+     * @param extra   额外交出的内容(如崩溃槽中取出的)，可为null
+     * @param stats   一并交出的限流计数{dropped, sampled}，可为null；写入spool后调用方应将其记为已报告
+     * @param strings lane的字符串表，二进制记录按它转为内联；可为null
+     * @return 交出的条数；没有可交的(条目和计数都为空)返回0，不写spool
+     */
+    public int handOff(String lane, File laneDir, BugJournal journal, SegmentStore segments, List<Entry> extra,
+                       long[] stats, CrashRecord.Strings strings) throws IOException {
+        List<String> keys = new ArrayList<String>();
+        // 每条: status, count, unreported, segment, offset, length
+        List<int[]> snapshots = new ArrayList<int[]>();
+        synchronized (journal) {
+            int size = journal.size();
+            for (int i = 0; i < size; i++) {
+                int unreported = journal.getUnreported(i);
+                if (unreported == 0) {
+                    continue;
+                }
+                keys.add(BugJournal.toKey(journal.getHi(i), journal.getLo(i)));
+                snapshots.add(new int[]{journal.getStatus(i), journal.getCount(i), unreported,
+                        journal.getSegment(i), journal.getBodyOffset(i), journal.getBodyLength(i)});
+            }
+        }
+        List<Entry> entries = new ArrayList<Entry>();
+        List<String> handed = new ArrayList<String>();
+        List<Integer> totals = new ArrayList<Integer>();
+        for (int i = 0; i < keys.size(); i++) {
+            int[] snapshot = snapshots.get(i);
+            byte[] body = null;
+            if (snapshot[0] == BugJournal.STATUS_NEW) {
+                try {
+                    if (snapshot[3] != 0) {
+                        if (segments == null) {
+                            continue;
+                        }
+                        body = segments.read(snapshot[3], snapshot[4], snapshot[5]);
+                    } else {
+                        body = readFile(new File(laneDir, keys.get(i)));
+                    }
+                    if (CrashRecord.isRecord(body)) {
+                        body = CrashRecord.transcode(body, strings, null);
+                    }
+                } catch (IOException e) {
+                    // 内容已丢失，由Recovery淘汰
+                    continue;
+                }
+            }
+            entries.add(new Entry(keys.get(i), body, snapshot[2]));
+            handed.add(keys.get(i));
+            totals.add(snapshot[1]);
+        }
+        if (extra != null) {
+            entries.addAll(extra);
+        }
+        boolean hasStats = stats != null && (stats[0] != 0 || stats[1] != 0);
+        if (entries.isEmpty() && !hasStats) {
+            return 0;
+        }
+        write(lane, entries, hasStats ? stats : null);
+        synchronized (journal) {
+            for (int i = 0; i < handed.size(); i++) {
+                String key = handed.get(i);
+                int record = journal.find(DigestIndex.high(key), DigestIndex.low(key));
+                if (record == DigestIndex.ABSENT) {
+                    continue;
+                }
+                // 交出之后又出现的次数留到下次
+                journal.setReported(record, totals.get(i));
+                if (journal.getStatus(record) == BugJournal.STATUS_NEW) {
+                    journal.setStatus(record, BugJournal.STATUS_UPLOADED);
+                    if (journal.getSegment(record) == 0) {
+                        new File(laneDir, key).delete();
+                    }
+                }
+            }
+        }
+        return entries.size();
+    }
+
+    /**
+     * 接收一个已经没有进程持有的lane：全部交出后删除该lane
+     *
+     * @param journalName   lane中索引的文件名
+     * @param crashSlotName lane中崩溃槽的文件名，未取出的崩溃一并交出
+     * @return 交出的条数；lane仍有进程持有返回-1
+     */
+    public int adopt(File laneDir, String journalName, String crashSlotName) throws IOException {
+        ProcessLock lock = new ProcessLock(new File(laneDir, LANE_LOCK_NAME));
+        if (!lock.tryAcquire()) {
+            return -1;
+        }
+        try {
+            List<Entry> extra = new ArrayList<Entry>();
+            File slotFile = new File(laneDir, crashSlotName);
+            if (slotFile.exists()) {
+                CrashSlot slot = new CrashSlot(slotFile);
+                slot.open();
+                Entry crash = slot.take();
+                if (crash != null) {
+                    extra.add(crash);
+                }
+            }
+            BugJournal journal = new BugJournal(new File(laneDir, journalName));
+            SegmentStore segments = new SegmentStore(laneDir);
+            StringTable strings = new StringTable(new File(laneDir, StringTable.FILE_NAME));
+            int handed;
+            try {
+                journal.open("");
+                segments.open();
+                strings.open();
+                long[] stats = ReportThrottle.readUnreported(new File(laneDir, ReportThrottle.FILE_NAME));
+                handed = handOff(laneDir.getName(), laneDir, journal, segments, extra, stats, strings);
+            } finally {
+                strings.close();
+                segments.close();
+                journal.close();
+            }
+            // 持锁期间删除，锁文件最后删；之后若有新进程认领同名lane，目录非空时不会被删
+            File[] files = laneDir.listFiles();
+            if (files != null) {
+                for (File file : files) {
+                    if (!file.getName().equals(LANE_LOCK_NAME)) {
+                        file.delete();
+                    }
+                }
+            }
+            lock.getFile().delete();
+            return handed;
+        } finally {
+            lock.release();
+            laneDir.delete();
+        }
+    }
+
+    /**
+     * @return root下的lane目录(不含主进程的lane，即root本身)
+     */
+    public static File[] listLanes(File root) {
+        File[] files = root.listFiles();
+        if (files == null) {
+            return new File[0];
+        }
+        List<File> lanes = new ArrayList<File>();
+        for (File file : files) {
+            if (file.isDirectory() && file.getName().startsWith(LANE_PREFIX)) {
+                lanes.add(file);
+            }
+        }
+        return lanes.toArray(new File[lanes.size()]);
+    }
+
+    private static byte[] readFile(File file) throws IOException {
+        RandomAccessFile in = new RandomAccessFile(file, "r");
+        try {
+            byte[] body = new byte[(int) in.length()];
+            in.readFully(body);
+            return body;
+        } finally {
+            in.close();
+        }
+    }
+}
@@ -0,0 +1,78 @@
+package com.vgaw.bugcat.store;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.channels.FileLock;
+import java.nio.channels.OverlappingFileLockException;
+
+/**
+ * 跨进程的互斥锁，基于锁文件上的{@link java.nio.channels.FileChannel#tryLock()}：
+ * 拿到后一直持有，直到{@link #release}或进程结束(由内核释放，进程被杀也不会留下死锁)。
+ * <p/>
+ * 用于lane的归属(每个lane同一时刻只有一个进程在写)和上传者选举(同一时刻只有一个进程上传)。
+ * 文件锁是进程级的，同一进程内对同一文件的第二把锁视为拿不到。
+ */
+public class ProcessLock {
+    private final File file;
+    private RandomAccessFile raf;
+    private FileLock lock;
+
+    public ProcessLock(File file) {
+        this.file = file;
+    }
+
+    /**
+     * 不阻塞，已持有时直接返回true
+     *
+     * @return 是否持有锁
+     */
+    public synchronized boolean tryAcquire() {
+        if (lock != null) {
+            return true;
+        }
+        try {
+            raf = new RandomAccessFile(file, "rw");
+            lock = raf.getChannel().tryLock();
+        } catch (IOException e) {
+            lock = null;
+        } catch (OverlappingFileLockException e) {
+            // 本进程内已有别的ProcessLock持有
+            lock = null;
+        }
+        if (lock == null) {
+            closeFile();
+            return false;
+        }
+        return true;
+    }
+
+    public synchronized boolean isHeld() {
+        return lock != null;
+    }
+
+    public synchronized void release() {
+        if (lock != null) {
+            try {
+                lock.release();
+            } catch (IOException e) {
+            }
+            lock = null;
+        }
+        closeFile();
+    }
+
+    public File getFile() {
+        return file;
+    }
+
+    private void closeFile() {
+        if (raf != null) {
+            try {
+                raf.close();
+            } catch (IOException e) {
+            }
+            raf = null;
+        }
+    }
+}
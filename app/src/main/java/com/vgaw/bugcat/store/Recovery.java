@@ -0,0 +1,190 @@
+package com.vgaw.bugcat.store;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * 启动后对索引和bug内容做一次核对修复，分片执行：每次{@link #resume}最多运行给定的时间，
+ * 没做完下次从断点继续，bugbox再大也不会拖慢启动。
+ * <ol>
+ * <li>逐条检查NEW记录：2.0之前以key为名的bug文件移入段中；内容丢失的(文件不存在、段被删或被截短)
+ * 淘汰掉，否则每次上传都会因读不到内容而整批失败。没有段存储时跳过段中的记录</li>
+ * <li>逐个检查目录下以key为名的bug文件，没有NEW记录引用的删除</li>
+ * </ol>
+ * 残留的bug_temp在迁移时处理，残留的bug_compact在{@link BugJournal#open}时删除，
+ * 段的回收见{@link SegmentStore#reclaim}。
+ * 核对期间记录序号不能变，调用方在完成之前不应compact。
+ */
+public class Recovery {
+    private static final int PHASE_RECORDS = 0;
+    private static final int PHASE_FILES = 1;
+    private static final int PHASE_DONE = 2;
+
+    private final File dir;
+    private final BugJournal journal;
+    // 可为null，此时只能继续使用单独的bug文件
+    private final SegmentStore segments;
+
+    // 之后才创建的bug文件可能还没来得及写索引，不算无主；留2秒余量给文件时间的精度
+    private final long startedAt = System.currentTimeMillis() - 2000;
+    private int phase = PHASE_RECORDS;
+    private int cursor;
+    private String[] names;
+    // 段号 -> 段文件长度，不存在为-1
+    private final Map<Integer, Long> segmentLengths = new HashMap<Integer, Long>();
+
+    private int migratedCount;
+    private int lostCount;
+    private int orphanCount;
+
+    public Recovery(File dir, BugJournal journal, SegmentStore segments) {
+        this.dir = dir;
+        this.journal = journal;
+        this.segments = segments;
+    }
+
+    /**
+     * @param budgetMillis 本次最多运行的时间
+     * @return 全部完成返回true
+     */
+    public synchronized boolean resume(long budgetMillis) {
+        long deadline = System.nanoTime() + budgetMillis * 1000000;
+        while (phase != PHASE_DONE) {
+            if (phase == PHASE_RECORDS) {
+                if (cursor < journal.size()) {
+                    checkRecord(cursor++);
+                } else {
+                    phase = PHASE_FILES;
+                    cursor = 0;
+                    names = dir.list();
+                    if (names == null) {
+                        names = new String[0];
+                    }
+                }
+            } else {
+                if (cursor < names.length) {
+                    checkFile(names[cursor++]);
+                } else {
+                    phase = PHASE_DONE;
+                    names = null;
+                    segmentLengths.clear();
+                }
+            }
+            // 每片至少推进一步
+            if (phase != PHASE_DONE && System.nanoTime() - deadline >= 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    public synchronized boolean isDone() {
+        return phase == PHASE_DONE;
+    }
+
+    /**
+     * @return 移入段中的bug文件数
+     */
+    public synchronized int getMigratedCount() {
+        return migratedCount;
+    }
+
+    /**
+     * @return 因内容丢失而淘汰的记录数
+     */
+    public synchronized int getLostCount() {
+        return lostCount;
+    }
+
+    /**
+     * @return 删除的无主bug文件数
+     */
+    public synchronized int getOrphanCount() {
+        return orphanCount;
+    }
+
+    private void checkRecord(int record) {
+        if (journal.getStatus(record) != BugJournal.STATUS_NEW) {
+            return;
+        }
+        int segment = journal.getSegment(record);
+        try {
+            if (segment != 0) {
+                // 段存储打不开时无从核对，不能当作内容丢失而淘汰，留到下次启动
+                if (segments == null) {
+                    return;
+                }
+                long end = (long) journal.getBodyOffset(record) + journal.getBodyLength(record);
+                if (segmentLength(segment) < end) {
+                    lose(record);
+                }
+                return;
+            }
+            File file = new File(dir, BugJournal.toKey(journal.getHi(record), journal.getLo(record)));
+            if (!file.exists()) {
+                lose(record);
+                return;
+            }
+            if (segments != null) {
+                byte[] body = readFile(file);
+                long position = segments.append(body);
+                journal.setBody(record, SegmentStore.segmentOf(position), SegmentStore.offsetOf(position),
+                        body.length);
+                file.delete();
+                migratedCount++;
+            }
+        } catch (IOException e) {
+            // 留到下次启动再试
+        }
+    }
+
+    private void lose(int record) throws IOException {
+        journal.evict(record);
+        lostCount++;
+    }
+
+    private long segmentLength(int segment) {
+        // 当前段仍在追加，不缓存
+        boolean active = segment == segments.getActiveSegment();
+        Long length = active ? null : segmentLengths.get(segment);
+        if (length == null) {
+            File file = segments.segmentFile(segment);
+            length = file.exists() ? file.length() : -1L;
+            if (!active) {
+                segmentLengths.put(segment, length);
+            }
+        }
+        return length;
+    }
+
+    private void checkFile(String name) {
+        if (!DigestIndex.isHexKey(name)) {
+            // 不是bug文件(索引、段、崩溃槽等)
+            return;
+        }
+        boolean referenced;
+        synchronized (journal) {
+            int record = journal.find(DigestIndex.high(name), DigestIndex.low(name));
+            referenced = record != DigestIndex.ABSENT && journal.getStatus(record) == BugJournal.STATUS_NEW
+                    && journal.getSegment(record) == 0;
+        }
+        File file = new File(dir, name);
+        if (!referenced && file.lastModified() < startedAt && file.delete()) {
+            orphanCount++;
+        }
+    }
+
+    private static byte[] readFile(File file) throws IOException {
+        RandomAccessFile in = new RandomAccessFile(file, "r");
+        try {
+            byte[] body = new byte[(int) in.length()];
+            in.readFully(body);
+            return body;
+        } finally {
+            in.close();
+        }
+    }
+}
@@ -0,0 +1,279 @@
+package com.vgaw.bugcat.store;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * 待写入bugbox的bug队列：定长环形缓冲区 + 单个写入线程。
+ * <p/>
+ * 提交方({@link #offer})只做一次CAS入队，不加锁、不做IO，可在UI线程或热点路径中调用；
+ * 摘要、查重、写段文件和索引都在写入线程中串行进行。
+ * 队列满时按{@link #DROP_NEWEST}(丢弃本次提交)或{@link #DROP_OLDEST}(丢弃最早的一条)处理，丢弃计入计数。
+ * <p/>
+ * 与队列中尚未写入的某条相同(equals)的提交直接合并，不占槽位：同一个bug在循环里被反复提交时，
+ * 不会挤掉别的bug。合并的次数随该条交给{@link Consumer}，出现次数不会少计。
+ * 查重用ConcurrentHashMap，提交方之间没有全局锁；出队时把次数清零，之后的相同提交不再合并进来而是重新入队。
+ * <p/>
+ * 入队/出队为Dmitry Vyukov的有界MPMC队列：每个槽位带一个序号，序号表明该槽位当前可写还是可读，
+ * 所以DROP_OLDEST时提交方也可以安全地出队一条。
+ */
+public class ReportQueue<E> {
+    public static final int DROP_NEWEST = 0;
+    public static final int DROP_OLDEST = 1;
+
+    private static final long IDLE_PARK_NANOS = 100 * 1000000L;
+
+    public interface Consumer<E> {
+        /**
+         * @param occurrences 提交次数，含合并进来的
+         */
+        void accept(E report, int occurrences);
+    }
+
+    // 排队中的一条及合并进来的提交次数；次数为0表示已出队，不能再合并
+    private static class Entry<E> {
+        final E report;
+        final AtomicInteger occurrences = new AtomicInteger(1);
+
+        Entry(E report) {
+            this.report = report;
+        }
+
+        boolean merge() {
+            while (true) {
+                int current = occurrences.get();
+                if (current == 0) {
+                    return false;
+                }
+                if (occurrences.compareAndSet(current, current + 1)) {
+                    return true;
+                }
+            }
+        }
+    }
+
+    private final int mask;
+    private final AtomicReferenceArray<Entry<E>> items;
+    private final AtomicLongArray sequences;
+    private final AtomicLong head = new AtomicLong();
+    private final AtomicLong tail = new AtomicLong();
+    // 已入队、尚未出队的bug
+    private final ConcurrentMap<E, Entry<E>> pending = new ConcurrentHashMap<E, Entry<E>>();
+
+    private final Consumer<E> consumer;
+    private volatile int policy;
+    private volatile Thread writer;
+    private volatile boolean waiting;
+
+    private final AtomicLong offeredCount = new AtomicLong();
+    private final AtomicLong droppedCount = new AtomicLong();
+    private final AtomicLong writtenCount = new AtomicLong();
+    private final AtomicLong coalescedCount = new AtomicLong();
+
+    /**
+     * @param capacity 向上取整为2的幂
+     */
+    public ReportQueue(int capacity, int policy, Consumer<E> consumer) {
+        int size = 2;
+        while (size < capacity) {
+            size <<= 1;
+        }
+        mask = size - 1;
+        items = new AtomicReferenceArray<Entry<E>>(size);
+        sequences = new AtomicLongArray(size);
+        for (int i = 0; i < size; i++) {
+            sequences.set(i, i);
+        }
+        this.policy = policy;
+        this.consumer = consumer;
+    }
+
+    public void setPolicy(int policy) {
+        this.policy = policy;
+    }
+
+    /**
+     * 启动写入线程；启动之前提交的bug留在队列中，启动后按顺序写入
+     */
+    public synchronized void start() {
+        if (writer != null) {
+            return;
+        }
+        writer = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                drain();
+            }
+        }, "BugCat-writer");
+        writer.setDaemon(true);
+        writer.start();
+    }
+
+    /**
+     * 提交一条bug，不阻塞
+     *
+     * @return 本次提交被丢弃(DROP_NEWEST且队列已满)返回false；与排队中的合并也返回true
+     */
+    public boolean offer(E report) {
+        offeredCount.incrementAndGet();
+        Entry<E> entry = new Entry<E>(report);
+        while (true) {
+            Entry<E> current = pending.putIfAbsent(report, entry);
+            if (current == null) {
+                break;
+            }
+            if (current.merge()) {
+                coalescedCount.incrementAndGet();
+                return true;
+            }
+            // 相同的一条已被取走、还没从pending中移除：换成本次的，重新入队
+            if (pending.replace(report, current, entry)) {
+                break;
+            }
+        }
+        while (!enqueue(entry)) {
+            if (policy != DROP_OLDEST) {
+                drop(entry);
+                return false;
+            }
+            // 腾出最早的一条，再试；被写入线程抢先取走也无妨
+            Entry<E> oldest = dequeue();
+            if (oldest != null) {
+                drop(oldest);
+            }
+        }
+        if (waiting) {
+            Thread thread = writer;
+            if (thread != null) {
+                LockSupport.unpark(thread);
+            }
+        }
+        return true;
+    }
+
+    /**
+     * 等待已提交的bug都处理完(写入或丢弃)，用于崩溃退出前
+     *
+     * @return 超时返回false
+     */
+    public boolean awaitIdle(long timeoutMillis) {
+        long deadline = System.nanoTime() + timeoutMillis * 1000000;
+        while (offeredCount.get() != writtenCount.get() + droppedCount.get() + coalescedCount.get()) {
+            if (writer == null || System.nanoTime() - deadline >= 0) {
+                return false;
+            }
+            LockSupport.parkNanos(1000000);
+        }
+        return true;
+    }
+
+    public int size() {
+        return (int) Math.max(0, tail.get() - head.get());
+    }
+
+    public long getOfferedCount() {
+        return offeredCount.get();
+    }
+
+    public long getDroppedCount() {
+        return droppedCount.get();
+    }
+
+    public long getWrittenCount() {
+        return writtenCount.get();
+    }
+
+    /**
+     * @return 与排队中相同的bug合并、随其一起写入的提交数
+     */
+    public long getCoalescedCount() {
+        return coalescedCount.get();
+    }
+
+    private void drain() {
+        while (true) {
+            Entry<E> entry = dequeue();
+            if (entry == null) {
+                // 先声明要睡，再查一次，避免与offer之间漏掉唤醒
+                waiting = true;
+                entry = dequeue();
+                if (entry == null) {
+                    LockSupport.parkNanos(this, IDLE_PARK_NANOS);
+                }
+                waiting = false;
+                if (entry == null) {
+                    continue;
+                }
+            }
+            int occurrences = take(entry);
+            try {
+                consumer.accept(entry.report, occurrences);
+            } catch (RuntimeException e) {
+                // 单条写入失败不影响后面的
+            }
+            writtenCount.incrementAndGet();
+        }
+    }
+
+    // 丢弃一条，合并进来的提交一起计入丢弃
+    private void drop(Entry<E> entry) {
+        int occurrences = take(entry);
+        coalescedCount.addAndGet(1 - occurrences);
+        droppedCount.addAndGet(occurrences);
+    }
+
+    // 次数清零后不再接受合并，返回清零前的次数
+    private int take(Entry<E> entry) {
+        int occurrences = entry.occurrences.getAndSet(0);
+        pending.remove(entry.report, entry);
+        return occurrences;
+    }
+
+    private boolean enqueue(Entry<E> entry) {
+        long position = tail.get();
+        while (true) {
+            int index = (int) position & mask;
+            long diff = sequences.get(index) - position;
+            if (diff == 0) {
+                if (tail.compareAndSet(position, position + 1)) {
+                    items.set(index, entry);
+                    sequences.set(index, position + 1);
+                    return true;
+                }
+                position = tail.get();
+            } else if (diff < 0) {
+                // 满
+                return false;
+            } else {
+                position = tail.get();
+            }
+        }
+    }
+
+    private Entry<E> dequeue() {
+        long position = head.get();
+        while (true) {
+            int index = (int) position & mask;
+            long diff = sequences.get(index) - (position + 1);
+            if (diff == 0) {
+                if (head.compareAndSet(position, position + 1)) {
+                    Entry<E> entry = items.get(index);
+                    items.set(index, null);
+                    sequences.set(index, position + mask + 1);
+                    return entry;
+                }
+                position = head.get();
+            } else if (diff < 0) {
+                // 空
+                return null;
+            } else {
+                position = head.get();
+            }
+        }
+    }
+}
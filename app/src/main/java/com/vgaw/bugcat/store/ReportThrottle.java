@@ -0,0 +1,268 @@
+package com.vgaw.bugcat.store;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Random;
+
+/**
+ * 崩溃风暴时限制写入：
+ * <ul>
+ * <li>每个key一个令牌桶，同一个bug在循环中反复出现时，超出的次数不再写索引</li>
+ * <li>新内容(key不存在)共用一个全局令牌桶，每次时间戳不同的bug不会无限写段文件和索引</li>
+ * <li>全局桶用完后按sampleRate抽样放行，抽样放行的也有单独的上限，IO和上传量始终有界</li>
+ * </ul>
+ * 没有写入的计入dropped，抽样放行的计入sampled，两者持久化(filepath is "../bugbox/throttle")并随上传报告，
+ * 服务器用"记录到的+dropped"估计真实的发生次数。
+ * 只在写入线程中判定；计数持久化最多每秒一次，进程被杀最多丢一秒的计数。
+ * <pre>
+ * 0   dropped          long
+ * 8   sampled          long
+ * 16  reportedDropped  long  已报告给收集端(或交给上传者)的部分
+ * 24  reportedSampled  long
+ * </pre>
+ */
+public class ReportThrottle {
+    public static final String FILE_NAME = "throttle";
+
+    public static final int ADMIT = 0;
+    public static final int SAMPLE = 1;
+    public static final int DROP = 2;
+
+    public static final int DEFAULT_BURST = 20;
+    public static final int DEFAULT_PER_MINUTE = 10;
+    public static final double DEFAULT_SAMPLE_RATE = 0.1;
+
+    private static final int KEY_BURST = 5;
+    private static final double KEY_PER_MINUTE = 6;
+    // 抽样放行的上限：每小时最多这么多
+    private static final int SAMPLE_BURST = 5;
+    private static final double SAMPLE_PER_MINUTE = 5 / 60.0;
+    // 记住令牌桶的key数，超出时丢弃最久未出现的
+    private static final int MAX_KEYS = 256;
+    private static final long SAVE_INTERVAL = 1000;
+    private static final int FILE_SIZE = 32;
+
+    private static class Bucket {
+        private final double capacity;
+        private final double perMilli;
+        private double tokens;
+        private long refilledAt;
+
+        Bucket(double capacity, double perMinute, long now) {
+            this.capacity = capacity;
+            this.perMilli = perMinute / 60000;
+            tokens = capacity;
+            refilledAt = now;
+        }
+
+        boolean take(long now) {
+            if (now > refilledAt) {
+                tokens = Math.min(capacity, tokens + (now - refilledAt) * perMilli);
+                refilledAt = now;
+            }
+            if (tokens < 1) {
+                return false;
+            }
+            tokens--;
+            return true;
+        }
+    }
+
+    private final Map<String, Bucket> keyBuckets = new LinkedHashMap<String, Bucket>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, Bucket> eldest) {
+            return size() > MAX_KEYS;
+        }
+    };
+    private Bucket global;
+    private Bucket samples;
+    private int burst = DEFAULT_BURST;
+    private double perMinute = DEFAULT_PER_MINUTE;
+    private double sampleRate = DEFAULT_SAMPLE_RATE;
+    private final Random random;
+
+    private RandomAccessFile file;
+    private long dropped;
+    private long sampled;
+    private long reportedDropped;
+    private long reportedSampled;
+    private boolean dirty;
+    private long savedAt;
+
+    public ReportThrottle() {
+        this(new Random());
+    }
+
+    public ReportThrottle(Random random) {
+        this.random = random;
+    }
+
+    /**
+     * 读取(不存在则创建)持久化的计数
+     */
+    public synchronized void open(File file) throws IOException {
+        RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        if (raf.length() >= FILE_SIZE) {
+            dropped = raf.readLong();
+            sampled = raf.readLong();
+            reportedDropped = raf.readLong();
+            reportedSampled = raf.readLong();
+        }
+        this.file = raf;
+    }
+
+    /**
+     * 写出尚未持久化的计数
+     */
+    public synchronized void flush() {
+        save();
+    }
+
+    public synchronized void close() {
+        save();
+        if (file != null) {
+            try {
+                file.close();
+            } catch (IOException e) {
+            }
+            file = null;
+        }
+    }
+
+    /**
+     * @param burst      新内容的突发上限
+     * @param perMinute  新内容每分钟补充的令牌数
+     * @param sampleRate 超出后抽样放行的比例，0表示全部丢弃
+     */
+    public synchronized void setLimits(int burst, double perMinute, double sampleRate) {
+        this.burst = burst;
+        this.perMinute = perMinute;
+        this.sampleRate = sampleRate;
+        global = null;
+    }
+
+    /**
+     * 判定一次出现是否写入
+     *
+     * @param known key是否已在索引中(只需累加次数)
+     * @return {@link #ADMIT}、{@link #SAMPLE}(抽样放行)或{@link #DROP}
+     */
+    public synchronized int admit(String key, boolean known, long now) {
+        int decision = decide(key, known, now);
+        if (decision == DROP) {
+            dropped++;
+        } else if (decision == SAMPLE) {
+            sampled++;
+        }
+        if (decision != ADMIT) {
+            dirty = true;
+            if (now - savedAt >= SAVE_INTERVAL) {
+                savedAt = now;
+                save();
+            }
+        }
+        return decision;
+    }
+
+    /**
+     * 累加其他进程交来的计数
+     */
+    public synchronized void add(long dropped, long sampled) {
+        if (dropped == 0 && sampled == 0) {
+            return;
+        }
+        this.dropped += dropped;
+        this.sampled += sampled;
+        dirty = true;
+        save();
+    }
+
+    public synchronized long getDroppedCount() {
+        return dropped;
+    }
+
+    public synchronized long getSampledCount() {
+        return sampled;
+    }
+
+    /**
+     * @return 尚未报告的{dropped, sampled}
+     */
+    public synchronized long[] getUnreported() {
+        return new long[]{dropped - reportedDropped, sampled - reportedSampled};
+    }
+
+    /**
+     * 收集端确认收到(或已交给上传者)的增量
+     */
+    public synchronized void markReported(long dropped, long sampled) {
+        reportedDropped += dropped;
+        reportedSampled += sampled;
+        dirty = true;
+        save();
+    }
+
+    /**
+     * 读取一个lane遗留的计数文件中尚未报告的部分，供上传者接收lane时使用
+     *
+     * @return {dropped, sampled}，文件不存在返回{0, 0}
+     */
+    public static long[] readUnreported(File file) throws IOException {
+        if (!file.exists()) {
+            return new long[2];
+        }
+        ReportThrottle throttle = new ReportThrottle();
+        throttle.open(file);
+        try {
+            return throttle.getUnreported();
+        } finally {
+            throttle.close();
+        }
+    }
+
+    private int decide(String key, boolean known, long now) {
+        Bucket bucket = keyBuckets.get(key);
+        if (bucket == null) {
+            bucket = new Bucket(KEY_BURST, KEY_PER_MINUTE, now);
+            keyBuckets.put(key, bucket);
+        }
+        if (!bucket.take(now)) {
+            return DROP;
+        }
+        if (known) {
+            // 只累加次数，一次定位写
+            return ADMIT;
+        }
+        if (global == null) {
+            global = new Bucket(burst, perMinute, now);
+        }
+        if (global.take(now)) {
+            return ADMIT;
+        }
+        if (samples == null) {
+            samples = new Bucket(SAMPLE_BURST, SAMPLE_PER_MINUTE, now);
+        }
+        if (random.nextDouble() < sampleRate && samples.take(now)) {
+            return SAMPLE;
+        }
+        return DROP;
+    }
+
+    private void save() {
+        if (file == null || !dirty) {
+            return;
+        }
+        try {
+            file.seek(0);
+            file.writeLong(dropped);
+            file.writeLong(sampled);
+            file.writeLong(reportedDropped);
+            file.writeLong(reportedSampled);
+            dirty = false;
+        } catch (IOException e) {
+        }
+    }
+}
@@ -0,0 +1,211 @@
+package com.vgaw.bugcat.store;
+
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.HashSet;
+import java.util.Set;
+
+/**
+ * bug内容的分段日志(filepath is "../bugbox/seg_N")，代替1.0每个key一个文件：
+ * <ul>
+ * <li>内容只追加到当前段的末尾，段超过segmentSize后新开一段，段号从1递增</li>
+ * <li>位置(segment, offset, length)记在{@link BugJournal}的记录中，读取为定位读</li>
+ * <li>不单独删除某条内容，某段中的记录都已上传(或被淘汰)后整段删除，见{@link #reclaim}</li>
+ * </ul>
+ * 闪存上创建/删除小文件、目录项增长的开销远大于顺序追加，段数与条数无关。
+ * 先写内容再写索引，写到一半进程被杀只会在段尾留下没有记录引用的垃圾，随整段回收。
+ */
+public class SegmentStore {
+    public static final int DEFAULT_SEGMENT_SIZE = 128 * 1024;
+    public static final String SEGMENT_PREFIX = "seg_";
+
+    private final File dir;
+    private final int segmentSize;
+    private int activeSegment;
+    private RandomAccessFile active;
+    private long activeSize;
+
+    public SegmentStore(File dir) {
+        this(dir, DEFAULT_SEGMENT_SIZE);
+    }
+
+    public SegmentStore(File dir, int segmentSize) {
+        this.dir = dir;
+        this.segmentSize = segmentSize;
+    }
+
+    /**
+     * 继续追加到编号最大的段
+     */
+    public synchronized void open() throws IOException {
+        int last = 0;
+        String[] names = dir.list();
+        if (names != null) {
+            for (String name : names) {
+                last = Math.max(last, parseSegment(name));
+            }
+        }
+        openSegment(last == 0 ? 1 : last);
+    }
+
+    public synchronized void close() {
+        if (active != null) {
+            try {
+                active.close();
+            } catch (IOException e) {
+            }
+            active = null;
+        }
+    }
+
+    /**
+     * 追加一条内容
+     *
+     * @return 位置，用{@link #segmentOf}、{@link #offsetOf}取出段号和偏移
+     */
+    public synchronized long append(byte[] body) throws IOException {
+        if (activeSize > 0 && activeSize + body.length > segmentSize) {
+            close();
+            openSegment(activeSegment + 1);
+        }
+        long offset = activeSize;
+        FileChannel channel = active.getChannel();
+        ByteBuffer buffer = ByteBuffer.wrap(body);
+        long position = offset;
+        while (buffer.hasRemaining()) {
+            position += channel.write(buffer, position);
+        }
+        activeSize = position;
+        return ((long) activeSegment << 32) | offset;
+    }
+
+    /**
+     * 定位读出一条内容
+     */
+    public byte[] read(int segment, int offset, int length) throws IOException {
+        byte[] body = new byte[length];
+        RandomAccessFile in = new RandomAccessFile(segmentFile(segment), "r");
+        try {
+            ByteBuffer buffer = ByteBuffer.wrap(body);
+            FileChannel channel = in.getChannel();
+            long position = offset;
+            while (buffer.hasRemaining()) {
+                int read = channel.read(buffer, position);
+                if (read < 0) {
+                    throw new EOFException("segment " + segment + " truncated");
+                }
+                position += read;
+            }
+        } finally {
+            in.close();
+        }
+        return body;
+    }
+
+    public File segmentFile(int segment) {
+        return new File(dir, SEGMENT_PREFIX + segment);
+    }
+
+    /**
+     * 删除journal中NEW记录都不再引用的段。
+     * <p/>
+     * 写入线程先追加内容、后写索引，两步之间内容所在的段不在索引中；所以先记下当前段号，再取引用快照，
+     * 只删除比它小的段：比它小的段已不再追加，其中的内容在记下段号之前就已写进索引(写入是串行的，
+     * 换段意味着之前的写入已完成)，快照中一定看得到。
+     *
+     * @return 删除的段数
+     */
+    public int reclaim(BugJournal journal) {
+        int below = getActiveSegment();
+        Set<Integer> live = new HashSet<Integer>();
+        synchronized (journal) {
+            int size = journal.size();
+            for (int i = 0; i < size; i++) {
+                if (journal.getStatus(i) == BugJournal.STATUS_NEW && journal.getSegment(i) != 0) {
+                    live.add(journal.getSegment(i));
+                }
+            }
+        }
+        return reclaim(live, below);
+    }
+
+    /**
+     * 删除不再被引用的段，只删段号小于below的(below应不大于取live快照之前的当前段号)
+     *
+     * @param live 仍有记录引用的段号
+     * @return 删除的段数
+     */
+    public synchronized int reclaim(Set<Integer> live, int below) {
+        int reclaimed = 0;
+        String[] names = dir.list();
+        if (names == null) {
+            return 0;
+        }
+        for (String name : names) {
+            int segment = parseSegment(name);
+            if (segment > 0 && segment < below && segment != activeSegment && !live.contains(segment)) {
+                if (new File(dir, name).delete()) {
+                    reclaimed++;
+                }
+            }
+        }
+        return reclaimed;
+    }
+
+    /**
+     * @return 所有段文件的总字节数
+     */
+    public long totalSize() {
+        long total = 0;
+        String[] names = dir.list();
+        if (names == null) {
+            return 0;
+        }
+        for (String name : names) {
+            if (parseSegment(name) > 0) {
+                total += new File(dir, name).length();
+            }
+        }
+        return total;
+    }
+
+    public synchronized int getActiveSegment() {
+        return activeSegment;
+    }
+
+    public static int segmentOf(long position) {
+        return (int) (position >>> 32);
+    }
+
+    public static int offsetOf(long position) {
+        return (int) position;
+    }
+
+    private void openSegment(int segment) throws IOException {
+        active = new RandomAccessFile(segmentFile(segment), "rw");
+        activeSegment = segment;
+        activeSize = active.length();
+    }
+
+    /**
+     * @return 段号，不是段文件返回0
+     */
+    private static int parseSegment(String name) {
+        if (!name.startsWith(SEGMENT_PREFIX) || name.length() == SEGMENT_PREFIX.length()) {
+            return 0;
+        }
+        int segment = 0;
+        for (int i = SEGMENT_PREFIX.length(); i < name.length(); i++) {
+            int digit = Character.digit(name.charAt(i), 10);
+            if (digit < 0 || segment > (Integer.MAX_VALUE - digit) / 10) {
+                return 0;
+            }
+            segment = segment * 10 + digit;
+        }
+        return segment;
+    }
+}
@@ -0,0 +1,255 @@
+package com.vgaw.bugcat.store;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * lane的字符串表(filepath is "../bugbox/strings")：{@link CrashRecord}中的类名、方法名、文件名按序号引用这里，
+ * 同一个名字在bugbox中只存一次，磁盘和上传量随不同的帧数增长，而不是随总帧数。
+ * <pre>
+ * ENTRY ...  只追加，序号即出现的顺序
+ *
+ * ENTRY:
+ * length   varint
+ * chars    length字节UTF-8
+ * </pre>
+ * 只在写入线程中追加(先写字符串再写引用它的记录)；上传、交接时读。
+ * 进程在追加到一半时被杀，打开时截掉不完整的尾部。条数和字节数有上限，满了之后新名字内联在记录中，
+ * 内联的次数见{@link #getInlineCount}；快满时由{@link #compact}只留下仍被引用的名字。
+ */
+public class StringTable implements CrashRecord.Strings {
+    public static final String FILE_NAME = "strings";
+
+    static final int MAX_STRINGS = 16 * 1024;
+    static final int MAX_BYTES = 512 * 1024;
+    // 单个名字的上限，超过的内联
+    private static final int MAX_LENGTH = 1024;
+    // 用到这个比例才值得compact
+    private static final int FULL_PERCENT = 75;
+    // 上次compact之后至少又内联了这么多次才再做，仍被引用的名字占满了表时不会每次都做
+    private static final int MIN_INLINE = 256;
+
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    private final File file;
+    private final List<String> strings = new ArrayList<String>();
+    private final Map<String, Integer> index = new HashMap<String, Integer>();
+    private RandomAccessFile raf;
+    private long length;
+    private int inlineCount;
+    // 上次compact之后的状态
+    private int compactedSize;
+    private long compactedLength;
+    private int compactedInlineCount;
+
+    public StringTable(File file) {
+        this.file = file;
+    }
+
+    /**
+     * 读入全部条目，截掉不完整的尾部
+     */
+    public synchronized void open() throws IOException {
+        RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        try {
+            byte[] bytes = new byte[(int) Math.min(raf.length(), MAX_BYTES + MAX_LENGTH + 8)];
+            raf.readFully(bytes);
+            int position = 0;
+            while (position < bytes.length) {
+                int start = position;
+                int n = 0;
+                int shift = 0;
+                boolean complete = false;
+                while (position < bytes.length && shift < 32) {
+                    int b = bytes[position++] & 0xff;
+                    n |= (b & 0x7f) << shift;
+                    shift += 7;
+                    if (b < 0x80) {
+                        complete = true;
+                        break;
+                    }
+                }
+                if (!complete || n < 0 || n > bytes.length - position) {
+                    position = start;
+                    break;
+                }
+                add(new String(bytes, position, n, UTF_8));
+                position += n;
+            }
+            if (position < raf.length()) {
+                raf.setLength(position);
+            }
+            length = position;
+        } catch (IOException e) {
+            raf.close();
+            throw e;
+        }
+        this.raf = raf;
+    }
+
+    public synchronized void close() {
+        if (raf != null) {
+            try {
+                raf.close();
+            } catch (IOException e) {
+            }
+            raf = null;
+        }
+    }
+
+    /**
+     * @return 序号；表已满、名字太长或未打开时返回-1，调用方应内联
+     */
+    public synchronized int intern(String s) throws IOException {
+        Integer i = index.get(s);
+        if (i != null) {
+            return i;
+        }
+        if (raf == null || s.length() > MAX_LENGTH || strings.size() >= MAX_STRINGS || length >= MAX_BYTES) {
+            inlineCount++;
+            return -1;
+        }
+        byte[] bytes = s.getBytes(UTF_8);
+        byte[] entry = new byte[5 + bytes.length];
+        int n = CrashRecord.putVarint(entry, 0, bytes.length);
+        System.arraycopy(bytes, 0, entry, n, bytes.length);
+        raf.seek(length);
+        raf.write(entry, 0, n + bytes.length);
+        length += n + bytes.length;
+        return add(s);
+    }
+
+    /**
+     * @return 序号对应的字符串，不存在返回null
+     */
+    @Override
+    public synchronized String get(int i) {
+        return i >= 0 && i < strings.size() ? strings.get(i) : null;
+    }
+
+    public synchronized int size() {
+        return strings.size();
+    }
+
+    /**
+     * @return 没能放进表中、内联在记录中的名字数(表已满、名字太长或表没打开)
+     */
+    public synchronized int getInlineCount() {
+        return inlineCount;
+    }
+
+    /**
+     * @return 快满了，且上次compact之后又增长或内联了不少
+     */
+    public synchronized boolean needsCompaction() {
+        boolean full = strings.size() * 100L >= MAX_STRINGS * (long) FULL_PERCENT
+                || length * 100 >= MAX_BYTES * (long) FULL_PERCENT;
+        return full && (strings.size() - compactedSize >= MAX_STRINGS / 8
+                || length - compactedLength >= MAX_BYTES / 8 || inlineCount - compactedInlineCount >= MIN_INLINE);
+    }
+
+    /**
+     * 只留下仍被引用的名字。记录中按序号引用，不能只删表中的条目，分三步进行：
+     * <ol>
+     * <li>仍为NEW的二进制记录转为全部内联，追加到段中并改指向</li>
+     * <li>清空表</li>
+     * <li>这些记录再按新表引用，同样追加并改指向</li>
+     * </ol>
+     * 每一步之后所有记录都能按当时的表解开，进程在中途被杀也不会错乱。旧的内容由{@link SegmentStore#reclaim}回收。
+     * <p/>
+     * 调用方须保证期间没有别的线程编码、写入引用本表的记录，且journal不compact(记录序号不变)。
+     * 没有段存储时不做。
+     *
+     * @return 改写的记录数
+     * @throws IOException 第1步失败时表不变；之后失败的记录停留在全部内联，仍可解开
+     */
+    public int compact(BugJournal journal, SegmentStore segments) throws IOException {
+        if (segments == null) {
+            return 0;
+        }
+        List<Integer> records = new ArrayList<Integer>();
+        List<byte[]> bodies = new ArrayList<byte[]>();
+        int size = journal.size();
+        for (int record = 0; record < size; record++) {
+            int segment;
+            int offset;
+            int bodyLength;
+            synchronized (journal) {
+                if (journal.getStatus(record) != BugJournal.STATUS_NEW || journal.getSegment(record) == 0) {
+                    continue;
+                }
+                segment = journal.getSegment(record);
+                offset = journal.getBodyOffset(record);
+                bodyLength = journal.getBodyLength(record);
+            }
+            if (bodyLength < 2 || !CrashRecord.isRecord(segments.read(segment, offset, 2))) {
+                continue;
+            }
+            byte[] inline = CrashRecord.transcode(segments.read(segment, offset, bodyLength), this, null);
+            if (move(journal, segments, record, segment, offset, inline)) {
+                records.add(record);
+                bodies.add(inline);
+            }
+        }
+        reset();
+        int moved = 0;
+        for (int i = 0; i < records.size(); i++) {
+            int record = records.get(i);
+            int segment;
+            int offset;
+            synchronized (journal) {
+                segment = journal.getSegment(record);
+                offset = journal.getBodyOffset(record);
+            }
+            byte[] body = CrashRecord.transcode(bodies.get(i), null, this);
+            if (move(journal, segments, record, segment, offset, body)) {
+                moved++;
+            }
+        }
+        synchronized (this) {
+            compactedSize = strings.size();
+            compactedLength = length;
+            compactedInlineCount = inlineCount;
+        }
+        return moved;
+    }
+
+    // 追加新内容；记录在此期间被上传、淘汰或已指向别处时不改
+    private static boolean move(BugJournal journal, SegmentStore segments, int record, int segment, int offset,
+                                byte[] body) throws IOException {
+        long position = segments.append(body);
+        synchronized (journal) {
+            if (journal.getStatus(record) != BugJournal.STATUS_NEW || journal.getSegment(record) != segment
+                    || journal.getBodyOffset(record) != offset) {
+                return false;
+            }
+            journal.setBody(record, SegmentStore.segmentOf(position), SegmentStore.offsetOf(position), body.length);
+            return true;
+        }
+    }
+
+    private synchronized void reset() throws IOException {
+        if (raf == null) {
+            throw new IOException("not open");
+        }
+        raf.setLength(0);
+        length = 0;
+        strings.clear();
+        index.clear();
+    }
+
+    private int add(String s) {
+        int i = strings.size();
+        strings.add(s);
+        if (!index.containsKey(s)) {
+            index.put(s, i);
+        }
+        return i;
+    }
+}
@@ -0,0 +1,372 @@
+package com.vgaw.bugcat.store;
+
+import java.nio.ByteBuffer;
+
+/**
+ * 崩溃内容的编码：写入调用方给的buffer(崩溃槽的映射区或写入线程复用的缓冲区)，逐字符UTF-8编码，
+ * 不拼接字符串，除getStackTrace()/getSuppressed()的数组拷贝外不分配内存。
+ * <pre>
+ * bug  :/ by zero
+ * cause:null
+ * path :12->fun->Test->Test.java
+ * java.lang.ArithmeticException: / by zero
+ * 	at Test.fun(Test.java:12)
+ * 	at Test.main(Test.java:5)
+ * 	Suppressed: java.io.IOException: close
+ * 		at Test.main(Test.java:6)
+ * 		... 1 more
+ * Caused by: ...
+ * </pre>
+ * 前三行同1.0的格式，之后是完整的调用栈和cause/suppressed链，格式同Throwable.printStackTrace：
+ * 与外层相同的帧记为"... N more"，递归中重复出现的帧只留一轮，记为"... N more (recursion)"。
+ * <p/>
+ * 有预算：cause/suppressed的层数、每个异常输出的帧数和总字节数，超出的部分省略，
+ * 字节数用完时以"...truncated"结尾。有状态(查环用)，每个线程各用一个实例。
+ */
+public class TraceEncoder {
+    public static final int DEFAULT_MAX_DEPTH = 8;
+    public static final int DEFAULT_MAX_FRAMES = 64;
+    public static final int DEFAULT_MAX_BYTES = 16 * 1024;
+
+    // 递归的周期最多检查到这么多帧
+    private static final int MAX_PERIOD = 8;
+    // 连续重复这么多轮以上才省略
+    private static final int MIN_REPEATS = 2;
+    private static final String TRUNCATED = "\n\t...truncated";
+    // 给TRUNCATED留的字节
+    private static final int RESERVE = 16;
+
+    private volatile int maxDepth;
+    private volatile int maxFrames;
+    private volatile int maxBytes;
+    // 已输出的异常，查环；只用前depth个
+    private Throwable[] seen = new Throwable[DEFAULT_MAX_DEPTH * 4];
+    private int seenCount;
+    private boolean truncated;
+
+    public TraceEncoder() {
+        this(DEFAULT_MAX_DEPTH, DEFAULT_MAX_FRAMES, DEFAULT_MAX_BYTES);
+    }
+
+    public TraceEncoder(int maxDepth, int maxFrames, int maxBytes) {
+        setLimits(maxDepth, maxFrames, maxBytes);
+    }
+
+    /**
+     * @param maxDepth  cause/suppressed的最大层数
+     * @param maxFrames 每个异常最多输出的帧数(省略的重复帧不计)
+     * @param maxBytes  总字节数，同时受buffer剩余空间限制
+     */
+    public void setLimits(int maxDepth, int maxFrames, int maxBytes) {
+        this.maxDepth = maxDepth;
+        this.maxFrames = maxFrames;
+        this.maxBytes = maxBytes;
+    }
+
+    /**
+     * 从out的position开始写，写完position在末尾
+     */
+    public void encode(Throwable ex, ByteBuffer out) {
+        int limit = out.limit();
+        int budget = Math.min(out.remaining(), maxBytes);
+        if (budget <= RESERVE) {
+            out.limit(out.position() + budget);
+            putChars(out, TRUNCATED);
+            out.limit(limit);
+            return;
+        }
+        int end = out.position() + budget;
+        out.limit(end - RESERVE);
+        truncated = false;
+        seenCount = 0;
+        int maxDepth = this.maxDepth;
+        if (seen.length < maxDepth * 4) {
+            seen = new Throwable[maxDepth * 4];
+        }
+        StackTraceElement[] elements = ex.getStackTrace();
+        encodeHeader(ex, elements, out);
+        encodeThrowable(ex, elements, null, null, 0, 0, maxDepth, out);
+        for (int i = 0; i < seenCount; i++) {
+            seen[i] = null;
+        }
+        out.limit(end);
+        if (truncated) {
+            putChars(out, TRUNCATED);
+        }
+        out.limit(limit);
+    }
+
+    /**
+     * 1.0的三行格式
+     */
+    private void encodeHeader(Throwable ex, StackTraceElement[] elements, ByteBuffer out) {
+        if (elements.length == 0) {
+            put(out, "get crash info failed");
+            return;
+        }
+        StackTraceElement element0 = elements[0];
+        put(out, "bug  :");
+        put(out, String.valueOf(ex.getMessage()));
+        put(out, "\ncause:");
+        Throwable cause = ex.getCause();
+        if (cause == null) {
+            put(out, "null");
+        } else {
+            putThrowable(out, cause);
+        }
+        put(out, "\npath :");
+        truncated |= !putInt(out, element0.getLineNumber());
+        put(out, "->");
+        put(out, element0.getMethodName());
+        put(out, "->");
+        put(out, element0.getClassName());
+        put(out, "->");
+        put(out, String.valueOf(element0.getFileName()));
+    }
+
+    /**
+     * @param enclosing 外层异常的帧，与之相同的尾部省略
+     * @param caption   "Caused by: "或"Suppressed: "，最外层为null
+     * @param indent    缩进的tab数
+     */
+    private void encodeThrowable(Throwable t, StackTraceElement[] elements, StackTraceElement[] enclosing,
+                                 String caption, int indent, int depth, int maxDepth, ByteBuffer out) {
+        newLine(out, indent);
+        if (caption != null) {
+            put(out, caption);
+        }
+        for (int i = 0; i < seenCount; i++) {
+            if (seen[i] == t) {
+                put(out, "[CIRCULAR REFERENCE: ");
+                putThrowable(out, t);
+                put(out, "]");
+                return;
+            }
+        }
+        putThrowable(out, t);
+        if (truncated) {
+            return;
+        }
+        if (seenCount < seen.length) {
+            seen[seenCount++] = t;
+        }
+        int framesInCommon = framesInCommon(elements, enclosing);
+        int end = elements.length - framesInCommon;
+        int printed = 0;
+        int i = 0;
+        int maxFrames = this.maxFrames;
+        while (i < end && printed < maxFrames && !truncated) {
+            int period = period(elements, i, end);
+            int repeats = period == 0 ? 0 : repeats(elements, i, end, period);
+            int frames = period == 0 ? 1 : period;
+            for (int j = 0; j < frames && printed < maxFrames; j++) {
+                putFrame(out, elements[i + j], indent);
+                printed++;
+            }
+            if (period != 0) {
+                newLine(out, indent);
+                put(out, "\t... ");
+                truncated |= !putInt(out, period * repeats);
+                put(out, " more (recursion)");
+            }
+            i += frames * (repeats + 1);
+        }
+        if (truncated) {
+            return;
+        }
+        int omitted = end - i + framesInCommon;
+        if (omitted > 0) {
+            newLine(out, indent);
+            put(out, "\t... ");
+            truncated |= !putInt(out, omitted);
+            put(out, " more");
+        }
+        if (depth + 1 >= maxDepth) {
+            if (t.getCause() != null || t.getSuppressed().length != 0) {
+                newLine(out, indent);
+                put(out, "\t... (depth limit)");
+            }
+            return;
+        }
+        for (Throwable suppressed : t.getSuppressed()) {
+            if (truncated) {
+                return;
+            }
+            encodeThrowable(suppressed, suppressed.getStackTrace(), elements, "Suppressed: ", indent + 1,
+                    depth + 1, maxDepth, out);
+        }
+        Throwable cause = t.getCause();
+        if (cause != null && !truncated) {
+            encodeThrowable(cause, cause.getStackTrace(), elements, "Caused by: ", indent, depth + 1, maxDepth, out);
+        }
+    }
+
+    /**
+     * @return 与外层异常相同的尾部帧数，这些帧记为"... N more"
+     */
+    static int framesInCommon(StackTraceElement[] elements, StackTraceElement[] enclosing) {
+        if (enclosing == null) {
+            return 0;
+        }
+        int m = elements.length - 1;
+        int n = enclosing.length - 1;
+        while (m >= 0 && n >= 0 && elements[m].equals(enclosing[n])) {
+            m--;
+            n--;
+        }
+        return elements.length - 1 - m;
+    }
+
+    /**
+     * @return 从i开始连续重复至少MIN_REPEATS轮的最短周期，没有返回0
+     */
+    static int period(StackTraceElement[] elements, int i, int end) {
+        for (int p = 1; p <= MAX_PERIOD && i + 2 * p <= end; p++) {
+            if (repeats(elements, i, end, p) >= MIN_REPEATS) {
+                return p;
+            }
+        }
+        return 0;
+    }
+
+    /**
+     * @return 从i开始的一轮(period帧)之后又重复了几轮
+     */
+    static int repeats(StackTraceElement[] elements, int i, int end, int period) {
+        int r = 0;
+        while (i + (r + 2) * period <= end && sameFrames(elements, i, i + (r + 1) * period, period)) {
+            r++;
+        }
+        return r;
+    }
+
+    private static boolean sameFrames(StackTraceElement[] elements, int a, int b, int length) {
+        for (int i = 0; i < length; i++) {
+            if (!elements[a + i].equals(elements[b + i])) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * 即Throwable.toString()，但不拼接
+     */
+    private void putThrowable(ByteBuffer out, Throwable t) {
+        put(out, t.getClass().getName());
+        String message = t.getLocalizedMessage();
+        if (message != null) {
+            put(out, ": ");
+            put(out, message);
+        }
+    }
+
+    /**
+     * 即StackTraceElement.toString()，但不拼接
+     */
+    private void putFrame(ByteBuffer out, StackTraceElement element, int indent) {
+        newLine(out, indent);
+        put(out, "\tat ");
+        put(out, element.getClassName());
+        put(out, ".");
+        put(out, element.getMethodName());
+        if (element.isNativeMethod()) {
+            put(out, "(Native Method)");
+        } else if (element.getFileName() == null) {
+            put(out, "(Unknown Source)");
+        } else {
+            put(out, "(");
+            put(out, element.getFileName());
+            if (element.getLineNumber() >= 0) {
+                put(out, ":");
+                truncated |= !putInt(out, element.getLineNumber());
+            }
+            put(out, ")");
+        }
+    }
+
+    private void newLine(ByteBuffer out, int indent) {
+        put(out, "\n");
+        for (int i = 0; i < indent; i++) {
+            put(out, "\t");
+        }
+    }
+
+    private void put(ByteBuffer out, String s) {
+        if (!truncated && !putChars(out, s)) {
+            truncated = true;
+        }
+    }
+
+    /**
+     * 逐字符UTF-8编码，写不下的字符直接丢弃
+     *
+     * @return 是否全部写下
+     */
+    static boolean putChars(ByteBuffer out, String s) {
+        int length = s.length();
+        for (int i = 0; i < length; i++) {
+            char c = s.charAt(i);
+            if (c < 0x80) {
+                if (out.remaining() < 1) {
+                    return false;
+                }
+                out.put((byte) c);
+            } else if (c < 0x800) {
+                if (out.remaining() < 2) {
+                    return false;
+                }
+                out.put((byte) (0xc0 | (c >> 6)));
+                out.put((byte) (0x80 | (c & 0x3f)));
+            } else if (Character.isHighSurrogate(c) && i + 1 < length
+                    && Character.isLowSurrogate(s.charAt(i + 1))) {
+                if (out.remaining() < 4) {
+                    return false;
+                }
+                int codePoint = Character.toCodePoint(c, s.charAt(++i));
+                out.put((byte) (0xf0 | (codePoint >> 18)));
+                out.put((byte) (0x80 | ((codePoint >> 12) & 0x3f)));
+                out.put((byte) (0x80 | ((codePoint >> 6) & 0x3f)));
+                out.put((byte) (0x80 | (codePoint & 0x3f)));
+            } else {
+                if (out.remaining() < 3) {
+                    return false;
+                }
+                out.put((byte) (0xe0 | (c >> 12)));
+                out.put((byte) (0x80 | ((c >> 6) & 0x3f)));
+                out.put((byte) (0x80 | (c & 0x3f)));
+            }
+        }
+        return true;
+    }
+
+    /**
+     * 十进制写入，不经过Integer.toString
+     *
+     * @return 是否全部写下
+     */
+    static boolean putInt(ByteBuffer out, int value) {
+        if (value == Integer.MIN_VALUE) {
+            return putChars(out, "-2147483648");
+        }
+        if (value < 0) {
+            if (out.remaining() < 1) {
+                return false;
+            }
+            out.put((byte) '-');
+            value = -value;
+        }
+        int divisor = 1;
+        while (value / divisor >= 10) {
+            divisor *= 10;
+        }
+        while (divisor > 0) {
+            if (out.remaining() < 1) {
+                return false;
+            }
+            out.put((byte) ('0' + value / divisor % 10));
+            divisor /= 10;
+        }
+        return true;
+    }
+}
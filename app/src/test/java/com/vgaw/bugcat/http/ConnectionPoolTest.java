@@ -0,0 +1,94 @@
+package com.vgaw.bugcat.http;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+
+import static org.junit.Assert.*;
+
+public class ConnectionPoolTest {
+    private StubCollector collector;
+    private int port;
+
+    @Before
+    public void setUp() throws Exception {
+        collector = new StubCollector();
+        port = collector.start();
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        HttpCat.setKeepAlive(false);
+        collector.stop();
+    }
+
+    @Test
+    public void reusesConnectionAcrossUploads() throws Exception {
+        HttpCat.setUri("127.0.0.1", port);
+        HttpCat.setKeepAlive(true);
+        for (int i = 0; i < 50; i++) {
+            assertEquals("bug " + i, HttpCat.requestForResult("bug " + i));
+        }
+        assertEquals(1, HttpCat.getConnectCount());
+        assertEquals(49, HttpCat.getReuseCount());
+        assertEquals(1, collector.getConnections());
+        assertEquals(50, collector.getRequests());
+    }
+
+    @Test
+    public void closesIdleConnections() throws Exception {
+        ConnectionPool pool = new ConnectionPool("127.0.0.1", port, 2, 100);
+        pool.post("", new String[]{"Content-Type", "text/plain"}, new HttpCat.BytesBody("a".getBytes()));
+        assertEquals(1, pool.getIdleCount());
+        Thread.sleep(400);
+        assertEquals(0, pool.getIdleCount());
+        pool.post("", new String[]{"Content-Type", "text/plain"}, new HttpCat.BytesBody("b".getBytes()));
+        assertEquals(2, pool.getConnectCount());
+        assertEquals(0, pool.getReuseCount());
+        pool.close();
+    }
+
+    @Test
+    public void rejectsMalformedResponse() throws Exception {
+        collector.setMalformedLength(true);
+        ConnectionPool pool = new ConnectionPool("127.0.0.1", port, 2, 60000);
+        try {
+            pool.post("", new String[]{"Content-Type", "text/plain"}, new HttpCat.BytesBody("a".getBytes()));
+            fail();
+        } catch (IOException e) {
+            assertTrue(e.getMessage().startsWith("bad Content-Length"));
+        }
+        // 出错的连接不放回池中
+        assertEquals(0, pool.getIdleCount());
+        pool.close();
+    }
+
+    @Test
+    public void parsesLengthsStrictly() throws Exception {
+        assertEquals(12, ConnectionPool.parseLength("12", 10, "bad Content-Length"));
+        assertEquals(0x1f, ConnectionPool.parseLength("1f", 16, "bad chunk size"));
+        String[] bad = {"12abc", "-1", "", "7fffffff", String.valueOf(ConnectionPool.MAX_RESPONSE_BODY + 1)};
+        for (String value : bad) {
+            try {
+                ConnectionPool.parseLength(value, value.equals("7fffffff") ? 16 : 10, "bad");
+                fail(value);
+            } catch (IOException e) {
+            }
+        }
+    }
+
+    @Test
+    public void retriesWhenServerClosedIdleConnection() throws Exception {
+        collector.setDropAfterResponse(true);
+        ConnectionPool pool = new ConnectionPool("127.0.0.1", port, 2, 60000);
+        pool.post("", new String[]{"Content-Type", "text/plain"}, new HttpCat.BytesBody("a".getBytes()));
+        Thread.sleep(100);
+        HttpCat.Response response = pool.post("", new String[]{"Content-Type", "text/plain"}, new HttpCat.BytesBody("b".getBytes()));
+        assertEquals("b", new String(response.body, "UTF-8"));
+        assertEquals(2, pool.getConnectCount());
+        assertEquals(0, pool.getReuseCount());
+        pool.close();
+    }
+}
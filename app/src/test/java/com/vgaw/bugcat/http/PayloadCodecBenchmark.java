@@ -0,0 +1,76 @@
+package com.vgaw.bugcat.http;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * 每条bug单独压缩(即逐条上传的情形)的体积和耗时，不随单元测试运行，手动执行：
+ * <pre>
+ * java -cp ... com.vgaw.bugcat.http.PayloadCodecBenchmark [目录]
+ * </pre>
+ * 目录中的每个文件为一条bug的内容，如从设备的bugbox中取出的bug；不给目录时用测试资源中的corpus，
+ * 那是按真实崩溃的格式生成的样本，只能说明量级，实际的压缩比以采集到的bug为准。
+ */
+public class PayloadCodecBenchmark {
+    private static final String[] NAMES = {"none", "gzip", "deflate+dict"};
+    private static final int WARMUP_ROUNDS = 50;
+    private static final int ROUNDS = 200;
+
+    public static void main(String[] args) throws Exception {
+        List<byte[]> corpus = args.length > 0 ? loadDirectory(new File(args[0])) : PayloadCodecTest.loadCorpus();
+        if (corpus.isEmpty()) {
+            System.out.println("empty corpus");
+            return;
+        }
+        long raw = 0;
+        for (byte[] report : corpus) {
+            raw += report.length;
+        }
+        System.out.println(corpus.size() + " reports, " + raw + " bytes");
+        for (int mode = PayloadCodec.NONE; mode <= PayloadCodec.DEFLATE; mode++) {
+            for (int i = 0; i < WARMUP_ROUNDS; i++) {
+                for (byte[] report : corpus) {
+                    PayloadCodec.encode(mode, report);
+                }
+            }
+            long start = System.nanoTime();
+            for (int i = 0; i < ROUNDS; i++) {
+                for (byte[] report : corpus) {
+                    PayloadCodec.encode(mode, report);
+                }
+            }
+            long perReport = (System.nanoTime() - start) / ROUNDS / corpus.size();
+            long size = 0;
+            for (byte[] report : corpus) {
+                size += PayloadCodec.encode(mode, report).length;
+            }
+            System.out.println(NAMES[mode] + ": " + size + "/" + raw + " bytes, ratio "
+                    + String.format("%.2f", (double) raw / size) + ", " + perReport / 1000 + "us/report");
+        }
+    }
+
+    private static List<byte[]> loadDirectory(File dir) throws Exception {
+        List<byte[]> corpus = new ArrayList<byte[]>();
+        File[] files = dir.listFiles();
+        if (files == null) {
+            return corpus;
+        }
+        Arrays.sort(files);
+        for (File file : files) {
+            if (!file.isFile()) {
+                continue;
+            }
+            InputStream in = new FileInputStream(file);
+            try {
+                corpus.add(HttpCat.readInputStream(in));
+            } finally {
+                in.close();
+            }
+        }
+        return corpus;
+    }
+}
@@ -0,0 +1,225 @@
+package com.vgaw.bugcat.http;
+
+import com.vgaw.bugcat.store.CrashRecord;
+import com.vgaw.bugcat.store.StringTable;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+
+import static org.junit.Assert.*;
+
+public class PayloadCodecTest {
+    private static final int CORPUS_SIZE = 12;
+    private static final Pattern FRAME = Pattern.compile("\tat (.+)\\.([^.(]+)\\((.*)\\)");
+    private static final String PROFILE = "versionName:1.0.0\nversionCode:10\nSDK_INT:23\nRELEASE:6.0\n"
+            + "BOARD:msm8996\nBOOTLOADER:unknown\nBRAND:google\nCPU_ABI:arm64-v8a\nCPU_ABI2:\nDEVICE:sailfish\n"
+            + "DISPLAY:NDE63X\nFINGERPRINT:google/sailfish/sailfish:7.1/NDE63X/3387893:user/release-keys\n"
+            + "HARDWARE:qcom\nHOST:wphr1.hot.corp.google.com\nID:NDE63X\nIS_DEBUGGABLE:false\n"
+            + "MANUFACTURER:Google\nMODEL:Pixel\nPRODUCT:sailfish\nRADIO:unknown\nSERIAL:unknown\n"
+            + "SUPPORTED_32_BIT_ABIS:[armeabi-v7a, armeabi]\nSUPPORTED_64_BIT_ABIS:[arm64-v8a]\n"
+            + "SUPPORTED_ABIS:[arm64-v8a, armeabi-v7a, armeabi]\nTAGS:release-keys\nTIME:1477000000000\n"
+            + "TYPE:user\nUNKNOWN:unknown\nUSER:android-build\n";
+
+    private StubCollector collector;
+
+    @Before
+    public void setUp() throws Exception {
+        collector = new StubCollector();
+        HttpCat.setUri("127.0.0.1", collector.start());
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        HttpCat.setCompression(PayloadCodec.NONE);
+        collector.stop();
+    }
+
+    @Test
+    public void roundTrips() throws Exception {
+        for (byte[] report : loadCorpus()) {
+            for (int mode = PayloadCodec.NONE; mode <= PayloadCodec.DEFLATE; mode++) {
+                byte[] encoded = PayloadCodec.encode(mode, report);
+                byte[] decoded = PayloadCodec.decode(PayloadCodec.contentEncoding(mode), PayloadCodec.DICTIONARY_ID, encoded);
+                assertArrayEquals(report, decoded);
+            }
+        }
+    }
+
+    @Test
+    public void uploadsCompressed() throws Exception {
+        HttpCat.setCompression(PayloadCodec.DEFLATE);
+        byte[] report = loadCorpus().get(0);
+        String echo = HttpCat.requestForResult(new String(report, "UTF-8"));
+        assertEquals(new String(report, "UTF-8"), echo);
+        assertTrue(collector.getWireBytes() < report.length / 2);
+    }
+
+    /**
+     * 每条bug单独压缩(即逐条上传的情形)的体积，耗时见PayloadCodecBenchmark
+     */
+    @Test
+    public void compressesCorpus() throws Exception {
+        List<byte[]> corpus = loadCorpus();
+        long raw = 0;
+        for (byte[] report : corpus) {
+            raw += report.length;
+        }
+        long[] sizes = new long[3];
+        for (int mode = PayloadCodec.NONE; mode <= PayloadCodec.DEFLATE; mode++) {
+            for (byte[] report : corpus) {
+                sizes[mode] += PayloadCodec.encode(mode, report).length;
+            }
+        }
+        assertEquals(raw, sizes[PayloadCodec.NONE]);
+        assertTrue(sizes[PayloadCodec.DEFLATE] < sizes[PayloadCodec.GZIP]);
+        assertTrue(raw / sizes[PayloadCodec.DEFLATE] >= 3);
+    }
+
+    /**
+     * 按现在上传的格式组成的一批：二进制崩溃记录、它们引用的字符串和一份设备信息
+     */
+    @Test
+    public void compressesWireBatch() throws Exception {
+        byte[] batch = wireBatch();
+        int gzip = PayloadCodec.encode(PayloadCodec.GZIP, batch).length;
+        byte[] deflate = PayloadCodec.encode(PayloadCodec.DEFLATE, batch);
+        assertTrue(deflate.length < gzip);
+        assertArrayEquals(batch, PayloadCodec.decode("deflate", PayloadCodec.DICTIONARY_ID, deflate));
+        // 新字典针对现在的格式，比旧字典压得更小
+        byte[] legacy = deflate(batch, PayloadCodec.LEGACY_DICTIONARY);
+        assertTrue(deflate.length < legacy.length);
+    }
+
+    @Test
+    public void decodesLegacyDictionary() throws Exception {
+        byte[] report = loadCorpus().get(0);
+        byte[] legacy = deflate(report, PayloadCodec.LEGACY_DICTIONARY);
+        assertArrayEquals(report, PayloadCodec.decode("deflate", "bugcat-1", legacy));
+        try {
+            PayloadCodec.decode("deflate", PayloadCodec.DICTIONARY_ID, legacy);
+            fail();
+        } catch (IOException e) {
+        }
+        try {
+            PayloadCodec.decode("deflate", "bugcat-0", PayloadCodec.encode(PayloadCodec.DEFLATE, report));
+            fail();
+        } catch (IOException e) {
+        }
+    }
+
+    private static byte[] deflate(byte[] data, byte[] dictionary) throws Exception {
+        Deflater deflater = new Deflater(Deflater.BEST_COMPRESSION);
+        try {
+            deflater.setDictionary(dictionary);
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            DeflaterOutputStream encoder = new DeflaterOutputStream(out, deflater);
+            encoder.write(data);
+            encoder.close();
+            return out.toByteArray();
+        } finally {
+            deflater.end();
+        }
+    }
+
+    // 把corpus中的调用栈还原成异常，按BugCat上传时的方式编码装批
+    private static byte[] wireBatch() throws Exception {
+        File dir = File.createTempFile("strings", "");
+        dir.delete();
+        dir.mkdirs();
+        StringTable table = new StringTable(new File(dir, StringTable.FILE_NAME));
+        table.open();
+        try {
+            UploadBatch batch = new UploadBatch();
+            CrashRecord encoder = new CrashRecord();
+            List<byte[]> corpus = loadCorpus();
+            for (int i = 0; i < corpus.size(); i++) {
+                ByteBuffer out = ByteBuffer.allocate(32 * 1024);
+                encoder.encode(parse(new String(corpus.get(i), "UTF-8")), table, out);
+                byte[] record = Arrays.copyOf(out.array(), out.position());
+                Set<Integer> refs = new TreeSet<Integer>();
+                CrashRecord.collectRefs(record, refs);
+                int[] ids = new int[refs.size()];
+                String[] values = new String[refs.size()];
+                int n = 0;
+                for (Integer ref : refs) {
+                    ids[n] = ref;
+                    values[n++] = table.get(ref);
+                }
+                batch.add(String.format("%032x", i), record, ids, values);
+            }
+            batch.setProfile(String.format("%032x", 99), PROFILE.getBytes("UTF-8"));
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            batch.writeTo(out);
+            return out.toByteArray();
+        } finally {
+            table.close();
+            for (File file : dir.listFiles()) {
+                file.delete();
+            }
+            dir.delete();
+        }
+    }
+
+    private static Throwable parse(String report) throws Exception {
+        String[] lines = report.split("\n");
+        int first = 0;
+        while (!lines[first].startsWith("java.")) {
+            first++;
+        }
+        int colon = lines[first].indexOf(": ");
+        String className = colon < 0 ? lines[first] : lines[first].substring(0, colon);
+        String message = colon < 0 ? null : lines[first].substring(colon + 2);
+        Throwable ex;
+        try {
+            ex = (Throwable) Class.forName(className).getConstructor(String.class).newInstance(message);
+        } catch (Exception e) {
+            ex = new RuntimeException(message);
+        }
+        List<StackTraceElement> frames = new ArrayList<StackTraceElement>();
+        Matcher matcher = FRAME.matcher("");
+        for (int i = first + 1; i < lines.length && matcher.reset(lines[i]).matches(); i++) {
+            String file = matcher.group(3);
+            int line = -1;
+            if ("Native Method".equals(file)) {
+                file = null;
+                line = -2;
+            } else if (file.indexOf(':') > 0) {
+                line = Integer.parseInt(file.substring(file.indexOf(':') + 1));
+                file = file.substring(0, file.indexOf(':'));
+            }
+            frames.add(new StackTraceElement(matcher.group(1), matcher.group(2), file, line));
+        }
+        ex.setStackTrace(frames.toArray(new StackTraceElement[frames.size()]));
+        return ex;
+    }
+
+    static List<byte[]> loadCorpus() throws Exception {
+        List<byte[]> corpus = new ArrayList<byte[]>();
+        for (int i = 0; i < CORPUS_SIZE; i++) {
+            InputStream in = PayloadCodecTest.class.getResourceAsStream(String.format("/corpus/report_%02d.txt", i));
+            assertNotNull(in);
+            try {
+                corpus.add(HttpCat.readInputStream(in));
+            } finally {
+                in.close();
+            }
+        }
+        return corpus;
+    }
+}
@@ -0,0 +1,47 @@
+package com.vgaw.bugcat.http;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class RetryPolicyTest {
+
+    @Test
+    public void backoffGrowsWithJitter() {
+        RetryPolicy policy = new RetryPolicy(1000, 8000, 3, 1000, 4000);
+        for (int i = 0; i < 100; i++) {
+            long first = policy.nextAttempt(1, 0);
+            assertTrue(first >= 500 && first <= 1000);
+            long third = policy.nextAttempt(3, 0);
+            assertTrue(third >= 2000 && third <= 4000);
+            // 封顶
+            long capped = policy.nextAttempt(60, 0);
+            assertTrue(capped >= 4000 && capped <= 8000);
+        }
+    }
+
+    @Test
+    public void circuitOpensAndProbes() {
+        RetryPolicy policy = new RetryPolicy(1000, 8000, 3, 1000, 4000);
+        policy.onFailure(0);
+        policy.onFailure(0);
+        assertTrue(policy.allowRequest(0));
+        policy.onFailure(0);
+        assertTrue(policy.isOpen());
+        assertFalse(policy.allowRequest(999));
+
+        // 到期后只放行一次试探
+        assertTrue(policy.allowRequest(1000));
+        assertFalse(policy.allowRequest(1001));
+
+        // 试探失败，熔断时间加倍
+        policy.onFailure(1000);
+        assertFalse(policy.allowRequest(2999));
+        assertTrue(policy.allowRequest(3000));
+
+        policy.onSuccess();
+        assertFalse(policy.isOpen());
+        assertTrue(policy.allowRequest(3000));
+        assertTrue(policy.allowRequest(3000));
+    }
+}
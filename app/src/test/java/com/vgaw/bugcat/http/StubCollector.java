@@ -0,0 +1,395 @@
+package com.vgaw.bugcat.http;
+
+import com.vgaw.bugcat.store.CrashRecord;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * 本地的收集端桩，用于离线测试上传协议和吞吐：
+ * <ul>
+ * <li>"/"：原样返回请求体(单条上传)</li>
+ * <li>"/batch"：解码{@link UploadBatch}，逐条确认；按COUNT记录的total累计每个key的出现次数；
+ * 二进制的崩溃记录按批中的字符串还原为文本；收下批次带来的设备信息，已有的设备信息确认其hash</li>
+ * <li>"/batch/offer"：协商，回答收到的key中哪些还没有内容(见HttpCat.requestBatch)；可关闭以模拟旧的收集端</li>
+ * </ul>
+ * 支持HTTP/1.1 keep-alive和gzip/deflate请求体，统计连接数、请求数和收到的字节数。
+ */
+public class StubCollector {
+    private ServerSocket server;
+    private Thread acceptThread;
+    private final List<Socket> sockets = Collections.synchronizedList(new ArrayList<Socket>());
+
+    private final AtomicInteger connections = new AtomicInteger();
+    private final AtomicInteger requests = new AtomicInteger();
+    private final AtomicInteger records = new AtomicInteger();
+    private final AtomicLong wireBytes = new AtomicLong();
+    private final AtomicLong dropped = new AtomicLong();
+    private final AtomicLong sampled = new AtomicLong();
+    private final List<String> received = Collections.synchronizedList(new ArrayList<String>());
+    private final Map<String, Integer> occurrences = Collections.synchronizedMap(new HashMap<String, Integer>());
+    private final Map<String, String> reports = Collections.synchronizedMap(new HashMap<String, String>());
+    private final Map<String, String> profiles = Collections.synchronizedMap(new HashMap<String, String>());
+    private final Map<String, String> profileOf = Collections.synchronizedMap(new HashMap<String, String>());
+    private final AtomicInteger profileUploads = new AtomicInteger();
+    private final AtomicInteger skipped = new AtomicInteger();
+    private volatile boolean negotiation = true;
+    private final AtomicInteger unavailableOffers = new AtomicInteger();
+    private volatile int ackLimit = Integer.MAX_VALUE;
+    private volatile boolean dropAfterResponse;
+    private volatile boolean malformedLength;
+
+    public int start() throws IOException {
+        server = new ServerSocket(0, 50, InetAddress.getByName("127.0.0.1"));
+        acceptThread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                while (!server.isClosed()) {
+                    try {
+                        final Socket socket = server.accept();
+                        connections.incrementAndGet();
+                        sockets.add(socket);
+                        Thread worker = new Thread(new Runnable() {
+                            @Override
+                            public void run() {
+                                serve(socket);
+                            }
+                        }, "StubCollector-conn");
+                        worker.setDaemon(true);
+                        worker.start();
+                    } catch (IOException e) {
+                        return;
+                    }
+                }
+            }
+        }, "StubCollector-accept");
+        acceptThread.setDaemon(true);
+        acceptThread.start();
+        return server.getLocalPort();
+    }
+
+    public void stop() throws IOException {
+        server.close();
+        synchronized (sockets) {
+            for (Socket socket : sockets) {
+                socket.close();
+            }
+        }
+    }
+
+    public int getConnections() {
+        return connections.get();
+    }
+
+    public int getRequests() {
+        return requests.get();
+    }
+
+    public int getRecords() {
+        return records.get();
+    }
+
+    /**
+     * @return 收到的请求体字节数(解压前)
+     */
+    public long getWireBytes() {
+        return wireBytes.get();
+    }
+
+    /**
+     * 收到的key(按到达顺序)
+     */
+    public List<String> getReceived() {
+        return received;
+    }
+
+    /**
+     * @return 该key的累计出现次数，内容计1次，COUNT以total为准(重传不会重复计)
+     */
+    public int getOccurrences(String key) {
+        Integer count = occurrences.get(key);
+        return count == null ? 0 : count;
+    }
+
+    /**
+     * @return 该key的内容(二进制记录已还原为文本)，没有收到返回null
+     */
+    public String getReport(String key) {
+        return reports.get(key);
+    }
+
+    /**
+     * @return hash对应的设备信息，没有收到返回null
+     */
+    public String getProfile(String hash) {
+        return profiles.get(hash);
+    }
+
+    /**
+     * @return 该key所在批次带的设备信息hash
+     */
+    public String getProfileOf(String key) {
+        return profileOf.get(key);
+    }
+
+    /**
+     * @return 收到设备信息内容的次数
+     */
+    public int getProfileUploads() {
+        return profileUploads.get();
+    }
+
+    /**
+     * @return 客户端报告的因限流没有记录的次数之和
+     */
+    public long getDropped() {
+        return dropped.get();
+    }
+
+    /**
+     * @return 客户端报告的抽样记录的次数之和
+     */
+    public long getSampled() {
+        return sampled.get();
+    }
+
+    /**
+     * @return 协商时已有内容、不必再上传的key数
+     */
+    public int getSkipped() {
+        return skipped.get();
+    }
+
+    /**
+     * 关闭后"/batch/offer"返回404，模拟不支持协商的收集端
+     */
+    public void setNegotiation(boolean negotiation) {
+        this.negotiation = negotiation;
+    }
+
+    /**
+     * 之后的count次"/batch/offer"返回503，模拟收集端暂时过载
+     */
+    public void setUnavailableOffers(int count) {
+        unavailableOffers.set(count);
+    }
+
+    /**
+     * 每批最多确认多少条，用于测试部分确认
+     */
+    public void setAckLimit(int ackLimit) {
+        this.ackLimit = ackLimit;
+    }
+
+    /**
+     * 响应后不打招呼直接断开，模拟服务器回收keep-alive连接
+     */
+    public void setDropAfterResponse(boolean dropAfterResponse) {
+        this.dropAfterResponse = dropAfterResponse;
+    }
+
+    /**
+     * 响应头中的Content-Length不是数字，模拟异常的收集端
+     */
+    public void setMalformedLength(boolean malformedLength) {
+        this.malformedLength = malformedLength;
+    }
+
+    private void serve(Socket socket) {
+        try {
+            InputStream in = new BufferedInputStream(socket.getInputStream());
+            OutputStream out = socket.getOutputStream();
+            while (true) {
+                String requestLine = readLine(in);
+                if (requestLine == null || requestLine.length() == 0) {
+                    return;
+                }
+                Map<String, String> headers = new HashMap<String, String>();
+                String line;
+                while ((line = readLine(in)) != null && line.length() > 0) {
+                    int colon = line.indexOf(':');
+                    if (colon > 0) {
+                        headers.put(line.substring(0, colon).trim().toLowerCase(), line.substring(colon + 1).trim());
+                    }
+                }
+                byte[] body = readBody(in, headers);
+                wireBytes.addAndGet(body.length);
+                body = PayloadCodec.decode(headers.get("content-encoding"), headers.get("x-bugcat-dictionary"), body);
+                requests.incrementAndGet();
+                String path = requestLine.split(" ")[1];
+                byte[] response;
+                String status;
+                if (path.endsWith("/batch/offer") && unavailableOffers.get() > 0
+                        && unavailableOffers.getAndDecrement() > 0) {
+                    response = null;
+                    status = "503 Service Unavailable";
+                } else {
+                    response = handle(path, headers, body);
+                    status = response == null ? "404 Not Found" : "200 OK";
+                }
+                if (response == null) {
+                    response = new byte[0];
+                }
+                boolean close = "close".equalsIgnoreCase(headers.get("connection"));
+                String head = "HTTP/1.1 " + status + "\r\nContent-Type: text/plain\r\nContent-Length: " + response.length
+                        + (malformedLength ? "abc" : "")
+                        + "\r\nConnection: " + (close ? "close" : "keep-alive") + "\r\n\r\n";
+                out.write(head.getBytes("US-ASCII"));
+                out.write(response);
+                out.flush();
+                if (close || dropAfterResponse) {
+                    return;
+                }
+            }
+        } catch (SocketException e) {
+            // 对端关闭
+        } catch (IOException e) {
+            e.printStackTrace();
+        } finally {
+            try {
+                socket.close();
+            } catch (IOException e) {
+            }
+        }
+    }
+
+    /**
+     * 按路径分发，子类可扩展
+     *
+     * @return 响应体，null表示404
+     */
+    protected byte[] handle(String path, Map<String, String> headers, byte[] body) throws IOException {
+        if (path.endsWith("/batch/offer")) {
+            if (!negotiation) {
+                return null;
+            }
+            List<String> needed = new ArrayList<String>();
+            for (String key : UploadBatch.readAcknowledged(body)) {
+                if (reports.containsKey(key)) {
+                    skipped.incrementAndGet();
+                } else {
+                    needed.add(key);
+                }
+            }
+            return UploadBatch.writeAcknowledged(needed);
+        }
+        if (path.endsWith("/batch")) {
+            UploadBatch batch = UploadBatch.read(new ByteArrayInputStream(body));
+            List<String> acknowledged = new ArrayList<String>();
+            if (batch.getStats() != null) {
+                dropped.addAndGet(batch.getStats()[0]);
+                sampled.addAndGet(batch.getStats()[1]);
+            }
+            String profileHash = batch.getProfileHash();
+            if (batch.getProfile() != null) {
+                profileUploads.incrementAndGet();
+                profiles.put(profileHash, new String(batch.getProfile(), "UTF-8"));
+            }
+            final Map<Integer, String> strings = batch.getStrings();
+            CrashRecord.Strings lookup = new CrashRecord.Strings() {
+                @Override
+                public String get(int index) {
+                    return strings.get(index);
+                }
+            };
+            for (int i = 0; i < batch.size(); i++) {
+                records.incrementAndGet();
+                String key = batch.getKeys().get(i);
+                received.add(key);
+                byte[] report = batch.getBody(i);
+                reports.put(key, CrashRecord.isRecord(report) ? CrashRecord.decode(report, lookup)
+                        : new String(report, "UTF-8"));
+                if (profileHash != null) {
+                    profileOf.put(key, profileHash);
+                }
+                if (acknowledged.size() < ackLimit) {
+                    acknowledged.add(key);
+                    synchronized (occurrences) {
+                        if (!occurrences.containsKey(key)) {
+                            occurrences.put(key, 1);
+                        }
+                    }
+                }
+            }
+            for (int i = 0; i < batch.getCountKeys().size(); i++) {
+                String key = batch.getCountKeys().get(i);
+                if (acknowledged.size() < ackLimit) {
+                    if (!acknowledged.contains(key)) {
+                        acknowledged.add(key);
+                    }
+                    synchronized (occurrences) {
+                        occurrences.put(key, Math.max(getOccurrences(key), batch.getTotal(i)));
+                    }
+                }
+            }
+            // 设备信息的确认不占ackLimit
+            if (profileHash != null && profiles.containsKey(profileHash)) {
+                acknowledged.add(profileHash);
+            }
+            return UploadBatch.writeAcknowledged(acknowledged);
+        }
+        records.incrementAndGet();
+        return body;
+    }
+
+    private static byte[] readBody(InputStream in, Map<String, String> headers) throws IOException {
+        DataInputStream data = new DataInputStream(in);
+        if ("chunked".equalsIgnoreCase(headers.get("transfer-encoding"))) {
+            ByteArrayOutputStream body = new ByteArrayOutputStream();
+            while (true) {
+                String sizeLine = readLine(in);
+                if (sizeLine == null) {
+                    throw new EOFException();
+                }
+                int size = Integer.parseInt(sizeLine.split(";")[0].trim(), 16);
+                if (size == 0) {
+                    // 跳过trailer
+                    while ((sizeLine = readLine(in)) != null && sizeLine.length() > 0) {
+                    }
+                    return body.toByteArray();
+                }
+                byte[] chunk = new byte[size];
+                data.readFully(chunk);
+                body.write(chunk);
+                readLine(in);
+            }
+        }
+        String contentLength = headers.get("content-length");
+        byte[] body = new byte[contentLength == null ? 0 : Integer.parseInt(contentLength)];
+        data.readFully(body);
+        return body;
+    }
+
+    private static String readLine(InputStream in) throws IOException {
+        StringBuilder sb = new StringBuilder();
+        int c;
+        while ((c = in.read()) != -1) {
+            if (c == '\n') {
+                int length = sb.length();
+                if (length > 0 && sb.charAt(length - 1) == '\r') {
+                    sb.setLength(length - 1);
+                }
+                return sb.toString();
+            }
+            sb.append((char) c);
+        }
+        return sb.length() == 0 ? null : sb.toString();
+    }
+}
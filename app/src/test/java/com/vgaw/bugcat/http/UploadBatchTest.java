@@ -0,0 +1,441 @@
+package com.vgaw.bugcat.http;
+
+import com.vgaw.bugcat.store.CrashRecord;
+import com.vgaw.bugcat.store.StringTable;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.junit.Assert.*;
+
+public class UploadBatchTest {
+    private StubCollector collector;
+
+    @Before
+    public void setUp() throws Exception {
+        collector = new StubCollector();
+        HttpCat.setUri("127.0.0.1", collector.start());
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        collector.stop();
+    }
+
+    @Test
+    public void encodesAndDecodes() throws Exception {
+        UploadBatch batch = new UploadBatch();
+        batch.add(key(1), "bug  :a".getBytes("UTF-8"));
+        batch.add(key(2), new byte[0]);
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        batch.writeTo(out);
+        assertEquals(batch.length(), out.size());
+
+        UploadBatch decoded = UploadBatch.read(new ByteArrayInputStream(out.toByteArray()));
+        assertEquals(batch.getKeys(), decoded.getKeys());
+        assertEquals("bug  :a", new String(decoded.getBody(0), "UTF-8"));
+        assertEquals(0, decoded.getBody(1).length);
+    }
+
+    @Test
+    public void carriesCountDeltas() throws Exception {
+        UploadBatch batch = new UploadBatch();
+        batch.add(key(1), "bug  :a".getBytes("UTF-8"));
+        // 同一批中key(1)之前已重复出现2次，key(2)早已上传过
+        assertTrue(batch.addCount(key(1), 2, 3, 100));
+        assertTrue(batch.addCount(key(2), 5, 9, 200));
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        batch.writeTo(out);
+        assertEquals(batch.length(), out.size());
+
+        UploadBatch decoded = UploadBatch.read(new ByteArrayInputStream(out.toByteArray()));
+        assertEquals(batch.getKeys(), decoded.getKeys());
+        assertEquals(batch.getCountKeys(), decoded.getCountKeys());
+        assertEquals(5, decoded.getDelta(1));
+        assertEquals(9, decoded.getTotal(1));
+        assertEquals(200, decoded.getLastSeen(1));
+
+        List<String> acknowledged = HttpCat.requestBatch(batch);
+        assertTrue(acknowledged.contains(key(1)));
+        assertTrue(acknowledged.contains(key(2)));
+        assertEquals(3, collector.getOccurrences(key(1)));
+        // 重传不会重复计数
+        HttpCat.requestBatch(batch);
+        assertEquals(9, collector.getOccurrences(key(2)));
+    }
+
+    @Test
+    public void countOnlyBatch() throws Exception {
+        UploadBatch batch = new UploadBatch();
+        assertTrue(batch.isEmpty());
+        assertTrue(batch.addCount(key(1), 1, 2, 100));
+        assertFalse(batch.isEmpty());
+        assertEquals(0, batch.size());
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        batch.writeTo(out);
+        // 比上传内容小得多
+        assertEquals(4 + 4 + 48, out.size());
+        assertEquals(1, UploadBatch.read(new ByteArrayInputStream(out.toByteArray())).getCountKeys().size());
+    }
+
+    @Test
+    public void carriesThrottleStats() throws Exception {
+        UploadBatch batch = new UploadBatch();
+        batch.setStats(120, 3);
+        // 只有计数也要上传，但不算有内容
+        assertTrue(batch.isEmpty());
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        batch.writeTo(out);
+        assertEquals(batch.length(), out.size());
+        UploadBatch decoded = UploadBatch.read(new ByteArrayInputStream(out.toByteArray()));
+        assertArrayEquals(new long[]{120, 3}, decoded.getStats());
+
+        batch = new UploadBatch();
+        batch.add(key(1), "bug  :a".getBytes("UTF-8"));
+        assertNull(UploadBatch.read(new ByteArrayInputStream(encode(batch))).getStats());
+        batch.setStats(7, 0);
+        assertTrue(batch.addCount(key(2), 1, 2, 100));
+        decoded = UploadBatch.read(new ByteArrayInputStream(encode(batch)));
+        assertEquals(1, decoded.getCountKeys().size());
+        assertArrayEquals(new long[]{7, 0}, decoded.getStats());
+
+        HttpCat.requestBatch(batch);
+        assertEquals(7, collector.getDropped());
+        assertEquals(0, collector.getSampled());
+    }
+
+    @Test
+    public void carriesStrings() throws Exception {
+        UploadBatch batch = new UploadBatch();
+        assertTrue(batch.add(key(1), new byte[]{1, 2}, new int[]{0, 1}, new String[]{"Foo", "run"}));
+        // 批中已有的字符串不重复发送
+        assertTrue(batch.add(key(2), new byte[]{3}, new int[]{1, 2}, new String[]{"run", "状态"}));
+        assertEquals(3, batch.getStrings().size());
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        batch.writeTo(out);
+        assertEquals(batch.length(), out.size());
+
+        UploadBatch decoded = UploadBatch.read(new ByteArrayInputStream(out.toByteArray()));
+        assertEquals(batch.getKeys(), decoded.getKeys());
+        assertEquals(batch.getStrings(), decoded.getStrings());
+        assertNull(decoded.getStats());
+        assertTrue(decoded.getCountKeys().isEmpty());
+
+        // 字符串也计入字节数
+        batch = new UploadBatch(64, 4 + 36 + 1 + 4 + 16 + 4 + 8 + 3);
+        assertTrue(batch.add(key(1), new byte[]{1}, new int[]{0}, new String[]{"Foo"}));
+        assertEquals(batch.length(), encode(batch).length);
+        assertFalse(batch.add(key(2), new byte[]{1}, new int[]{1}, new String[]{"Bar"}));
+    }
+
+    @Test
+    public void collectorDecodesCrashRecords() throws Exception {
+        File dir = File.createTempFile("strings", "");
+        dir.delete();
+        dir.mkdirs();
+        StringTable table = new StringTable(new File(dir, StringTable.FILE_NAME));
+        try {
+            table.open();
+            RuntimeException ex = new RuntimeException("boom");
+            ex.setStackTrace(new StackTraceElement[]{new StackTraceElement("Foo", "run", "Foo.java", 3)});
+            ByteBuffer buffer = ByteBuffer.allocate(4096);
+            new CrashRecord().encode(ex, table, buffer);
+            byte[] record = Arrays.copyOf(buffer.array(), buffer.position());
+            Set<Integer> refs = new TreeSet<Integer>();
+            CrashRecord.collectRefs(record, refs);
+            int[] ids = new int[refs.size()];
+            String[] values = new String[refs.size()];
+            int n = 0;
+            for (Integer ref : refs) {
+                ids[n] = ref;
+                values[n++] = table.get(ref);
+            }
+            UploadBatch batch = new UploadBatch();
+            batch.add(key(1), record, ids, values);
+            batch.add(key(2), "bug  :a".getBytes("UTF-8"));
+            HttpCat.requestBatch(batch);
+            assertEquals("bug  :boom\ncause:null\npath :3->run->Foo->Foo.java\n"
+                    + "java.lang.RuntimeException: boom\n\tat Foo.run(Foo.java:3)", collector.getReport(key(1)));
+            assertEquals("bug  :a", collector.getReport(key(2)));
+        } finally {
+            table.close();
+            new File(dir, StringTable.FILE_NAME).delete();
+            dir.delete();
+        }
+    }
+
+    @Test
+    public void carriesProfileOncePerDevice() throws Exception {
+        String hash = key(99);
+        UploadBatch batch = new UploadBatch();
+        batch.setProfile(hash, "MODEL:Pixel\n".getBytes("UTF-8"));
+        batch.add(key(1), "bug  :a".getBytes("UTF-8"));
+        assertEquals(batch.length(), encode(batch).length);
+        UploadBatch decoded = UploadBatch.read(new ByteArrayInputStream(encode(batch)));
+        assertEquals(hash, decoded.getProfileHash());
+        assertEquals("MODEL:Pixel\n", new String(decoded.getProfile(), "UTF-8"));
+        assertTrue(decoded.getStrings().isEmpty());
+        assertTrue(HttpCat.requestBatch(batch).contains(hash));
+        assertEquals("MODEL:Pixel\n", collector.getProfile(hash));
+
+        // 之后只带hash
+        batch = new UploadBatch();
+        batch.setProfile(hash, null);
+        batch.add(key(2), "bug  :b".getBytes("UTF-8"));
+        assertEquals(batch.length(), encode(batch).length);
+        assertNull(UploadBatch.read(new ByteArrayInputStream(encode(batch))).getProfile());
+        assertTrue(HttpCat.requestBatch(batch).contains(hash));
+        assertEquals(hash, collector.getProfileOf(key(2)));
+        assertEquals(1, collector.getProfileUploads());
+
+        // 收集端没有的不确认，客户端应重新带上内容
+        batch = new UploadBatch();
+        batch.setProfile(key(98), null);
+        batch.add(key(3), "bug  :c".getBytes("UTF-8"));
+        List<String> acknowledged = HttpCat.requestBatch(batch);
+        assertTrue(acknowledged.contains(key(3)));
+        assertFalse(acknowledged.contains(key(98)));
+    }
+
+    @Test
+    public void skipsBodiesTheCollectorHas() throws Exception {
+        UploadBatch first = new UploadBatch();
+        first.add(key(1), "bug  :a".getBytes("UTF-8"));
+        first.add(key(2), "bug  :b".getBytes("UTF-8"));
+        assertEquals(first.getKeys(), HttpCat.requestBatch(first));
+        assertEquals(2, collector.getRecords());
+
+        // 另一台设备上的同一个崩溃只上报次数
+        UploadBatch second = new UploadBatch();
+        second.add(key(1), "bug  :a".getBytes("UTF-8"));
+        second.addCount(key(1), 4, 5, 300);
+        second.add(key(3), "bug  :c".getBytes("UTF-8"));
+        List<String> acknowledged = HttpCat.requestBatch(second);
+        assertTrue(acknowledged.containsAll(Arrays.asList(key(1), key(3))));
+        assertEquals(3, collector.getRecords());
+        assertEquals(1, collector.getSkipped());
+        assertEquals(5, collector.getOccurrences(key(1)));
+    }
+
+    @Test
+    public void retainTurnsKnownBodiesIntoCounts() throws Exception {
+        UploadBatch batch = new UploadBatch();
+        batch.setStats(3, 1);
+        batch.add(key(1), new byte[]{1}, new int[]{0, 1}, new String[]{"Foo", "run"});
+        batch.add(key(2), new byte[]{2}, new int[]{1, 2}, new String[]{"run", "Bar"});
+        batch.add(key(3), "bug  :c".getBytes("UTF-8"));
+        batch.addCount(key(2), 2, 3, 100);
+
+        UploadBatch retained = batch.retain(Arrays.asList(key(1)));
+        assertEquals(Arrays.asList(key(1)), retained.getKeys());
+        assertEquals(Arrays.asList(key(2), key(3)), retained.getCountKeys());
+        // 内容计的1次并入已有的COUNT
+        assertEquals(3, retained.getDelta(0));
+        assertEquals(3, retained.getTotal(0));
+        assertEquals(1, retained.getDelta(1));
+        assertEquals(1, retained.getTotal(1));
+        // 只留仍被引用的字符串
+        assertEquals(2, retained.getStrings().size());
+        assertFalse(retained.getStrings().containsKey(2));
+        assertArrayEquals(new long[]{3, 1}, retained.getStats());
+        assertEquals(retained.length(), encode(retained).length);
+    }
+
+    @Test
+    public void fallsBackWithoutNegotiation() throws Exception {
+        collector.setNegotiation(false);
+        UploadBatch batch = new UploadBatch();
+        batch.add(key(1), "bug  :a".getBytes("UTF-8"));
+        assertEquals(batch.getKeys(), HttpCat.requestBatch(batch));
+        assertEquals(2, collector.getRequests());
+        // 之后不再协商，内容照常上传
+        assertEquals(batch.getKeys(), HttpCat.requestBatch(batch));
+        assertEquals(3, collector.getRequests());
+        assertEquals(2, collector.getRecords());
+    }
+
+    @Test
+    public void resumesNegotiationAfterTransientError() throws Exception {
+        UploadBatch batch = new UploadBatch();
+        batch.add(key(1), "bug  :a".getBytes("UTF-8"));
+        assertEquals(batch.getKeys(), HttpCat.requestBatch(batch));
+
+        // offer暂时失败：这一批带上全部内容
+        collector.setUnavailableOffers(1);
+        assertEquals(batch.getKeys(), HttpCat.requestBatch(batch));
+        assertEquals(4, collector.getRequests());
+        assertEquals(2, collector.getRecords());
+        assertEquals(0, collector.getSkipped());
+
+        // 下一批照常协商，已有的内容不再上传
+        assertEquals(batch.getKeys(), HttpCat.requestBatch(batch));
+        assertEquals(6, collector.getRequests());
+        assertEquals(1, collector.getSkipped());
+    }
+
+    @Test
+    public void boundedByCountAndBytes() throws Exception {
+        UploadBatch byCount = new UploadBatch(2, Integer.MAX_VALUE);
+        assertTrue(byCount.add(key(1), new byte[10]));
+        assertTrue(byCount.add(key(2), new byte[10]));
+        assertFalse(byCount.add(key(3), new byte[10]));
+
+        UploadBatch byBytes = new UploadBatch(100, 100);
+        // 空批总能放下第一条
+        assertTrue(byBytes.add(key(1), new byte[200]));
+        assertFalse(byBytes.add(key(2), new byte[1]));
+    }
+
+    @Test
+    public void acknowledgesIndividually() throws Exception {
+        collector.setAckLimit(3);
+        UploadBatch batch = new UploadBatch();
+        for (int i = 0; i < 5; i++) {
+            batch.add(key(i), ("bug " + i).getBytes("UTF-8"));
+        }
+        List<String> acknowledged = HttpCat.requestBatch(batch);
+        assertEquals(batch.getKeys().subList(0, 3), acknowledged);
+        assertEquals(5, collector.getRecords());
+    }
+
+    @Test
+    public void streamsFileRecords() throws Exception {
+        File file = File.createTempFile("bug", "");
+        try {
+            FileOutputStream out = new FileOutputStream(file);
+            byte[] body = new byte[3 * BufferPool.BUFFER_SIZE + 17];
+            for (int i = 0; i < body.length; i++) {
+                body[i] = (byte) ("bug  :/ by zero\n".charAt(i % 16));
+            }
+            out.write(body);
+            out.close();
+
+            UploadBatch batch = new UploadBatch();
+            batch.add(key(1), file);
+            batch.add(key(2), "bug".getBytes("UTF-8"));
+            assertEquals(4 + 2 * (32 + 4) + body.length + 3, batch.length());
+            assertArrayEquals(body, batch.getBody(0));
+
+            // keep-alive + 压缩：请求体边读文件边压缩，以chunked发送
+            HttpCat.setKeepAlive(true);
+            HttpCat.setCompression(PayloadCodec.DEFLATE);
+            assertEquals(batch.getKeys(), HttpCat.requestBatch(batch));
+            assertTrue(collector.getWireBytes() < body.length / 10);
+        } finally {
+            HttpCat.setKeepAlive(false);
+            HttpCat.setCompression(PayloadCodec.NONE);
+            file.delete();
+        }
+    }
+
+    @Test
+    public void malformedResponseFailsOnlyTheBatch() throws Exception {
+        collector.setMalformedLength(true);
+        final CountDownLatch done = new CountDownLatch(1);
+        final AtomicReference<UploadBatch> failed = new AtomicReference<UploadBatch>();
+        final UploadBatch batch = new UploadBatch();
+        batch.add(key(1), "bug  :a".getBytes("UTF-8"));
+        try {
+            HttpCat.setKeepAlive(true);
+            assertTrue(HttpCat.flyBatch(batch, new HttpCat.AbstractBatchResponseListener() {
+                @Override
+                public void onException(UploadBatch batch) {
+                    failed.set(batch);
+                    done.countDown();
+                }
+            }));
+            // 异常不会逃到上传线程，按失败回调
+            assertTrue(done.await(5, TimeUnit.SECONDS));
+            assertSame(batch, failed.get());
+        } finally {
+            HttpCat.setKeepAlive(false);
+        }
+    }
+
+    @Test
+    public void readsFileRegions() throws Exception {
+        File file = File.createTempFile("seg_", "");
+        try {
+            FileOutputStream out = new FileOutputStream(file);
+            out.write("bug  :abug  :bc".getBytes("UTF-8"));
+            out.close();
+
+            UploadBatch batch = new UploadBatch();
+            batch.add(key(1), file, 0, 6);
+            batch.add(key(2), file, 6, 8);
+            assertEquals("abug  :b", new String(batch.getBody(1), "UTF-8"));
+            ByteArrayOutputStream body = new ByteArrayOutputStream();
+            batch.writeTo(body);
+            assertEquals(batch.length(), body.size());
+            UploadBatch decoded = UploadBatch.read(new ByteArrayInputStream(body.toByteArray()));
+            assertEquals("bug  :", new String(decoded.getBody(0), "UTF-8"));
+            assertEquals("abug  :b", new String(decoded.getBody(1), "UTF-8"));
+        } finally {
+            file.delete();
+        }
+    }
+
+    /**
+     * 200条积压：逐条上传与按批上传所用的连接数
+     */
+    @Test
+    public void batchConnections() throws Exception {
+        int pending = 200;
+        List<byte[]> bodies = new ArrayList<byte[]>();
+        for (int i = 0; i < pending; i++) {
+            bodies.add(("bug  :/ by zero " + i + "\ncause:null\npath :12->fun->Test->Test.java").getBytes("UTF-8"));
+        }
+
+        for (int i = 0; i < pending; i++) {
+            HttpCat.requestForResult(new String(bodies.get(i), "UTF-8"));
+        }
+        int singleConnections = collector.getConnections();
+
+        // 只数批量本身，协商的往返另计
+        HttpCat.setNegotiation(false);
+        int acknowledged = 0;
+        try {
+            UploadBatch batch = new UploadBatch();
+            for (int i = 0; i < pending; i++) {
+                if (!batch.add(key(i), bodies.get(i))) {
+                    acknowledged += HttpCat.requestBatch(batch).size();
+                    batch = new UploadBatch();
+                    batch.add(key(i), bodies.get(i));
+                }
+            }
+            acknowledged += HttpCat.requestBatch(batch).size();
+        } finally {
+            HttpCat.setNegotiation(true);
+        }
+        int batchConnections = collector.getConnections() - singleConnections;
+
+        assertEquals(pending, acknowledged);
+        assertEquals(pending, singleConnections);
+        assertEquals((pending + UploadBatch.DEFAULT_MAX_COUNT - 1) / UploadBatch.DEFAULT_MAX_COUNT, batchConnections);
+    }
+
+    private static byte[] encode(UploadBatch batch) throws Exception {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        batch.writeTo(out);
+        return out.toByteArray();
+    }
+
+    private static String key(int i) {
+        return String.format("%032x", i);
+    }
+}
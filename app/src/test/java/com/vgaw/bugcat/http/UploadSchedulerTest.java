@@ -0,0 +1,107 @@
+package com.vgaw.bugcat.http;
+
+import org.junit.Test;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.*;
+
+public class UploadSchedulerTest {
+
+    @Test
+    public void coalescesBurst() throws Exception {
+        final AtomicInteger drains = new AtomicInteger();
+        UploadScheduler scheduler = new UploadScheduler(new Runnable() {
+            @Override
+            public void run() {
+                drains.incrementAndGet();
+            }
+        });
+        scheduler.setDebounce(100);
+        scheduler.setMinInterval(0);
+        try {
+            for (int i = 0; i < 50; i++) {
+                scheduler.request();
+            }
+            Thread.sleep(400);
+            assertEquals(50, scheduler.getRequestCount());
+            assertEquals(1, drains.get());
+        } finally {
+            scheduler.shutdown();
+        }
+    }
+
+    @Test
+    public void singleFlightAndMinInterval() throws Exception {
+        final CountDownLatch started = new CountDownLatch(1);
+        final CountDownLatch release = new CountDownLatch(1);
+        final AtomicInteger running = new AtomicInteger();
+        final AtomicInteger maxRunning = new AtomicInteger();
+        final AtomicInteger drains = new AtomicInteger();
+        UploadScheduler scheduler = new UploadScheduler(new Runnable() {
+            @Override
+            public void run() {
+                int now = running.incrementAndGet();
+                maxRunning.set(Math.max(maxRunning.get(), now));
+                drains.incrementAndGet();
+                started.countDown();
+                try {
+                    release.await(2, TimeUnit.SECONDS);
+                } catch (InterruptedException e) {
+                }
+                running.decrementAndGet();
+            }
+        });
+        scheduler.setDebounce(10);
+        scheduler.setMinInterval(300);
+        try {
+            scheduler.request();
+            assertTrue(started.await(1, TimeUnit.SECONDS));
+            // drain期间的触发合并为结束后的一次
+            for (int i = 0; i < 10; i++) {
+                scheduler.request();
+            }
+            release.countDown();
+            Thread.sleep(100);
+            assertEquals(1, drains.get());
+            Thread.sleep(500);
+            assertEquals(2, drains.get());
+            assertEquals(1, maxRunning.get());
+        } finally {
+            scheduler.shutdown();
+        }
+    }
+
+    @Test
+    public void conditionDropsTrigger() throws Exception {
+        final AtomicInteger drains = new AtomicInteger();
+        UploadScheduler scheduler = new UploadScheduler(new Runnable() {
+            @Override
+            public void run() {
+                drains.incrementAndGet();
+            }
+        });
+        final boolean[] wifi = {false};
+        scheduler.setDebounce(10);
+        scheduler.setMinInterval(0);
+        scheduler.setCondition(new UploadScheduler.Condition() {
+            @Override
+            public boolean allow() {
+                return wifi[0];
+            }
+        });
+        try {
+            scheduler.request();
+            Thread.sleep(100);
+            assertEquals(0, drains.get());
+            wifi[0] = true;
+            scheduler.request();
+            Thread.sleep(100);
+            assertEquals(1, drains.get());
+        } finally {
+            scheduler.shutdown();
+        }
+    }
+}
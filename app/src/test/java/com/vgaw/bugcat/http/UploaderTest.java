@@ -0,0 +1,68 @@
+package com.vgaw.bugcat.http;
+
+import org.junit.Test;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.*;
+
+public class UploaderTest {
+    @Test
+    public void boundsQueueAndCancelsPending() throws Exception {
+        Uploader uploader = new Uploader(1, 2);
+        final CountDownLatch release = new CountDownLatch(1);
+        final AtomicInteger ran = new AtomicInteger();
+        final AtomicInteger cancelled = new AtomicInteger();
+        Uploader.Task blocking = new Uploader.Task() {
+            @Override
+            public void run() {
+                try {
+                    release.await(5, TimeUnit.SECONDS);
+                } catch (InterruptedException e) {
+                }
+                ran.incrementAndGet();
+            }
+
+            @Override
+            public void cancel() {
+                cancelled.incrementAndGet();
+            }
+        };
+        // 1个执行 + 2个排队，第4个被拒
+        assertTrue(uploader.submit(blocking));
+        assertTrue(uploader.submit(blocking));
+        assertTrue(uploader.submit(blocking));
+        assertFalse(uploader.submit(blocking));
+        assertEquals(1, uploader.getRejectedCount());
+
+        uploader.cancelAll();
+        assertEquals(2, cancelled.get());
+        assertEquals(0, uploader.getQueued());
+        release.countDown();
+        uploader.shutdown();
+        Thread.sleep(100);
+        assertEquals(1, ran.get());
+    }
+
+    @Test
+    public void deliversOffCallerThread() throws Exception {
+        StubCollector collector = new StubCollector();
+        HttpCat.setUri("127.0.0.1", collector.start());
+        final CountDownLatch done = new CountDownLatch(1);
+        final Thread caller = Thread.currentThread();
+        final Thread[] callback = new Thread[1];
+        assertTrue(HttpCat.fly("bug", new HttpCat.AbstractResponseListener() {
+            @Override
+            public void onSuccess(String flyCat) {
+                callback[0] = Thread.currentThread();
+                done.countDown();
+            }
+        }));
+        assertTrue(done.await(5, TimeUnit.SECONDS));
+        assertNotSame(caller, callback[0]);
+        assertTrue(callback[0].getName().startsWith("BugCat-uploader"));
+        collector.stop();
+    }
+}
@@ -0,0 +1,249 @@
+package com.vgaw.bugcat.store;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+
+import static org.junit.Assert.*;
+
+public class BugJournalTest {
+    private File dir;
+    private File file;
+
+    @Before
+    public void setUp() throws Exception {
+        dir = File.createTempFile("bugbox", "");
+        dir.delete();
+        dir.mkdirs();
+        file = new File(dir, "bug");
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        File[] files = dir.listFiles();
+        if (files != null) {
+            for (File f : files) {
+                f.delete();
+            }
+        }
+        dir.delete();
+    }
+
+    @Test
+    public void appendAndReopen() throws Exception {
+        BugJournal journal = new BugJournal(file);
+        journal.open("1.0");
+        int first = journal.append(1, 2, 100);
+        int second = journal.append(3, 4, 200);
+        journal.setStatus(first, BugJournal.STATUS_UPLOADED);
+        journal.close();
+        assertEquals(BugJournal.HEAD_SIZE + 2 * BugJournal.RECORD_SIZE, file.length());
+
+        journal = new BugJournal(file);
+        journal.open("2.0");
+        assertEquals("1.0", journal.getAppVersion());
+        assertEquals(2, journal.size());
+        assertEquals(first, journal.find(1, 2));
+        assertEquals(second, journal.find(3, 4));
+        assertEquals(BugJournal.STATUS_UPLOADED, journal.getStatus(first));
+        assertEquals(BugJournal.STATUS_NEW, journal.getStatus(second));
+        assertEquals(200, journal.getLastSeen(second));
+        assertEquals(1, journal.getCount(second));
+        journal.close();
+    }
+
+    @Test
+    public void ignoresTornTail() throws Exception {
+        BugJournal journal = new BugJournal(file);
+        journal.open("1.0");
+        journal.append(1, 2, 100);
+        journal.close();
+        RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        raf.setLength(raf.length() + BugJournal.RECORD_SIZE / 2);
+        raf.close();
+
+        journal = new BugJournal(file);
+        journal.open("1.0");
+        assertEquals(1, journal.size());
+        int record = journal.append(5, 6, 100);
+        assertEquals(1, record);
+        journal.close();
+        assertEquals(BugJournal.HEAD_SIZE + 2 * BugJournal.RECORD_SIZE, file.length());
+    }
+
+    @Test
+    public void persistsRetryState() throws Exception {
+        BugJournal journal = new BugJournal(file);
+        journal.open("1.0");
+        int record = journal.append(1, 2, 100);
+        assertEquals(0, journal.getAttempts(record));
+        assertEquals(0, journal.getNextAttempt(record));
+        journal.setRetry(record, 3, 5000);
+        journal.close();
+
+        journal = new BugJournal(file);
+        journal.open("1.0");
+        assertEquals(3, journal.getAttempts(record));
+        assertEquals(5000, journal.getNextAttempt(record));
+        // 相邻字段不受影响
+        assertEquals(BugJournal.STATUS_NEW, journal.getStatus(record));
+        assertEquals(1, journal.getCount(record));
+        assertEquals(100, journal.getLastSeen(record));
+        journal.setRetry(record, 100000, 0);
+        assertEquals(0xffff, journal.getAttempts(record));
+        journal.close();
+    }
+
+    @Test
+    public void countsOccurrencesInPlace() throws Exception {
+        BugJournal journal = new BugJournal(file);
+        journal.open("1.0");
+        int record = journal.append(1, 2, 100);
+        journal.touch(record, 300, 2);
+        // 乱序到达的不会让lastSeen倒退
+        journal.touch(record, 200, 1);
+        assertEquals(4, journal.getCount(record));
+        assertEquals(100, journal.getFirstSeen(record));
+        assertEquals(300, journal.getLastSeen(record));
+        assertEquals(4, journal.getUnreported(record));
+
+        journal.setStatus(record, BugJournal.STATUS_UPLOADED);
+        // 只上传过内容时计1次
+        assertEquals(3, journal.getUnreported(record));
+        journal.setReported(record, 4);
+        assertEquals(0, journal.getUnreported(record));
+        journal.touch(record, 400, 1);
+        journal.close();
+
+        journal = new BugJournal(file);
+        journal.open("1.0");
+        assertEquals(5, journal.getCount(record));
+        assertEquals(4, journal.getReported(record));
+        assertEquals(1, journal.getUnreported(record));
+        assertEquals(400, journal.getLastSeen(record));
+        journal.close();
+    }
+
+    @Test
+    public void evictsAndCompacts() throws Exception {
+        BugJournal journal = new BugJournal(file);
+        journal.open("1.0");
+        for (int i = 0; i < 4; i++) {
+            journal.append(i, i, 100 + i);
+        }
+        journal.evict(journal.find(1, 1));
+        assertEquals(DigestIndex.ABSENT, journal.find(1, 1));
+        assertEquals(1, journal.getEvictedCount());
+        journal.close();
+
+        // 标记落盘，重新打开仍然有效
+        journal = new BugJournal(file);
+        journal.open("1.0");
+        assertEquals(4, journal.size());
+        assertEquals(DigestIndex.ABSENT, journal.find(1, 1));
+        journal.evict(journal.find(3, 3));
+        journal.compact();
+        assertEquals(2, journal.size());
+        assertEquals(0, journal.getEvictedCount());
+        assertEquals(BugJournal.HEAD_SIZE + 2 * BugJournal.RECORD_SIZE, file.length());
+        assertEquals(102, journal.getLastSeen(journal.find(2, 2)));
+        // compact后仍可追加，同一摘要可以重新记录
+        journal.append(1, 1, 200);
+        journal.close();
+
+        journal = new BugJournal(file);
+        journal.open("1.0");
+        assertEquals(3, journal.size());
+        assertEquals(2, journal.find(1, 1));
+        assertEquals("1.0", journal.getAppVersion());
+        journal.close();
+    }
+
+    @Test
+    public void compactsIncrementallyWhileAppending() throws Exception {
+        final BugJournal journal = new BugJournal(file);
+        journal.open("1.0");
+        for (int i = 0; i < 1000; i++) {
+            journal.append(0, i, i);
+        }
+        for (int i = 0; i < 1000; i += 2) {
+            journal.evict(journal.find(0, i));
+        }
+        assertTrue(journal.needsCompaction());
+        // 上次compact残留的半成品
+        new FileWriter(new File(dir, "bug_compact")).close();
+
+        final Exception[] failure = new Exception[1];
+        Thread writer = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    for (int i = 1000; i < 1200; i++) {
+                        journal.append(0, i, i);
+                        // 修改compact可能已拷贝过的记录
+                        journal.setStatus(journal.find(0, 2 * (i - 1000) + 1), BugJournal.STATUS_UPLOADED);
+                    }
+                } catch (Exception e) {
+                    failure[0] = e;
+                }
+            }
+        });
+        writer.start();
+        journal.compact();
+        writer.join();
+        assertNull(failure[0]);
+        // 没有垃圾时不生成新一代
+        journal.compact();
+        assertEquals(1, journal.getGeneration());
+        journal.close();
+
+        BugJournal reopened = new BugJournal(file);
+        reopened.open("1.0");
+        assertEquals(700, reopened.size());
+        assertEquals(0, reopened.getEvictedCount());
+        assertEquals(1, reopened.getGeneration());
+        for (int i = 0; i < 1200; i++) {
+            int record = reopened.find(0, i);
+            if (i < 1000 && i % 2 == 0) {
+                assertEquals(DigestIndex.ABSENT, record);
+                continue;
+            }
+            assertEquals(i, reopened.getFirstSeen(record));
+            byte expected = i < 400 ? BugJournal.STATUS_UPLOADED : BugJournal.STATUS_NEW;
+            assertEquals("record " + i, expected, reopened.getStatus(record));
+        }
+        assertFalse(new File(dir, "bug_compact").exists());
+        reopened.close();
+    }
+
+    @Test
+    public void migratesTextIndex() throws Exception {
+        String a = "0123456789abcdef0123456789abcdef";
+        String b = "fedcba9876543210fedcba9876543210";
+        write(file, "com.vgaw.bugcat\n1.0\n1.0.0\n\n" + a + " N\n" + b + " N\n");
+        write(new File(dir, "bug_temp"), "com.vgaw.bugcat\n1.0\n1.0.0\n\n" + b + " U\n");
+
+        BugJournal journal = new BugJournal(file);
+        journal.open("1.0.0");
+        assertEquals(2, journal.size());
+        assertEquals(BugJournal.STATUS_NEW, journal.getStatus(journal.find(DigestIndex.high(a), DigestIndex.low(a))));
+        assertEquals(BugJournal.STATUS_UPLOADED, journal.getStatus(journal.find(DigestIndex.high(b), DigestIndex.low(b))));
+        assertEquals(a, BugJournal.toKey(DigestIndex.high(a), DigestIndex.low(a)));
+        assertFalse(new File(dir, "bug_temp").exists());
+        journal.close();
+    }
+
+    private static void write(File file, String content) throws IOException {
+        FileWriter writer = new FileWriter(file);
+        try {
+            writer.write(content);
+        } finally {
+            writer.close();
+        }
+    }
+}
@@ -0,0 +1,217 @@
+package com.vgaw.bugcat.store;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.nio.charset.Charset;
+import java.security.MessageDigest;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.junit.Assert.*;
+
+public class BugWriterTest {
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    private File dir;
+
+    @Before
+    public void setUp() throws Exception {
+        dir = File.createTempFile("bugbox", "");
+        dir.delete();
+        dir.mkdirs();
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        File[] files = dir.listFiles();
+        if (files != null) {
+            for (File f : files) {
+                f.delete();
+            }
+        }
+        dir.delete();
+    }
+
+    @Test
+    public void writesOncePerKey() throws Exception {
+        BugJournal journal = new BugJournal(new File(dir, "bug"));
+        journal.open("1.0");
+        SegmentStore segments = new SegmentStore(dir);
+        segments.open();
+        BugWriter writer = new BugWriter(dir, journal, segments);
+        int record = writer.write(key("a"), bytes("a"), 1);
+        assertEquals(record, writer.write(key("a"), bytes("a"), 2));
+        assertEquals(1, journal.size());
+        assertEquals(1, writer.getAppendedCount());
+        assertEquals(1, writer.getDuplicateCount());
+        // 重复只累加次数
+        assertEquals(2, journal.getCount(record));
+        assertEquals(2, journal.getLastSeen(record));
+        writer.count(key("a"), 3, 5);
+        assertEquals(7, journal.getCount(record));
+        // 交来的累计次数
+        int other = writer.write(key("c"), bytes("c"), 4, 3);
+        assertEquals(3, journal.getCount(other));
+        assertEquals("a", new String(segments.read(journal.getSegment(record), journal.getBodyOffset(record),
+                journal.getBodyLength(record)), UTF_8));
+        segments.close();
+        journal.close();
+    }
+
+    @Test
+    public void fallsBackToFilePerKey() throws Exception {
+        BugJournal journal = new BugJournal(new File(dir, "bug"));
+        journal.open("1.0");
+        BugWriter writer = new BugWriter(dir, journal, null);
+        int record = writer.write(key("b"), bytes("b"), 1);
+        assertEquals(0, journal.getSegment(record));
+        assertEquals(1, new File(dir, key("b")).length());
+        journal.close();
+    }
+
+    /**
+     * 多个线程同时提交(大量重复)，经队列由单个写入线程写入；同时另一个线程淘汰记录并compact。
+     * 每个不同的bug恰好一条记录，内容完整。
+     */
+    @Test
+    public void concurrentCapture() throws Exception {
+        final BugJournal journal = new BugJournal(new File(dir, "bug"));
+        journal.open("1.0");
+        final SegmentStore segments = new SegmentStore(dir, 4096);
+        segments.open();
+        final BugWriter writer = new BugWriter(dir, journal, segments);
+        final AtomicReference<Throwable> failure = new AtomicReference<Throwable>();
+        final ReportQueue<String> queue = new ReportQueue<String>(16, ReportQueue.DROP_NEWEST,
+                new ReportQueue.Consumer<String>() {
+                    @Override
+                    public void accept(String report, int occurrences) {
+                        try {
+                            writer.write(key(report), bytes(report), System.currentTimeMillis(), occurrences);
+                        } catch (Throwable e) {
+                            failure.compareAndSet(null, e);
+                        }
+                    }
+                });
+        // 供淘汰的记录，与提交的bug不重叠
+        final int fillers = 200;
+        for (int i = 0; i < fillers; i++) {
+            writer.write(key("filler" + i), bytes("filler" + i), 0);
+        }
+        queue.start();
+
+        final int producers = 8;
+        final int distinct = 300;
+        final int rounds = 5;
+        final CountDownLatch go = new CountDownLatch(1);
+        final AtomicBoolean producing = new AtomicBoolean(true);
+        Thread[] threads = new Thread[producers];
+        for (int p = 0; p < producers; p++) {
+            final int seed = p;
+            threads[p] = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        go.await();
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                    // 每个线程都以不同的顺序提交全部bug若干遍
+                    for (int round = 0; round < rounds; round++) {
+                        for (int i = 0; i < distinct; i++) {
+                            String report = "bug" + ((i * 7 + seed * 31 + round) % distinct);
+                            while (!queue.offer(report)) {
+                                Thread.yield();
+                            }
+                        }
+                    }
+                }
+            });
+            threads[p].start();
+        }
+        Thread churn = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    go.await();
+                    int next = 0;
+                    while (producing.get() || next < fillers) {
+                        synchronized (journal) {
+                            int record = journal.find(DigestIndex.high(key("filler" + (next % fillers))),
+                                    DigestIndex.low(key("filler" + (next % fillers))));
+                            if (record != DigestIndex.ABSENT) {
+                                journal.evict(record);
+                            }
+                        }
+                        next++;
+                        if (journal.needsCompaction()) {
+                            journal.compact();
+                        }
+                        Thread.yield();
+                    }
+                } catch (Throwable e) {
+                    failure.compareAndSet(null, e);
+                }
+            }
+        });
+        churn.start();
+        go.countDown();
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        producing.set(false);
+        churn.join();
+        assertTrue(queue.awaitIdle(10000));
+        assertNull(failure.get());
+
+        // 被丢弃的提交都重试过
+        assertEquals(producers * distinct * rounds, queue.getOfferedCount() - queue.getDroppedCount());
+        assertEquals(queue.getOfferedCount(),
+                queue.getWrittenCount() + queue.getDroppedCount() + queue.getCoalescedCount());
+        assertEquals(fillers + distinct, writer.getAppendedCount());
+
+        Set<String> keys = new HashSet<String>();
+        int live = 0;
+        for (int record = 0; record < journal.size(); record++) {
+            if (journal.getStatus(record) == BugJournal.STATUS_EVICTED) {
+                continue;
+            }
+            live++;
+            assertTrue(keys.add(BugJournal.toKey(journal.getHi(record), journal.getLo(record))));
+        }
+        assertEquals(distinct, live);
+        for (int i = 0; i < distinct; i++) {
+            String report = "bug" + i;
+            int record = journal.find(DigestIndex.high(key(report)), DigestIndex.low(key(report)));
+            assertTrue(record != DigestIndex.ABSENT);
+            assertEquals(report, new String(segments.read(journal.getSegment(record),
+                    journal.getBodyOffset(record), journal.getBodyLength(record)), UTF_8));
+            // 合并掉的提交也计入次数
+            assertEquals(producers * rounds, journal.getCount(record));
+        }
+        segments.close();
+        journal.close();
+    }
+
+    private static byte[] bytes(String report) {
+        return report.getBytes(UTF_8);
+    }
+
+    private static String key(String report) {
+        try {
+            byte[] digest = MessageDigest.getInstance("MD5").digest(bytes(report));
+            StringBuilder sb = new StringBuilder();
+            for (byte b : digest) {
+                sb.append(String.format("%02x", b & 0xff));
+            }
+            return sb.toString();
+        } catch (Exception e) {
+            throw new AssertionError(e);
+        }
+    }
+}
@@ -0,0 +1,235 @@
+package com.vgaw.bugcat.store;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Set;
+
+import static org.junit.Assert.*;
+
+public class CrashRecordTest {
+    private File dir;
+    private StringTable table;
+
+    @Before
+    public void setUp() throws Exception {
+        dir = File.createTempFile("crashrecord", "");
+        dir.delete();
+        dir.mkdirs();
+        table = new StringTable(new File(dir, StringTable.FILE_NAME));
+        table.open();
+    }
+
+    @After
+    public void tearDown() {
+        table.close();
+        File[] files = dir.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                file.delete();
+            }
+        }
+        dir.delete();
+    }
+
+    @Test
+    public void decodesToTraceText() throws Exception {
+        Throwable ex = sample();
+        byte[] record = encode(new CrashRecord(), ex, table, 32 * 1024);
+        assertTrue(CrashRecord.isRecord(record));
+        // 还原出的文本与崩溃槽中的文本记录相同
+        assertEquals(text(new TraceEncoder(), ex), CrashRecord.decode(record, table));
+    }
+
+    @Test
+    public void internsNames() throws Exception {
+        Throwable ex = sample();
+        byte[] first = encode(new CrashRecord(), ex, table, 32 * 1024);
+        int strings = table.size();
+        byte[] second = encode(new CrashRecord(), ex, table, 32 * 1024);
+        // 名字已在表中，不再追加
+        assertEquals(strings, table.size());
+        assertArrayEquals(first, second);
+        assertTrue(first.length * 3 < text(new TraceEncoder(), ex).getBytes("UTF-8").length);
+
+        Set<Integer> refs = new HashSet<Integer>();
+        CrashRecord.collectRefs(first, refs);
+        assertEquals(strings, refs.size());
+    }
+
+    @Test
+    public void transcodesBetweenTables() throws Exception {
+        Throwable ex = sample();
+        byte[] record = encode(new CrashRecord(), ex, table, 32 * 1024);
+        String text = CrashRecord.decode(record, table);
+
+        // 全部内联后不依赖任何表
+        byte[] inline = CrashRecord.transcode(record, table, null);
+        Set<Integer> refs = new HashSet<Integer>();
+        CrashRecord.collectRefs(inline, refs);
+        assertTrue(refs.isEmpty());
+        assertEquals(text, CrashRecord.decode(inline, null));
+
+        StringTable other = new StringTable(new File(dir, "other"));
+        other.open();
+        try {
+            other.intern("Unrelated");
+            byte[] moved = CrashRecord.transcode(inline, null, other);
+            assertTrue(moved.length < inline.length);
+            assertEquals(text, CrashRecord.decode(moved, other));
+        } finally {
+            other.close();
+        }
+    }
+
+    @Test
+    public void marksTruncation() throws Exception {
+        Throwable ex = new RuntimeException("0");
+        for (int i = 1; i < 20; i++) {
+            ex = new RuntimeException(String.valueOf(i), ex);
+        }
+        byte[] record = encode(new CrashRecord(8, 64, 200), ex, table, 32 * 1024);
+        assertTrue(record.length <= 200);
+        assertTrue(CrashRecord.decode(record, table).endsWith("\n\t...truncated"));
+
+        String limited = CrashRecord.decode(encode(new CrashRecord(3, 1, 32 * 1024), ex, table, 32 * 1024), table);
+        assertEquals(text(new TraceEncoder(3, 1, 32 * 1024), ex), limited);
+        assertTrue(limited.endsWith("\t... (depth limit)"));
+    }
+
+    @Test
+    public void tableSurvivesReopenAndTornTail() throws Exception {
+        int foo = table.intern("Foo");
+        int bar = table.intern("Bar");
+        assertEquals(foo, table.intern("Foo"));
+        table.close();
+
+        // 追加到一半被杀：长度写了，内容没写完
+        RandomAccessFile raf = new RandomAccessFile(new File(dir, StringTable.FILE_NAME), "rw");
+        long length = raf.length();
+        try {
+            raf.seek(length);
+            raf.write(new byte[]{10, 'B', 'a'});
+        } finally {
+            raf.close();
+        }
+        table = new StringTable(new File(dir, StringTable.FILE_NAME));
+        table.open();
+        assertEquals(2, table.size());
+        assertEquals("Foo", table.get(foo));
+        assertEquals("Bar", table.get(bar));
+        assertEquals(length, new File(dir, StringTable.FILE_NAME).length());
+        assertEquals(2, table.intern("Baz"));
+    }
+
+    @Test
+    public void compactKeepsOnlyLiveNames() throws Exception {
+        BugJournal journal = new BugJournal(new File(dir, "bug"));
+        journal.open("1.0");
+        SegmentStore segments = new SegmentStore(dir, 64 * 1024);
+        segments.open();
+        try {
+            // 已上传的记录引用的名字占满了大半个表
+            for (int i = 0; table.size() * 4 < StringTable.MAX_STRINGS * 3; i++) {
+                Throwable old = new RuntimeException("old");
+                old.setStackTrace(new StackTraceElement[]{new StackTraceElement("com.example.Old" + i, "m", "Old.java", i)});
+                if (i % 1000 == 0) {
+                    append(journal, segments, i, encode(new CrashRecord(), old, table, 1024));
+                    journal.setStatus(journal.size() - 1, BugJournal.STATUS_UPLOADED);
+                } else {
+                    encode(new CrashRecord(), old, table, 1024);
+                }
+            }
+            Throwable ex = sample();
+            String text = CrashRecord.decode(encode(new CrashRecord(), ex, table, 32 * 1024), table);
+            int live = journal.size();
+            append(journal, segments, 100000, encode(new CrashRecord(), ex, table, 32 * 1024));
+            assertTrue(table.needsCompaction());
+
+            assertEquals(1, table.compact(journal, segments));
+            Set<Integer> refs = new HashSet<Integer>();
+            byte[] record = segments.read(journal.getSegment(live), journal.getBodyOffset(live),
+                    journal.getBodyLength(live));
+            CrashRecord.collectRefs(record, refs);
+            // 只剩仍为NEW的记录引用的名字，且仍按序号引用
+            assertEquals(table.size(), refs.size());
+            assertEquals(text, CrashRecord.decode(record, table));
+            assertFalse(table.needsCompaction());
+
+            // 重新打开后相同
+            table.close();
+            table = new StringTable(new File(dir, StringTable.FILE_NAME));
+            table.open();
+            assertEquals(text, CrashRecord.decode(record, table));
+        } finally {
+            segments.close();
+            journal.close();
+        }
+    }
+
+    @Test
+    public void countsInlineFallbacks() throws Exception {
+        StringBuilder longName = new StringBuilder();
+        for (int i = 0; i < 2000; i++) {
+            longName.append('x');
+        }
+        assertEquals(-1, table.intern(longName.toString()));
+        assertEquals(1, table.getInlineCount());
+        for (int i = 0; table.size() < StringTable.MAX_STRINGS; i++) {
+            table.intern("name" + i);
+        }
+        assertEquals(-1, table.intern("oneMore"));
+        assertEquals(2, table.getInlineCount());
+        // 已在表中的不算
+        assertEquals(0, table.intern("name0"));
+        assertEquals(2, table.getInlineCount());
+    }
+
+    private static void append(BugJournal journal, SegmentStore segments, int lo, byte[] body) throws Exception {
+        long position = segments.append(body);
+        journal.append(0, lo, 1, SegmentStore.segmentOf(position), SegmentStore.offsetOf(position), body.length);
+    }
+
+    // 合成的帧，不受运行环境的调用栈影响
+    private static Throwable sample() {
+        StackTraceElement a = new StackTraceElement("com.example.Foo", "a", "Foo.java", 10);
+        StackTraceElement b = new StackTraceElement("com.example.Foo", "b", "Foo.java", 20);
+        StackTraceElement main = new StackTraceElement("com.example.Foo", "main", "Foo.java", 5);
+        StackTraceElement[] frames = new StackTraceElement[41];
+        for (int i = 0; i < 40; i++) {
+            frames[i] = i % 2 == 0 ? a : b;
+        }
+        frames[40] = main;
+        RuntimeException root = new RuntimeException("根因");
+        root.setStackTrace(new StackTraceElement[]{
+                new StackTraceElement("com.example.Bar", "read", null, -1),
+                new StackTraceElement("com.example.Bar", "io", "Bar.java", -2), a, main});
+        IllegalStateException ex = new IllegalStateException("state 42", root);
+        ex.setStackTrace(frames);
+        IOException close = new IOException("close");
+        close.setStackTrace(new StackTraceElement[]{new StackTraceElement("com.example.Foo", "close", "Foo.java", 40),
+                main});
+        ex.addSuppressed(close);
+        return ex;
+    }
+
+    private static byte[] encode(CrashRecord encoder, Throwable ex, StringTable table, int capacity)
+            throws IOException {
+        ByteBuffer out = ByteBuffer.allocate(capacity);
+        encoder.encode(ex, table, out);
+        return Arrays.copyOf(out.array(), out.position());
+    }
+
+    private static String text(TraceEncoder encoder, Throwable ex) throws Exception {
+        ByteBuffer out = ByteBuffer.allocate(32 * 1024);
+        encoder.encode(ex, out);
+        return new String(out.array(), 0, out.position(), "UTF-8");
+    }
+}
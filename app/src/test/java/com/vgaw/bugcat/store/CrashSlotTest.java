@@ -0,0 +1,48 @@
+package com.vgaw.bugcat.store;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+
+import static org.junit.Assert.*;
+
+public class CrashSlotTest {
+    private File file;
+
+    @Before
+    public void setUp() throws Exception {
+        file = File.createTempFile("crash_slot", "");
+        file.delete();
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        file.delete();
+    }
+
+    @Test
+    public void committedCrashSurvivesReopen() throws Exception {
+        Throwable ex = new IllegalStateException("状态错误", new RuntimeException("root"));
+        StackTraceElement e0 = ex.getStackTrace()[0];
+        String expected = "bug  :状态错误\ncause:java.lang.RuntimeException: root\npath :"
+                + e0.getLineNumber() + "->" + e0.getMethodName() + "->" + e0.getClassName() + "->" + e0.getFileName();
+
+        CrashSlot slot = new CrashSlot(file);
+        slot.open();
+        assertNull(slot.take());
+        assertTrue(slot.write(ex, new Fingerprint(), new TraceEncoder()));
+
+        CrashSlot next = new CrashSlot(file);
+        next.open();
+        Handoff.Entry crash = next.take();
+        String body = new String(crash.body, "UTF-8");
+        assertTrue(body.startsWith(expected + "\njava.lang.IllegalStateException: 状态错误\n\tat "));
+        assertTrue(body.contains("\nCaused by: java.lang.RuntimeException: root\n"));
+        // 与正常路径按Throwable算出的key相同
+        assertEquals(new Fingerprint().hash(ex).toKey(), crash.key);
+        // 取出后即清空
+        assertNull(next.take());
+    }
+}
@@ -0,0 +1,90 @@
+package com.vgaw.bugcat.store;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.RandomAccessFile;
+
+import static org.junit.Assert.*;
+
+public class DeviceProfileTest {
+    private static final String CONTENT = "versionName:1.0\nversionCode:1\nMODEL:Pixel\n";
+
+    private File dir;
+    private File file;
+
+    @Before
+    public void setUp() throws Exception {
+        dir = File.createTempFile("profile", "");
+        dir.delete();
+        dir.mkdirs();
+        file = new File(dir, DeviceProfile.FILE_NAME);
+    }
+
+    @After
+    public void tearDown() {
+        File[] files = dir.listFiles();
+        if (files != null) {
+            for (File f : files) {
+                f.delete();
+            }
+        }
+        dir.delete();
+    }
+
+    @Test
+    public void persistsSnapshotWithHash() throws Exception {
+        DeviceProfile profile = new DeviceProfile(file);
+        assertFalse(profile.load());
+        assertNull(profile.getHash());
+        profile.update("1.0/1/fp", CONTENT);
+        assertEquals(BugWriter.keyOf(CONTENT), profile.getHash());
+        assertFalse(profile.isUploaded());
+        profile.setUploaded(profile.getHash(), true);
+
+        DeviceProfile reopened = new DeviceProfile(file);
+        assertTrue(reopened.load());
+        assertEquals("1.0/1/fp", reopened.getStamp());
+        assertEquals(profile.getHash(), reopened.getHash());
+        assertEquals(CONTENT, new String(reopened.getBody(), "UTF-8"));
+        assertTrue(reopened.isUploaded());
+        // 只留下正式文件
+        assertEquals(1, dir.listFiles().length);
+    }
+
+    @Test
+    public void recollectingSameContentKeepsUploaded() throws Exception {
+        DeviceProfile profile = new DeviceProfile(file);
+        profile.update("1.0/1/fp", CONTENT);
+        String hash = profile.getHash();
+        profile.setUploaded(hash, true);
+
+        // 系统升级但内容相同：不必再上传
+        profile.update("1.0/1/fp2", CONTENT);
+        assertTrue(profile.isUploaded());
+        // 内容变了：hash变，需要上传
+        profile.update("1.1/2/fp2", CONTENT.replace("1.0", "1.1"));
+        assertFalse(hash.equals(profile.getHash()));
+        assertFalse(profile.isUploaded());
+        // 旧hash的确认不影响新的
+        profile.setUploaded(hash, true);
+        assertFalse(profile.isUploaded());
+    }
+
+    @Test
+    public void ignoresCorruptFile() throws Exception {
+        DeviceProfile profile = new DeviceProfile(file);
+        profile.update("1.0/1/fp", CONTENT);
+        RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        try {
+            raf.setLength(raf.length() - 3);
+        } finally {
+            raf.close();
+        }
+        DeviceProfile reopened = new DeviceProfile(file);
+        assertFalse(reopened.load());
+        assertNull(reopened.getStamp());
+    }
+}
@@ -0,0 +1,60 @@
+package com.vgaw.bugcat.store;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class DigestIndexTest {
+    @Test
+    public void putAndGet() throws Exception {
+        DigestIndex index = new DigestIndex();
+        assertEquals(DigestIndex.ABSENT, index.get(1, 2));
+        assertEquals(DigestIndex.ABSENT, index.put(1, 2, 1));
+        assertEquals(1, index.get(1, 2));
+        assertEquals(1, index.put(1, 2, 2));
+        assertEquals(2, index.get(1, 2));
+        assertEquals(1, index.size());
+        // 全零摘要也是合法key
+        index.put(0, 0, 0);
+        assertEquals(0, index.get(0, 0));
+    }
+
+    @Test
+    public void growsBeyondInitialCapacity() throws Exception {
+        DigestIndex index = new DigestIndex();
+        for (int i = 0; i < 10000; i++) {
+            index.put(i * 31L, ~i, i);
+        }
+        assertEquals(10000, index.size());
+        for (int i = 0; i < 10000; i++) {
+            assertEquals(i, index.get(i * 31L, ~i));
+        }
+        assertFalse(index.contains(-1, -1));
+    }
+
+    @Test
+    public void removeKeepsProbeChains() throws Exception {
+        DigestIndex index = new DigestIndex();
+        for (int i = 0; i < 5000; i++) {
+            index.put(i * 31L, ~i, i);
+        }
+        // 删掉一半，剩下的仍能找到(探测链不断)
+        for (int i = 0; i < 5000; i += 2) {
+            assertEquals(i, index.remove(i * 31L, ~i));
+        }
+        assertEquals(DigestIndex.ABSENT, index.remove(0, ~0));
+        assertEquals(2500, index.size());
+        for (int i = 0; i < 5000; i++) {
+            assertEquals(i % 2 == 0 ? DigestIndex.ABSENT : i, index.get(i * 31L, ~i));
+        }
+    }
+
+    @Test
+    public void parsesHexKey() throws Exception {
+        String key = "0123456789abcdeffedcba9876543210";
+        assertEquals(0x0123456789abcdefL, DigestIndex.high(key));
+        assertEquals(0xfedcba9876543210L, DigestIndex.low(key));
+        assertEquals(0L, DigestIndex.high("12345"));
+        assertEquals("12345".hashCode(), DigestIndex.low("12345"));
+    }
+}
@@ -0,0 +1,148 @@
+package com.vgaw.bugcat.store;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.util.HashSet;
+import java.util.Set;
+
+import static org.junit.Assert.*;
+
+public class EvictionPolicyTest {
+    private static final long DAY = 24 * 60 * 60 * 1000L;
+
+    private File file;
+    private BugJournal journal;
+    // 被删除内容的记录，以lo标识
+    private final Set<Long> deleted = new HashSet<Long>();
+    private final Set<Long> busy = new HashSet<Long>();
+    private long overhead;
+    private final EvictionPolicy.Store store = new EvictionPolicy.Store() {
+        @Override
+        public long sizeOf(int record) {
+            return 1000;
+        }
+
+        @Override
+        public long segmentSize(int segment) {
+            // 段9为当前段
+            return segment == 9 ? 0 : 4000;
+        }
+
+        @Override
+        public long overhead() {
+            return overhead;
+        }
+
+        @Override
+        public boolean canEvict(int record) {
+            return !busy.contains(journal.getLo(record));
+        }
+
+        @Override
+        public void delete(int record) {
+            deleted.add(journal.getLo(record));
+        }
+    };
+
+    @Before
+    public void setUp() throws Exception {
+        file = File.createTempFile("bug", "");
+        journal = new BugJournal(file);
+        journal.open("1.0");
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        journal.close();
+        file.delete();
+    }
+
+    @Test
+    public void evictsUploadedBeforeOldestUnsent() throws Exception {
+        // 0..3未上传，4..5已上传，firstSeen/lastSeen依次递增
+        for (int i = 0; i < 6; i++) {
+            journal.append(0, i, 10 * DAY + i);
+        }
+        journal.setStatus(journal.find(0, 4), BugJournal.STATUS_UPLOADED);
+        journal.setStatus(journal.find(0, 5), BugJournal.STATUS_UPLOADED);
+
+        EvictionPolicy policy = new EvictionPolicy();
+        policy.setLimits(Long.MAX_VALUE, 3, 30 * DAY);
+        assertEquals(3, policy.trim(journal, store, 11 * DAY));
+        assertEquals(3, journal.getEvictedCount());
+        journal.compact();
+        assertEquals(3, journal.size());
+        assertEquals(3, policy.getEvictedCount());
+        assertTrue(journal.find(0, 4) == DigestIndex.ABSENT && journal.find(0, 5) == DigestIndex.ABSENT);
+        assertEquals(DigestIndex.ABSENT, journal.find(0, 0));
+        assertTrue(journal.find(0, 1) != DigestIndex.ABSENT);
+        assertTrue(deleted.contains(0L) && deleted.contains(4L));
+    }
+
+    @Test
+    public void boundsBytesAndAge() throws Exception {
+        for (int i = 0; i < 5; i++) {
+            journal.append(0, i, i * DAY);
+        }
+        EvictionPolicy policy = new EvictionPolicy();
+        // 每条未上传记录1000 + RECORD_SIZE字节
+        policy.setLimits(3 * (1000 + BugJournal.RECORD_SIZE), 100, 2 * DAY + 1);
+        // 记录0、1过期，剩下3条正好放得下
+        assertEquals(2, policy.trim(journal, store, 4 * DAY));
+        assertEquals(3, journal.size() - journal.getEvictedCount());
+        assertEquals(DigestIndex.ABSENT, journal.find(0, 1));
+
+        policy.setLimits(2 * (1000 + BugJournal.RECORD_SIZE), 100, 100 * DAY);
+        assertEquals(1, policy.trim(journal, store, 4 * DAY));
+        assertEquals(DigestIndex.ABSENT, journal.find(0, 2));
+    }
+
+    @Test
+    public void chargesWholeSegmentsAndOverhead() throws Exception {
+        // 段1：记录0(已上传)、1；段2：记录2、3；当前段9：记录4
+        int[] segmentOf = {1, 1, 2, 2, 9};
+        for (int i = 0; i < segmentOf.length; i++) {
+            journal.append(0, i, i, segmentOf[i], i * 100, 100);
+        }
+        journal.setStatus(journal.find(0, 0), BugJournal.STATUS_UPLOADED);
+        overhead = 3000;
+        long records = 5 * BugJournal.RECORD_SIZE;
+        EvictionPolicy policy = new EvictionPolicy();
+        // 内容只有400字节，但两个段和overhead共11000字节
+        policy.setLimits(records + 11000, 100, Long.MAX_VALUE);
+        assertEquals(0, policy.trim(journal, store, 10));
+
+        // 淘汰已上传的记录0只省下索引中的一条；再淘汰记录1，段1整段回收
+        policy.setLimits(records + 11000 - BugJournal.RECORD_SIZE - 1, 100, Long.MAX_VALUE);
+        assertEquals(2, policy.trim(journal, store, 10));
+        assertEquals(DigestIndex.ABSENT, journal.find(0, 0));
+        assertEquals(DigestIndex.ABSENT, journal.find(0, 1));
+        assertTrue(journal.find(0, 2) != DigestIndex.ABSENT);
+
+        // 淘汰记录2只省下索引中的一条，段2还被记录3占着；两条都淘汰段2才回收
+        policy.setLimits(2 * BugJournal.RECORD_SIZE + 3000 + 4000 - 1, 100, Long.MAX_VALUE);
+        assertEquals(2, policy.trim(journal, store, 10));
+        assertEquals(4, journal.getEvictedCount());
+        assertTrue(journal.find(0, 4) != DigestIndex.ABSENT);
+
+        // overhead淘汰不掉
+        overhead = 100000;
+        assertEquals(1, policy.trim(journal, store, 10));
+        assertEquals(5, journal.getEvictedCount());
+    }
+
+    @Test
+    public void skipsBusyRecords() throws Exception {
+        for (int i = 0; i < 3; i++) {
+            journal.append(0, i, i);
+        }
+        busy.add(0L);
+        EvictionPolicy policy = new EvictionPolicy();
+        policy.setLimits(Long.MAX_VALUE, 1, Long.MAX_VALUE);
+        assertEquals(2, policy.trim(journal, store, 10));
+        assertTrue(journal.find(0, 0) != DigestIndex.ABSENT);
+    }
+}
@@ -0,0 +1,92 @@
+package com.vgaw.bugcat.store;
+
+import org.junit.Test;
+
+import java.nio.charset.Charset;
+
+import static org.junit.Assert.*;
+
+public class FingerprintTest {
+    private static final StackTraceElement[] STACK = new Throwable().getStackTrace();
+
+    @Test
+    public void matchesMurmur3() throws Exception {
+        Fingerprint fingerprint = new Fingerprint();
+        fingerprint.reset();
+        for (byte b : "The quick brown fox jumps over the lazy dog".getBytes(Charset.forName("US-ASCII"))) {
+            fingerprint.putByte(b);
+        }
+        fingerprint.finish();
+        assertEquals(0xe34bbc7bbc071b6cL, fingerprint.high());
+        assertEquals(0x7a433ca9c49a9347L, fingerprint.low());
+    }
+
+    @Test
+    public void normalizesVolatileMessages() throws Exception {
+        Fingerprint fingerprint = new Fingerprint();
+        String a = fingerprint.hash(fail("timeout after 1532ms at 2016-01-02 10:00:01, id=0x7f3a")).toKey();
+        String b = fingerprint.hash(fail("timeout after 87ms at 2016-03-04 23:59:59, id=0x11")).toKey();
+        assertEquals(a, b);
+        assertNotEquals(a, fingerprint.hash(fail("refused after 87ms at 2016-03-04 23:59:59, id=0x11")).toKey());
+
+        fingerprint.setOptions(0);
+        a = fingerprint.hash(fail("timeout after 1532ms")).toKey();
+        assertNotEquals(a, fingerprint.hash(fail("timeout after 87ms")).toKey());
+
+        fingerprint.setOptions(Fingerprint.IGNORE_MESSAGES);
+        a = fingerprint.hash(fail("timeout")).toKey();
+        assertEquals(a, fingerprint.hash(fail("refused")).toKey());
+    }
+
+    @Test
+    public void distinguishesStacksAndCauses() throws Exception {
+        Fingerprint fingerprint = new Fingerprint();
+        String a = fingerprint.hash(fail("x")).toKey();
+        // 不同的调用位置(行号)
+        String b = fingerprint.hash(new IllegalStateException("x")).toKey();
+        assertNotEquals(a, b);
+        // 不同的异常类型
+        assertNotEquals(a, fingerprint.hash(failWith(new IllegalArgumentException("x"))).toKey());
+        // 不同的cause
+        String c = fingerprint.hash(failWith(new IllegalStateException("x", new RuntimeException("io")))).toKey();
+        String d = fingerprint.hash(failWith(new IllegalStateException("x", new Error("io")))).toKey();
+        assertNotEquals(c, d);
+
+        // 只差行号时可以忽略
+        fingerprint.setOptions(Fingerprint.IGNORE_LINE_NUMBERS);
+        Throwable e1 = new IllegalStateException("x");
+        Throwable e2 = new IllegalStateException("x");
+        assertEquals(fingerprint.hash(e1).toKey(), fingerprint.hash(e2).toKey());
+    }
+
+    @Test
+    public void terminatesOnCauseCycle() throws Exception {
+        RuntimeException a = new RuntimeException("a");
+        RuntimeException b = new RuntimeException("b", a);
+        a.initCause(b);
+        Fingerprint fingerprint = new Fingerprint();
+        assertEquals(32, fingerprint.hash(a).toKey().length());
+        // 不受上次计算的影响
+        String key = fingerprint.hash(fail("x")).toKey();
+        assertEquals(key, new Fingerprint().hash(fail("x")).toKey());
+    }
+
+    @Test
+    public void keysText() throws Exception {
+        String key = new Fingerprint().hash("bug  :/ by zero").toKey();
+        assertEquals(key, BugWriter.keyOf("bug  :/ by zero"));
+        assertTrue(DigestIndex.isHexKey(key));
+        assertEquals(key, BugJournal.toKey(DigestIndex.high(key), DigestIndex.low(key)));
+        assertNotEquals(key, BugWriter.keyOf("bug  :/ by zero "));
+    }
+
+    private static Throwable fail(String message) {
+        return failWith(new IllegalStateException(message));
+    }
+
+    // 调用栈相同，只差message、类型或cause
+    private static Throwable failWith(Throwable ex) {
+        ex.setStackTrace(STACK);
+        return ex;
+    }
+}
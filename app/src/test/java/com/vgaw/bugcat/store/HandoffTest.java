@@ -0,0 +1,184 @@
+package com.vgaw.bugcat.store;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class HandoffTest {
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+    private static final String KEY_A = "0123456789abcdef0123456789abcdef";
+    private static final String KEY_B = "fedcba9876543210fedcba9876543210";
+
+    private File root;
+    private Handoff handoff;
+
+    @Before
+    public void setUp() throws Exception {
+        root = File.createTempFile("bugbox", "");
+        root.delete();
+        root.mkdirs();
+        handoff = new Handoff(new File(root, Handoff.INBOX_NAME));
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        delete(root);
+    }
+
+    @Test
+    public void spoolRoundTrip() throws Exception {
+        List<Handoff.Entry> entries = new ArrayList<Handoff.Entry>();
+        entries.add(new Handoff.Entry(KEY_A, "first".getBytes(UTF_8), 1));
+        entries.add(new Handoff.Entry(KEY_B, new byte[0], 2));
+        entries.add(new Handoff.Entry(KEY_A, null, 5));
+        File spool = handoff.write("remote", entries);
+        File[] spools = handoff.list();
+        assertEquals(1, spools.length);
+        assertEquals(spool, spools[0]);
+        List<Handoff.Entry> read = Handoff.read(spool);
+        assertEquals(3, read.size());
+        for (int i = 0; i < entries.size(); i++) {
+            assertEquals(entries.get(i).key, read.get(i).key);
+            assertEquals(entries.get(i).occurrences, read.get(i).occurrences);
+            if (entries.get(i).body == null) {
+                assertNull(read.get(i).body);
+            } else {
+                assertArrayEquals(entries.get(i).body, read.get(i).body);
+            }
+        }
+    }
+
+    @Test
+    public void handOffMarksRecordsUploaded() throws Exception {
+        File laneDir = new File(root, Handoff.LANE_PREFIX + "remote");
+        laneDir.mkdirs();
+        BugJournal journal = new BugJournal(new File(laneDir, "bug"));
+        journal.open("1.0");
+        SegmentStore segments = new SegmentStore(laneDir);
+        segments.open();
+        long position = segments.append("a".getBytes(UTF_8));
+        journal.append(DigestIndex.high(KEY_A), DigestIndex.low(KEY_A), 1,
+                SegmentStore.segmentOf(position), SegmentStore.offsetOf(position), 1);
+        // 2.0之前的单独文件
+        FileWriter writer = new FileWriter(new File(laneDir, KEY_B));
+        writer.write("b");
+        writer.close();
+        journal.append(DigestIndex.high(KEY_B), DigestIndex.low(KEY_B), 2);
+        journal.touch(0, 3, 2);
+
+        assertEquals(2, handoff.handOff("remote", laneDir, journal, segments, null, null, null));
+        assertEquals(BugJournal.STATUS_UPLOADED, journal.getStatus(0));
+        assertEquals(BugJournal.STATUS_UPLOADED, journal.getStatus(1));
+        assertEquals(3, journal.getReported(0));
+        assertFalse(new File(laneDir, KEY_B).exists());
+        List<Handoff.Entry> read = Handoff.read(handoff.list()[0]);
+        assertEquals("a", new String(read.get(0).body, UTF_8));
+        assertEquals(3, read.get(0).occurrences);
+        assertEquals("b", new String(read.get(1).body, UTF_8));
+        assertEquals(1, read.get(1).occurrences);
+
+        // 没有新出现时不写spool
+        assertEquals(0, handoff.handOff("remote", laneDir, journal, segments, null, null, null));
+        assertEquals(1, handoff.list().length);
+
+        // 交出之后又出现的只交次数
+        journal.touch(1, 4, 4);
+        assertEquals(1, handoff.handOff("remote", laneDir, journal, segments, null, null, null));
+        File[] spools = handoff.list();
+        assertEquals(2, spools.length);
+        List<Handoff.Entry> delta = Handoff.read(deltaSpool(spools));
+        assertEquals(KEY_B, delta.get(0).key);
+        assertNull(delta.get(0).body);
+        assertEquals(4, delta.get(0).occurrences);
+        assertEquals(0, journal.getUnreported(1));
+        segments.close();
+        journal.close();
+    }
+
+    @Test
+    public void adoptsOnlyUnheldLanes() throws Exception {
+        File laneDir = new File(root, Handoff.LANE_PREFIX + "remote");
+        laneDir.mkdirs();
+        BugJournal journal = new BugJournal(new File(laneDir, "bug"));
+        journal.open("1.0");
+        SegmentStore segments = new SegmentStore(laneDir);
+        segments.open();
+        long position = segments.append("a".getBytes(UTF_8));
+        journal.append(DigestIndex.high(KEY_A), DigestIndex.low(KEY_A), 1,
+                SegmentStore.segmentOf(position), SegmentStore.offsetOf(position), 1);
+        segments.close();
+        journal.close();
+        CrashSlot slot = new CrashSlot(new File(laneDir, "crash_slot"));
+        slot.open();
+        IllegalStateException boom = new IllegalStateException("boom");
+        assertTrue(slot.write(boom, new Fingerprint(), new TraceEncoder()));
+
+        ProcessLock owner = new ProcessLock(new File(laneDir, Handoff.LANE_LOCK_NAME));
+        assertTrue(owner.tryAcquire());
+        assertEquals(Arrays.asList(laneDir), Arrays.asList(Handoff.listLanes(root)));
+        assertEquals(-1, handoff.adopt(laneDir, "bug", "crash_slot"));
+        owner.release();
+
+        assertEquals(2, handoff.adopt(laneDir, "bug", "crash_slot"));
+        assertFalse(laneDir.exists());
+        assertEquals(0, Handoff.listLanes(root).length);
+        List<Handoff.Entry> read = Handoff.read(handoff.list()[0]);
+        assertEquals("a", new String(read.get(0).body, UTF_8));
+        String crash = new String(read.get(1).body, UTF_8);
+        assertTrue(crash.contains("boom"));
+        assertEquals(new Fingerprint().hash(boom).toKey(), read.get(1).key);
+    }
+
+    @Test
+    public void handsOffThrottleStats() throws Exception {
+        File laneDir = new File(root, Handoff.LANE_PREFIX + "remote");
+        laneDir.mkdirs();
+        BugJournal journal = new BugJournal(new File(laneDir, "bug"));
+        journal.open("1.0");
+        // 没有bug也交出计数
+        assertEquals(0, handoff.handOff("remote", laneDir, journal, null, null, new long[]{40, 2}, null));
+        long[] stats = new long[2];
+        assertEquals(0, Handoff.read(handoff.list()[0], stats).size());
+        assertArrayEquals(new long[]{40, 2}, stats);
+        journal.close();
+
+        // 遗留lane中尚未报告的计数由接收的一方交出
+        ReportThrottle throttle = new ReportThrottle();
+        throttle.open(new File(laneDir, ReportThrottle.FILE_NAME));
+        throttle.add(9, 1);
+        throttle.markReported(4, 1);
+        throttle.close();
+        handoff.list()[0].delete();
+        assertEquals(0, handoff.adopt(laneDir, "bug", "crash_slot"));
+        Handoff.read(handoff.list()[0], stats);
+        assertArrayEquals(new long[]{5, 0}, stats);
+    }
+
+    private static File deltaSpool(File[] spools) throws Exception {
+        for (File spool : spools) {
+            if (Handoff.read(spool).get(0).body == null) {
+                return spool;
+            }
+        }
+        throw new AssertionError("no delta spool");
+    }
+
+    private static void delete(File file) {
+        File[] files = file.listFiles();
+        if (files != null) {
+            for (File f : files) {
+                delete(f);
+            }
+        }
+        file.delete();
+    }
+}
@@ -0,0 +1,27 @@
+package com.vgaw.bugcat.store;
+
+import org.junit.Test;
+
+import java.io.File;
+
+import static org.junit.Assert.*;
+
+public class ProcessLockTest {
+
+    @Test
+    public void onlyOneHolder() throws Exception {
+        File file = File.createTempFile("upload", ".lock");
+        ProcessLock first = new ProcessLock(file);
+        ProcessLock second = new ProcessLock(file);
+        assertTrue(first.tryAcquire());
+        // 已持有时再次获取不变
+        assertTrue(first.tryAcquire());
+        assertFalse(second.tryAcquire());
+        assertFalse(second.isHeld());
+        first.release();
+        assertTrue(second.tryAcquire());
+        assertFalse(first.tryAcquire());
+        second.release();
+        file.delete();
+    }
+}
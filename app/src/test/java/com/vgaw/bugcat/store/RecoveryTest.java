@@ -0,0 +1,118 @@
+package com.vgaw.bugcat.store;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.io.RandomAccessFile;
+
+import static org.junit.Assert.*;
+
+public class RecoveryTest {
+    private File dir;
+    private BugJournal journal;
+    private SegmentStore segments;
+
+    @Before
+    public void setUp() throws Exception {
+        dir = File.createTempFile("bugbox", "");
+        dir.delete();
+        dir.mkdirs();
+        journal = new BugJournal(new File(dir, "bug"));
+        journal.open("1.0");
+        segments = new SegmentStore(dir, 100);
+        segments.open();
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        journal.close();
+        segments.close();
+        File[] files = dir.listFiles();
+        if (files != null) {
+            for (File f : files) {
+                f.delete();
+            }
+        }
+        dir.delete();
+    }
+
+    @Test
+    public void repairsIndexAndBodies() throws Exception {
+        // 0：段中内容完好
+        long position = segments.append(new byte[40]);
+        journal.append(0, 0, 1, SegmentStore.segmentOf(position), SegmentStore.offsetOf(position), 40);
+        // 1：段被截短
+        position = segments.append(new byte[40]);
+        journal.append(0, 1, 1, SegmentStore.segmentOf(position), SegmentStore.offsetOf(position), 40);
+        RandomAccessFile raf = new RandomAccessFile(segments.segmentFile(1), "rw");
+        raf.setLength(60);
+        raf.close();
+        // 2：旧版单独的bug文件，迁入段中
+        write(new File(dir, BugJournal.toKey(0, 2)), "bug  :legacy");
+        journal.append(0, 2, 1);
+        // 3：旧版bug文件丢失
+        journal.append(0, 3, 1);
+        // 无主的bug文件
+        File orphan = new File(dir, BugJournal.toKey(0, 9));
+        write(orphan, "bug  :orphan");
+        orphan.setLastModified(System.currentTimeMillis() - 60000);
+
+        Recovery recovery = new Recovery(dir, journal, segments);
+        assertTrue(recovery.resume(1000));
+        assertTrue(recovery.isDone());
+        assertEquals(1, recovery.getMigratedCount());
+        assertEquals(2, recovery.getLostCount());
+        assertEquals(1, recovery.getOrphanCount());
+
+        assertTrue(journal.find(0, 0) != DigestIndex.ABSENT);
+        assertEquals(DigestIndex.ABSENT, journal.find(0, 1));
+        assertEquals(DigestIndex.ABSENT, journal.find(0, 3));
+        int legacy = journal.find(0, 2);
+        assertTrue(journal.getSegment(legacy) != 0);
+        assertEquals("bug  :legacy", new String(segments.read(journal.getSegment(legacy),
+                journal.getBodyOffset(legacy), journal.getBodyLength(legacy)), "UTF-8"));
+        assertFalse(new File(dir, BugJournal.toKey(0, 2)).exists());
+        assertFalse(orphan.exists());
+    }
+
+    @Test
+    public void resumesWithinBudget() throws Exception {
+        for (int i = 0; i < 2000; i++) {
+            journal.append(0, i, 1);
+        }
+        Recovery recovery = new Recovery(dir, journal, segments);
+        int slices = 0;
+        while (!recovery.resume(0)) {
+            slices++;
+        }
+        // 预算为0时每片只推进一步，断点续做直到完成
+        assertTrue(slices >= 2000);
+        assertEquals(2000, recovery.getLostCount());
+    }
+
+    @Test
+    public void keepsSegmentRecordsWithoutStore() throws Exception {
+        long position = segments.append(new byte[40]);
+        journal.append(0, 0, 1, SegmentStore.segmentOf(position), SegmentStore.offsetOf(position), 40);
+        // 段存储没能打开：段中的记录不检查也不淘汰，单独的bug文件照常核对
+        journal.append(0, 1, 1);
+        Recovery recovery = new Recovery(dir, journal, null);
+        assertTrue(recovery.resume(1000));
+        assertEquals(0, recovery.getMigratedCount());
+        assertEquals(1, recovery.getLostCount());
+        assertTrue(journal.find(0, 0) != DigestIndex.ABSENT);
+        assertEquals(DigestIndex.ABSENT, journal.find(0, 1));
+    }
+
+    private static void write(File file, String content) throws Exception {
+        FileWriter writer = new FileWriter(file);
+        try {
+            writer.write(content);
+        } finally {
+            writer.close();
+        }
+    }
+}
@@ -0,0 +1,184 @@
+package com.vgaw.bugcat.store;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+
+import static org.junit.Assert.*;
+
+public class ReportQueueTest {
+
+    @Test
+    public void dropNewestKeepsEarliest() throws Exception {
+        final List<Integer> written = Collections.synchronizedList(new ArrayList<Integer>());
+        ReportQueue<Integer> queue = new ReportQueue<Integer>(4, ReportQueue.DROP_NEWEST, collect(written));
+        // 写入线程启动前只入队
+        for (int i = 0; i < 6; i++) {
+            assertEquals(i < 4, queue.offer(i));
+        }
+        assertEquals(4, queue.size());
+        queue.start();
+        assertTrue(queue.awaitIdle(1000));
+        assertEquals(Arrays.asList(0, 1, 2, 3), written);
+        assertEquals(2, queue.getDroppedCount());
+        assertEquals(4, queue.getWrittenCount());
+    }
+
+    @Test
+    public void dropOldestKeepsLatest() throws Exception {
+        final List<Integer> written = Collections.synchronizedList(new ArrayList<Integer>());
+        ReportQueue<Integer> queue = new ReportQueue<Integer>(4, ReportQueue.DROP_OLDEST, collect(written));
+        for (int i = 0; i < 6; i++) {
+            assertTrue(queue.offer(i));
+        }
+        queue.start();
+        assertTrue(queue.awaitIdle(1000));
+        assertEquals(Arrays.asList(2, 3, 4, 5), written);
+        assertEquals(2, queue.getDroppedCount());
+    }
+
+    @Test
+    public void coalescesPendingDuplicates() throws Exception {
+        final List<Integer> written = Collections.synchronizedList(new ArrayList<Integer>());
+        ReportQueue<Integer> queue = new ReportQueue<Integer>(4, ReportQueue.DROP_NEWEST, collect(written));
+        for (int i = 0; i < 10; i++) {
+            assertTrue(queue.offer(7));
+        }
+        assertTrue(queue.offer(8));
+        assertEquals(2, queue.size());
+        assertEquals(9, queue.getCoalescedCount());
+        queue.start();
+        assertTrue(queue.awaitIdle(1000));
+        assertEquals(Arrays.asList(7, 8), written);
+        // 已写入的不再参与合并
+        assertTrue(queue.offer(7));
+        assertTrue(queue.awaitIdle(1000));
+        assertEquals(Arrays.asList(7, 8, 7), written);
+        assertEquals(0, queue.getDroppedCount());
+    }
+
+    @Test
+    public void concurrentProducersSingleWriter() throws Exception {
+        final List<Integer> written = Collections.synchronizedList(new ArrayList<Integer>());
+        final Thread[] writerThread = new Thread[1];
+        final boolean[] multipleWriters = {false};
+        final ReportQueue<Integer> queue = new ReportQueue<Integer>(1024, ReportQueue.DROP_NEWEST,
+                new ReportQueue.Consumer<Integer>() {
+                    @Override
+                    public void accept(Integer report, int occurrences) {
+                        if (writerThread[0] == null) {
+                            writerThread[0] = Thread.currentThread();
+                        } else if (writerThread[0] != Thread.currentThread()) {
+                            multipleWriters[0] = true;
+                        }
+                        written.add(report);
+                    }
+                });
+        queue.start();
+        final int producers = 8;
+        final int perProducer = 5000;
+        final CountDownLatch go = new CountDownLatch(1);
+        Thread[] threads = new Thread[producers];
+        for (int p = 0; p < producers; p++) {
+            final int base = p * perProducer;
+            threads[p] = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        go.await();
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                    for (int i = 0; i < perProducer; i++) {
+                        queue.offer(base + i);
+                    }
+                }
+            });
+            threads[p].start();
+        }
+        go.countDown();
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        assertTrue(queue.awaitIdle(5000));
+        assertFalse(multipleWriters[0]);
+        assertEquals(producers * perProducer, queue.getOfferedCount());
+        assertEquals(queue.getOfferedCount(), queue.getWrittenCount() + queue.getDroppedCount());
+        assertEquals(queue.getWrittenCount(), written.size());
+        // 同一生产者提交的顺序保持不变，且没有重复
+        int[] last = new int[producers];
+        Arrays.fill(last, -1);
+        for (int report : written) {
+            int p = report / perProducer;
+            assertTrue(report > last[p]);
+            last[p] = report;
+        }
+    }
+
+    @Test
+    public void countsEveryCoalescedOffer() throws Exception {
+        final Map<String, Integer> counts = new ConcurrentHashMap<String, Integer>();
+        final ReportQueue<String> queue = new ReportQueue<String>(4, ReportQueue.DROP_NEWEST,
+                new ReportQueue.Consumer<String>() {
+                    @Override
+                    public void accept(String report, int occurrences) {
+                        Integer count = counts.get(report);
+                        counts.put(report, (count == null ? 0 : count) + occurrences);
+                    }
+                });
+        // 写入线程启动前全部合并为一条
+        for (int i = 0; i < 10; i++) {
+            assertTrue(queue.offer("same"));
+        }
+        assertEquals(1, queue.size());
+        queue.start();
+        assertTrue(queue.awaitIdle(1000));
+        assertEquals(10, (int) counts.get("same"));
+
+        // 边写边提交：合并和出队交错，次数既不丢也不重复
+        final int producers = 4;
+        final int perProducer = 20000;
+        final CountDownLatch go = new CountDownLatch(1);
+        Thread[] threads = new Thread[producers];
+        for (int p = 0; p < producers; p++) {
+            threads[p] = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        go.await();
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                    for (int i = 0; i < perProducer; i++) {
+                        while (!queue.offer("same")) {
+                            Thread.yield();
+                        }
+                    }
+                }
+            });
+            threads[p].start();
+        }
+        go.countDown();
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        assertTrue(queue.awaitIdle(5000));
+        assertEquals(10 + producers * perProducer, (int) counts.get("same"));
+        assertEquals(0, queue.getDroppedCount());
+    }
+
+    private static ReportQueue.Consumer<Integer> collect(final List<Integer> written) {
+        return new ReportQueue.Consumer<Integer>() {
+            @Override
+            public void accept(Integer report, int occurrences) {
+                written.add(report);
+            }
+        };
+    }
+}
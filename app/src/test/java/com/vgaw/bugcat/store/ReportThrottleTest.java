@@ -0,0 +1,93 @@
+package com.vgaw.bugcat.store;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+public class ReportThrottleTest {
+    private static final String KEY_A = "0123456789abcdef0123456789abcdef";
+
+    private File file;
+
+    @Before
+    public void setUp() throws Exception {
+        file = File.createTempFile("throttle", "");
+        file.delete();
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        file.delete();
+    }
+
+    @Test
+    public void limitsRepeatsOfOneKey() throws Exception {
+        ReportThrottle throttle = new ReportThrottle(new Random(1));
+        long now = 1000000;
+        int admitted = 0;
+        for (int i = 0; i < 100; i++) {
+            if (throttle.admit(KEY_A, i > 0, now) == ReportThrottle.ADMIT) {
+                admitted++;
+            }
+        }
+        // 突发5次，其余只计数
+        assertEquals(5, admitted);
+        assertEquals(95, throttle.getDroppedCount());
+        // 每分钟补充6次
+        assertEquals(ReportThrottle.DROP, throttle.admit(KEY_A, true, now + 5000));
+        assertEquals(ReportThrottle.ADMIT, throttle.admit(KEY_A, true, now + 10000));
+    }
+
+    @Test
+    public void samplesNewReportsAfterBurst() throws Exception {
+        ReportThrottle throttle = new ReportThrottle(new Random(1));
+        throttle.setLimits(10, 10, 0.5);
+        long now = 1000000;
+        int admitted = 0;
+        int sampled = 0;
+        for (int i = 0; i < 1000; i++) {
+            int decision = throttle.admit(String.format("%032x", i), false, now);
+            if (decision == ReportThrottle.ADMIT) {
+                admitted++;
+            } else if (decision == ReportThrottle.SAMPLE) {
+                sampled++;
+            }
+        }
+        assertEquals(10, admitted);
+        // 抽样放行也有上限，每小时最多5条
+        assertEquals(5, sampled);
+        assertEquals(5, throttle.getSampledCount());
+        assertEquals(985, throttle.getDroppedCount());
+
+        // 不抽样时超出的全部丢弃
+        throttle.setLimits(1, 10, 0);
+        assertEquals(ReportThrottle.ADMIT, throttle.admit("new1", false, now));
+        assertEquals(ReportThrottle.DROP, throttle.admit("new2", false, now));
+    }
+
+    @Test
+    public void persistsCounts() throws Exception {
+        ReportThrottle throttle = new ReportThrottle(new Random(1));
+        throttle.open(file);
+        long now = 1000000;
+        for (int i = 0; i < 10; i++) {
+            throttle.admit(KEY_A, true, now);
+        }
+        throttle.markReported(2, 0);
+        throttle.close();
+
+        throttle = new ReportThrottle();
+        throttle.open(file);
+        assertEquals(5, throttle.getDroppedCount());
+        assertArrayEquals(new long[]{3, 0}, throttle.getUnreported());
+        throttle.add(4, 1);
+        assertArrayEquals(new long[]{7, 1}, throttle.getUnreported());
+        throttle.close();
+        assertArrayEquals(new long[]{7, 1}, ReportThrottle.readUnreported(file));
+    }
+}
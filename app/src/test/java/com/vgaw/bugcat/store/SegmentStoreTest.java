@@ -0,0 +1,125 @@
+package com.vgaw.bugcat.store;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import static org.junit.Assert.*;
+
+public class SegmentStoreTest {
+    private File dir;
+
+    @Before
+    public void setUp() throws Exception {
+        dir = File.createTempFile("bugbox", "");
+        dir.delete();
+        dir.mkdirs();
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        File[] files = dir.listFiles();
+        if (files != null) {
+            for (File f : files) {
+                f.delete();
+            }
+        }
+        dir.delete();
+    }
+
+    @Test
+    public void appendsAndRollsSegments() throws Exception {
+        SegmentStore store = new SegmentStore(dir, 100);
+        store.open();
+        long[] positions = new long[5];
+        for (int i = 0; i < positions.length; i++) {
+            positions[i] = store.append(body(i, 40));
+        }
+        // 每段放得下两条
+        assertEquals(1, SegmentStore.segmentOf(positions[0]));
+        assertEquals(40, SegmentStore.offsetOf(positions[1]));
+        assertEquals(2, SegmentStore.segmentOf(positions[2]));
+        assertEquals(0, SegmentStore.offsetOf(positions[2]));
+        assertEquals(3, SegmentStore.segmentOf(positions[4]));
+        for (int i = 0; i < positions.length; i++) {
+            assertArrayEquals(body(i, 40), store.read(SegmentStore.segmentOf(positions[i]),
+                    SegmentStore.offsetOf(positions[i]), 40));
+        }
+        store.close();
+
+        // 重新打开后接着写最后一段
+        store = new SegmentStore(dir, 100);
+        store.open();
+        long next = store.append(body(9, 10));
+        assertEquals(3, SegmentStore.segmentOf(next));
+        assertEquals(40, SegmentStore.offsetOf(next));
+        store.close();
+    }
+
+    @Test
+    public void reclaimsWholeSegments() throws Exception {
+        SegmentStore store = new SegmentStore(dir, 100);
+        store.open();
+        for (int i = 0; i < 6; i++) {
+            store.append(body(i, 40));
+        }
+        assertEquals(3, store.getActiveSegment());
+        Set<Integer> live = new HashSet<Integer>(Collections.singleton(2));
+        // 段1无引用被删，段2仍被引用，当前段3保留
+        assertEquals(1, store.reclaim(live, store.getActiveSegment()));
+        assertFalse(store.segmentFile(1).exists());
+        assertTrue(store.segmentFile(2).exists());
+        assertTrue(store.segmentFile(3).exists());
+        assertEquals(160, store.totalSize());
+        store.close();
+    }
+
+    @Test
+    public void reclaimRacingWithRollover() throws Exception {
+        final BugJournal journal = new BugJournal(new File(dir, "bug"));
+        journal.open("1.0");
+        // 每段只放得下一条，每次写入都换段
+        final SegmentStore store = new SegmentStore(dir, 64);
+        store.open();
+        final BugWriter writer = new BugWriter(dir, journal, store);
+        final AtomicBoolean done = new AtomicBoolean();
+        Thread reclaimer = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                while (!done.get()) {
+                    store.reclaim(journal);
+                }
+            }
+        });
+        reclaimer.start();
+        try {
+            for (int i = 0; i < 2000; i++) {
+                writer.write(String.format("%032x", i), body(i, 60), i);
+            }
+        } finally {
+            done.set(true);
+            reclaimer.join();
+        }
+        // 所有NEW记录的内容都还在
+        for (int i = 0; i < journal.size(); i++) {
+            assertArrayEquals(body(Integer.parseInt(BugJournal.toKey(journal.getHi(i), journal.getLo(i)), 16), 60),
+                    store.read(journal.getSegment(i), journal.getBodyOffset(i), journal.getBodyLength(i)));
+        }
+        store.close();
+        journal.close();
+    }
+
+    private static byte[] body(int seed, int length) {
+        byte[] body = new byte[length];
+        for (int i = 0; i < length; i++) {
+            body[i] = (byte) (seed * 31 + i);
+        }
+        return body;
+    }
+}
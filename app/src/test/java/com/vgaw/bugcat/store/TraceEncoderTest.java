@@ -0,0 +1,124 @@
+package com.vgaw.bugcat.store;
+
+import org.junit.Test;
+
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.io.StringWriter;
+import java.nio.ByteBuffer;
+
+import static org.junit.Assert.*;
+
+public class TraceEncoderTest {
+
+    @Test
+    public void matchesPrintStackTrace() throws Exception {
+        StackTraceElement run = new StackTraceElement("Foo", "run", "Foo.java", 30);
+        StackTraceElement main = new StackTraceElement("Foo", "main", "Foo.java", 5);
+        RuntimeException root = new RuntimeException("root");
+        root.setStackTrace(new StackTraceElement[]{
+                new StackTraceElement("Bar", "read", null, -1), new StackTraceElement("Bar", "io", "Bar.java", -2),
+                run, main});
+        IllegalStateException ex = new IllegalStateException("状态错误", root);
+        ex.setStackTrace(new StackTraceElement[]{new StackTraceElement("Foo", "check", "Foo.java", 12), run, main});
+        IOException close = new IOException("close");
+        close.setStackTrace(new StackTraceElement[]{new StackTraceElement("Foo", "close", "Foo.java", 40), main});
+        ex.addSuppressed(close);
+        String body = encode(new TraceEncoder(), ex, 32 * 1024);
+
+        StackTraceElement e0 = ex.getStackTrace()[0];
+        String header = "bug  :状态错误\ncause:java.lang.RuntimeException: root\npath :"
+                + e0.getLineNumber() + "->" + e0.getMethodName() + "->" + e0.getClassName() + "->" + e0.getFileName();
+        StringWriter trace = new StringWriter();
+        ex.printStackTrace(new PrintWriter(trace));
+        // 帧数在预算内时与printStackTrace相同
+        assertEquals(header + "\n" + trace.toString().replace(System.getProperty("line.separator"), "\n").trim(),
+                body);
+    }
+
+    @Test
+    public void elidesRecursion() throws Exception {
+        StackTraceElement a = new StackTraceElement("Foo", "a", "Foo.java", 10);
+        StackTraceElement b = new StackTraceElement("Foo", "b", "Foo.java", 20);
+        StackTraceElement main = new StackTraceElement("Foo", "main", "Foo.java", 5);
+        StackTraceElement[] frames = new StackTraceElement[1001];
+        for (int i = 0; i < 1000; i++) {
+            frames[i] = i % 2 == 0 ? a : b;
+        }
+        frames[1000] = main;
+        StackOverflowError ex = new StackOverflowError();
+        ex.setStackTrace(frames);
+        String body = encode(new TraceEncoder(), ex, 32 * 1024);
+        String trace = body.substring(body.indexOf("\njava.lang.StackOverflowError") + 1);
+        assertEquals("java.lang.StackOverflowError\n"
+                + "\tat Foo.a(Foo.java:10)\n"
+                + "\tat Foo.b(Foo.java:20)\n"
+                + "\t... 998 more (recursion)\n"
+                + "\tat Foo.main(Foo.java:5)", trace);
+    }
+
+    @Test
+    public void enforcesBudgets() throws Exception {
+        Throwable ex = new RuntimeException("0");
+        for (int i = 1; i < 20; i++) {
+            ex = new RuntimeException(String.valueOf(i), ex);
+        }
+        String body = encode(new TraceEncoder(3, 1, 32 * 1024), ex, 32 * 1024);
+        assertTrue(body.contains("Caused by: java.lang.RuntimeException: 18"));
+        assertTrue(body.contains("Caused by: java.lang.RuntimeException: 17"));
+        assertFalse(body.contains("Caused by: java.lang.RuntimeException: 16"));
+        assertTrue(body.endsWith("\t... (depth limit)"));
+
+        // 字节数用完时截断并标记
+        body = encode(new TraceEncoder(), ex, 300);
+        assertTrue(body.length() <= 300);
+        assertTrue(body.endsWith("\n\t...truncated"));
+        body = encode(new TraceEncoder(8, 64, 200), ex, 32 * 1024);
+        assertTrue(body.length() <= 200);
+        assertTrue(body.endsWith("\n\t...truncated"));
+    }
+
+    @Test
+    public void terminatesOnCauseCycle() throws Exception {
+        RuntimeException a = new RuntimeException("a");
+        RuntimeException b = new RuntimeException("b", a);
+        a.initCause(b);
+        String body = encode(new TraceEncoder(), a, 32 * 1024);
+        assertTrue(body.contains("Caused by: [CIRCULAR REFERENCE: java.lang.RuntimeException: a]"));
+    }
+
+    @Test
+    public void reusesBuffer() throws Exception {
+        TraceEncoder encoder = new TraceEncoder();
+        ByteBuffer buffer = ByteBuffer.allocate(32 * 1024);
+        RuntimeException ex = new RuntimeException("x");
+        encoder.encode(ex, buffer);
+        int length = buffer.position();
+        buffer.clear();
+        encoder.encode(ex, buffer);
+        assertEquals(length, buffer.position());
+    }
+
+    @Test
+    public void truncatesWhenOutOfSpace() throws Exception {
+        ByteBuffer small = ByteBuffer.allocate(8);
+        assertFalse(TraceEncoder.putChars(small, "bug  :message"));
+        assertEquals(8, small.position());
+        assertEquals("bug  :me", new String(small.array(), "UTF-8"));
+    }
+
+    @Test
+    public void writesIntegers() throws Exception {
+        ByteBuffer out = ByteBuffer.allocate(64);
+        TraceEncoder.putInt(out, 0);
+        TraceEncoder.putInt(out, -12);
+        TraceEncoder.putInt(out, 2147483647);
+        assertEquals("0-122147483647", new String(out.array(), 0, out.position(), "UTF-8"));
+    }
+
+    private static String encode(TraceEncoder encoder, Throwable ex, int capacity) throws Exception {
+        ByteBuffer buffer = ByteBuffer.allocate(capacity);
+        encoder.encode(ex, buffer);
+        return new String(buffer.array(), 0, buffer.position(), "UTF-8");
+    }
+}